@@ -0,0 +1,108 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.io.IOException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.EnhancedOneShotChannelAdaptor;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures a single {@link EnhancedOneShotChannelAdaptor} against a
+ * {@link LoopbackServer}, either through its {@code Channel} send/receive or
+ * through {@code AsyncChannel.submit()}<BR>
+ * Concurrency is the JMH thread count (see {@link HotPathBenchmarks}). Both
+ * flavours are correlated per caller, not through the space {@code <out>}
+ * queue : {@code receive()} returns the response to the request sent by the
+ * same thread. Each response is checked against its request STAN, so that
+ * latency samples are never taken from another thread's conversation.
+ * 
+ * @author dgrandemange
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class AdaptorBenchmark {
+
+	@Param( { "0" })
+	public long serverDelay;
+
+	@Param( { "false", "true" })
+	public boolean connectionReuse;
+
+	private LoopbackServer server;
+
+	private BenchmarkQ2 q2;
+
+	private EnhancedOneShotChannelAdaptor adaptor;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		server = new LoopbackServer(serverDelay).start();
+		q2 = new BenchmarkQ2().deploy(
+				"42_bench_channel_adaptor.xml",
+				BenchmarkQ2.oneShotChannelAdaptor("bench-channel", server
+						.getPort(), ChannelPoolBenchmark.MAX_CONNECTIONS,
+						String.format(
+								"  <connection-reuse>%s</connection-reuse>",
+								connectionReuse))).start();
+		adaptor = (EnhancedOneShotChannelAdaptor) q2.await("bench-channel",
+				30000L);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		q2.stop();
+		server.stop();
+	}
+
+	@Benchmark
+	public ISOMsg sendReceive() throws ISOException {
+		ISOMsg request = BenchmarkRequests.newAuthorization();
+		adaptor.send(request);
+		return checkCorrelated(request, adaptor
+				.receive(ChannelPoolBenchmark.TIMEOUT));
+	}
+
+	@Benchmark
+	public ISOMsg submit() throws ISOException, InterruptedException,
+			ExecutionException {
+		ISOMsg request = BenchmarkRequests.newAuthorization();
+		return checkCorrelated(request, adaptor.submit(request,
+				ChannelPoolBenchmark.TIMEOUT).get());
+	}
+
+	/**
+	 * @return response, after checking it answers the request
+	 * @throws IllegalStateException
+	 *             if response carries another STAN
+	 */
+	private static ISOMsg checkCorrelated(ISOMsg request, ISOMsg response) {
+		if ((response != null)
+				&& !request.getString(11).equals(response.getString(11))) {
+			throw new IllegalStateException(String.format(
+					"response STAN %s does not match request STAN %s",
+					response.getString(11), request.getString(11)));
+		}
+		return response;
+	}
+
+}
@@ -0,0 +1,179 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+
+import org.jpos.iso.MUX;
+import org.jpos.q2.Q2;
+import org.jpos.util.NameRegistrar;
+
+/**
+ * Runs an embedded Q2 over a temporary deploy directory, so that QBeans under
+ * benchmark are configured exactly as they would be in production
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class BenchmarkQ2 {
+
+	private final File deployDir;
+
+	private Q2 q2;
+
+	public BenchmarkQ2() throws IOException {
+		File baseDir = File.createTempFile("q2-bench", "");
+		baseDir.delete();
+		deployDir = new File(baseDir, "deploy");
+		if (!deployDir.mkdirs()) {
+			throw new IOException("cannot create " + deployDir);
+		}
+		deployDir.deleteOnExit();
+		baseDir.deleteOnExit();
+	}
+
+	/**
+	 * @param fileName
+	 *            deploy file name, e.g. {@code 42_channel_adaptor.xml}
+	 * @param xml
+	 *            QBean descriptor
+	 */
+	public BenchmarkQ2 deploy(String fileName, String xml) throws IOException {
+		File file = new File(deployDir, fileName);
+		file.deleteOnExit();
+		Writer w = new OutputStreamWriter(new FileOutputStream(file), "UTF-8");
+		try {
+			w.write(xml);
+		} finally {
+			w.close();
+		}
+		return this;
+	}
+
+	public BenchmarkQ2 start() {
+		q2 = new Q2(new String[] { "-d", deployDir.getAbsolutePath() });
+		Thread t = new Thread(q2, "q2");
+		t.setDaemon(true);
+		t.start();
+		return this;
+	}
+
+	/**
+	 * Waits for a QBean to register itself
+	 * 
+	 * @param name
+	 *            registration name
+	 * @param timeout
+	 *            in millis
+	 * @return registered object
+	 */
+	public Object await(String name, long timeout) throws InterruptedException {
+		long maxWait = System.currentTimeMillis() + timeout;
+		Object o;
+		while ((o = NameRegistrar.getIfExists(name)) == null) {
+			if (System.currentTimeMillis() > maxWait) {
+				throw new IllegalStateException(String.format(
+						"'%s' not registered within %d ms", name, timeout));
+			}
+			Thread.sleep(50L);
+		}
+		return o;
+	}
+
+	/**
+	 * Waits for a mux to report itself connected
+	 * 
+	 * @param timeout
+	 *            in millis
+	 */
+	public void awaitConnected(MUX mux, long timeout)
+			throws InterruptedException {
+		long maxWait = System.currentTimeMillis() + timeout;
+		while (!mux.isConnected()) {
+			if (System.currentTimeMillis() > maxWait) {
+				throw new IllegalStateException(String.format(
+						"mux not connected within %d ms", timeout));
+			}
+			Thread.sleep(50L);
+		}
+	}
+
+	public void stop() {
+		if (q2 != null) {
+			q2.shutdown(true);
+		}
+	}
+
+	/**
+	 * @return descriptor of a one shot channel adaptor targeting a local XML
+	 *         channel server
+	 */
+	public static String oneShotChannelAdaptor(String name, int port,
+			int maxConnections, String extraElements) {
+		return String.format("<channel-adaptor name=\"%s\" "
+				+ "class=\"org.jpos.q2.iso.EnhancedOneShotChannelAdaptor\">\n"
+				+ "  <channel class=\"org.jpos.iso.channel.XMLChannel\" "
+				+ "packager=\"org.jpos.iso.packager.XMLPackager\">\n"
+				+ "    <property name=\"host\" value=\"127.0.0.1\" />\n"
+				+ "    <property name=\"port\" value=\"%d\" />\n"
+				+ "    <property name=\"connect-timeout\" value=\"2000\" />\n"
+				+ "  </channel>\n"
+				+ "  <max-connections>%d</max-connections>\n"
+				+ "  <in>%s-send</in>\n" + "  <out>%s-receive</out>\n"
+				+ "  <cnx-process-handling>true</cnx-process-handling>\n"
+				+ "%s\n" + "</channel-adaptor>\n", name, port, maxConnections,
+				name, name, extraElements != null ? extraElements : "");
+	}
+
+	/**
+	 * @return descriptor of a persistent jPOS channel adaptor targeting a local
+	 *         XML channel server, as used underneath a QMUX
+	 */
+	public static String channelAdaptor(String name, int port) {
+		return String.format("<channel-adaptor name=\"%s\" "
+				+ "class=\"org.jpos.q2.iso.ChannelAdaptor\">\n"
+				+ "  <channel class=\"org.jpos.iso.channel.XMLChannel\" "
+				+ "packager=\"org.jpos.iso.packager.XMLPackager\">\n"
+				+ "    <property name=\"host\" value=\"127.0.0.1\" />\n"
+				+ "    <property name=\"port\" value=\"%d\" />\n"
+				+ "  </channel>\n" + "  <in>%s-send</in>\n"
+				+ "  <out>%s-receive</out>\n"
+				+ "  <reconnect-delay>1000</reconnect-delay>\n"
+				+ "</channel-adaptor>\n", name, port, name, name);
+	}
+
+	/**
+	 * @return descriptor of a QMUX on top of a channel adaptor, keyed as in
+	 *         the demo's {@code 45_primary_mux.xml}
+	 */
+	public static String qmux(String name, String channelName) {
+		return String.format("<mux name=\"%s\" "
+				+ "class=\"org.jpos.q2.iso.QMUX\">\n"
+				+ "  <in>%s-receive</in>\n" + "  <out>%s-send</out>\n"
+				+ "  <ready>%s.ready</ready>\n" + "  <key>2, 3, 11</key>\n"
+				+ "</mux>\n", name, channelName, channelName, channelName);
+	}
+
+	/**
+	 * @return descriptor of a one shot channel pool distributing requests
+	 *         over the given channels
+	 */
+	public static String channelPool(String name, String strategy,
+			String... channels) {
+		StringBuilder names = new StringBuilder();
+		for (String channel : channels) {
+			if (names.length() > 0) {
+				names.append(' ');
+			}
+			names.append(channel);
+		}
+		return String.format("<channel-pool name=\"%s\" "
+				+ "class=\"org.jpos.q2.iso.OneShotChannelPool\">\n"
+				+ "  <channels>%s</channels>\n"
+				+ "  <strategy>%s</strategy>\n" + "</channel-pool>\n", name,
+				names, strategy);
+	}
+
+}
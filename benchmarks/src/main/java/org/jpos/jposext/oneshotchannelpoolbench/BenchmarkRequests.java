@@ -0,0 +1,34 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+/**
+ * Builds the authorization requests sent by the benchmarks<BR>
+ * Each request gets its own STAN (field 11), so that key matching muxes can
+ * correlate concurrent responses.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public final class BenchmarkRequests {
+
+	private static final AtomicInteger STAN = new AtomicInteger(0);
+
+	private BenchmarkRequests() {
+	}
+
+	public static ISOMsg newAuthorization() throws ISOException {
+		ISOMsg m = new ISOMsg("0100");
+		m.set(2, "4111111111111111");
+		m.set(3, "000000");
+		m.set(4, "000000001000");
+		m.set(11, String.format("%06d",
+				(STAN.getAndIncrement() & Integer.MAX_VALUE) % 1000000));
+		m.set(41, "29110001");
+		return m;
+	}
+
+}
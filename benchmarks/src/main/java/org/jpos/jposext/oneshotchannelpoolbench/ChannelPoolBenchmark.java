@@ -0,0 +1,98 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.OneShotChannelPool;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Measures {@link OneShotChannelPool#request(ISOMsg, long)} over two
+ * {@code EnhancedOneShotChannelAdaptor}s, each one targeting its own
+ * {@link LoopbackServer}, for each distribution strategy<BR>
+ * Concurrency is the JMH thread count (see {@link HotPathBenchmarks}).
+ * 
+ * @author dgrandemange
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class ChannelPoolBenchmark {
+
+	static final long TIMEOUT = 5000L;
+
+	static final int MAX_CONNECTIONS = 256;
+
+	@Param( { "primary-secondary", "round-robin", "least-latency" })
+	public String strategy;
+
+	@Param( { "0" })
+	public long serverDelay;
+
+	private LoopbackServer primaryServer;
+
+	private LoopbackServer secondaryServer;
+
+	private BenchmarkQ2 q2;
+
+	private OneShotChannelPool pool;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		primaryServer = new LoopbackServer(serverDelay).start();
+		secondaryServer = new LoopbackServer(serverDelay).start();
+
+		q2 = new BenchmarkQ2().deploy(
+				"42_primary_channel_adaptor.xml",
+				BenchmarkQ2.oneShotChannelAdaptor("primary-channel",
+						primaryServer.getPort(), MAX_CONNECTIONS, null))
+				.deploy(
+						"42_secondary_channel_adaptor.xml",
+						BenchmarkQ2.oneShotChannelAdaptor("secondary-channel",
+								secondaryServer.getPort(), MAX_CONNECTIONS,
+								null)).deploy(
+						"45_channel_selector.xml",
+						BenchmarkQ2.channelPool("bench-pool", strategy,
+								"primary-channel", "secondary-channel"))
+				.start();
+
+		q2.await("primary-channel", 30000L);
+		q2.await("secondary-channel", 30000L);
+		pool = (OneShotChannelPool) q2.await("channel-pool.bench-pool",
+				30000L);
+		// Channels are registered once started, the pool picks them up on its
+		// next lookup refresh
+		q2.awaitConnected(pool, 30000L);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		q2.stop();
+		primaryServer.stop();
+		secondaryServer.stop();
+	}
+
+	@Benchmark
+	public ISOMsg request() throws ISOException {
+		return pool.request(BenchmarkRequests.newAuthorization(), TIMEOUT);
+	}
+
+}
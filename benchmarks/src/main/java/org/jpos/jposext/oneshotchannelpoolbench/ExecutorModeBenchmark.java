@@ -0,0 +1,146 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryMXBean;
+import java.lang.management.ThreadMXBean;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.AsyncChannel;
+import org.jpos.q2.iso.EnhancedOneShotChannelAdaptor;
+import org.jpos.q2.iso.nio.NioOneShotChannelAdaptor;
+
+/**
+ * Compares the {@code cached} and {@code virtual} executors of
+ * {@link EnhancedOneShotChannelAdaptor} : keeps a fixed number of one shot
+ * conversations in flight against a {@link LoopbackServer} answering after a
+ * fixed delay, then reports throughput, peak thread count and heap usage.<BR>
+ * Mode {@code nio} runs the same load on a {@link NioOneShotChannelAdaptor}
+ * instead.<BR>
+ * Prior to Java 24, virtual threads blocked in channel I/O pin their carrier
+ * thread (jPOS channels send and receive under monitors) : virtual mode is
+ * then capped to one conversation per carrier, i.e. about
+ * {@code carriers * 1000 / delay} requests per second, which the report shows
+ * next to the measured throughput. Compare a run on Java 21 with one on Java
+ * 24 or later to see the difference.<BR>
+ * Run each mode in its own JVM, virtual mode requires Java 21 or later :<BR>
+ * {@code mvn -f benchmarks/pom.xml compile exec:java
+ * -Dexec.mainClass=org.jpos.jposext.oneshotchannelpoolbench.ExecutorModeBenchmark
+ * -Dexec.args="virtual 5000 50000 200"}
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class ExecutorModeBenchmark {
+
+	public static final String MODE_NIO = "nio";
+
+	public static void main(String[] args) throws Exception {
+		String mode = (args.length > 0) ? args[0]
+				: EnhancedOneShotChannelAdaptor.EXECUTOR_CACHED;
+		int concurrency = (args.length > 1) ? Integer.parseInt(args[1]) : 2000;
+		int requests = (args.length > 2) ? Integer.parseInt(args[2]) : 20000;
+		long serverDelay = (args.length > 3) ? Long.parseLong(args[3]) : 200L;
+
+		LoopbackServer server = new LoopbackServer(serverDelay).start();
+		String descriptor;
+		if (MODE_NIO.equals(mode)) {
+			descriptor = BenchmarkQ2.oneShotChannelAdaptor("bench-channel",
+					server.getPort(), concurrency, null).replace(
+					EnhancedOneShotChannelAdaptor.class.getName(),
+					NioOneShotChannelAdaptor.class.getName());
+		} else {
+			descriptor = BenchmarkQ2.oneShotChannelAdaptor("bench-channel",
+					server.getPort(), concurrency, String.format(
+							"  <executor>%s</executor>", mode));
+		}
+		BenchmarkQ2 q2 = new BenchmarkQ2().deploy(
+				"42_bench_channel_adaptor.xml", descriptor).start();
+
+		try {
+			AsyncChannel adaptor = (AsyncChannel) q2.await("bench-channel",
+					30000L);
+
+			// Warm up
+			run(adaptor, Math.min(concurrency, 100), 1000);
+
+			ThreadMXBean threads = ManagementFactory.getThreadMXBean();
+			threads.resetPeakThreadCount();
+			System.gc();
+			MemoryMXBean memory = ManagementFactory.getMemoryMXBean();
+			long heapBefore = memory.getHeapMemoryUsage().getUsed();
+
+			long start = System.nanoTime();
+			int failures = run(adaptor, concurrency, requests);
+			long elapsed = System.nanoTime() - start;
+
+			long heapAfter = memory.getHeapMemoryUsage().getUsed();
+
+			System.out.println(String.format(
+					"executor=%s concurrency=%d requests=%d server-delay=%dms",
+					mode, concurrency, requests, serverDelay));
+			System.out.println(String.format(
+					"  throughput     : %.1f req/s (%d failures)", requests
+							/ (elapsed / 1e9d), failures));
+			System.out.println(String.format("  peak threads   : %d",
+					threads.getPeakThreadCount()));
+			if (EnhancedOneShotChannelAdaptor.EXECUTOR_VIRTUAL.equals(mode)) {
+				int version = EnhancedOneShotChannelAdaptor
+						.getJavaFeatureVersion();
+				int carriers = EnhancedOneShotChannelAdaptor
+						.getCarrierCount();
+				if (version < 24) {
+					System.out.println(String.format(
+							"  carriers       : %d, pinned on Java %d (ceiling about %.1f req/s)",
+							carriers, version, carriers * 1000d
+									/ Math.max(serverDelay, 1L)));
+				} else {
+					System.out.println(String.format(
+							"  carriers       : %d, not pinned on Java %d",
+							carriers, version));
+				}
+			}
+			System.out.println(String.format(
+					"  heap growth    : %d KB (committed %d KB)",
+					(heapAfter - heapBefore) / 1024, memory
+							.getHeapMemoryUsage().getCommitted() / 1024));
+		} finally {
+			q2.stop();
+			server.stop();
+		}
+	}
+
+	/**
+	 * Keeps {@code concurrency} conversations in flight until
+	 * {@code requests} have completed
+	 * 
+	 * @return number of conversations which got no response
+	 */
+	private static int run(AsyncChannel adaptor,
+			int concurrency, int requests) throws Exception {
+		final Semaphore inFlight = new Semaphore(concurrency);
+		final AtomicInteger failures = new AtomicInteger(0);
+
+		for (int i = 0; i < requests; i++) {
+			inFlight.acquire();
+			ISOMsg m = new ISOMsg("0100");
+			m.set(11, Integer.toString(i % 1000000));
+			CompletableFuture<ISOMsg> future = adaptor.submit(m, 30000L);
+			future.whenComplete((response, t) -> {
+				if ((t != null) || (response == null)) {
+					failures.incrementAndGet();
+				}
+				inFlight.release();
+			});
+		}
+
+		if (!inFlight.tryAcquire(concurrency, 60, TimeUnit.SECONDS)) {
+			throw new IllegalStateException("conversations did not complete");
+		}
+		return failures.get();
+	}
+
+}
@@ -0,0 +1,36 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import org.openjdk.jmh.profile.GCProfiler;
+import org.openjdk.jmh.runner.Runner;
+import org.openjdk.jmh.runner.RunnerException;
+import org.openjdk.jmh.runner.options.Options;
+import org.openjdk.jmh.runner.options.OptionsBuilder;
+
+/**
+ * Runs the pool, adaptor and QMUX benchmarks once per concurrency level, with
+ * the GC profiler on so that allocation rates are reported next to throughput
+ * and latency percentiles<BR>
+ * Arguments are : comma separated thread counts (default {@code 1,16,64}),
+ * then an optional benchmark name regexp.<BR>
+ * {@code java -cp benchmarks/target/benchmarks.jar
+ * org.jpos.jposext.oneshotchannelpoolbench.HotPathBenchmarks 1,16,64}
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class HotPathBenchmarks {
+
+	public static void main(String[] args) throws RunnerException {
+		String threadCounts = (args.length > 0) ? args[0] : "1,16,64";
+		String include = (args.length > 1) ? args[1]
+				: "(ChannelPoolBenchmark|AdaptorBenchmark|QmuxBenchmark)";
+
+		for (String threads : threadCounts.split(",")) {
+			Options options = new OptionsBuilder().include(include).threads(
+					Integer.parseInt(threads.trim())).addProfiler(
+					GCProfiler.class).build();
+			new Runner(options).run();
+		}
+	}
+
+}
@@ -0,0 +1,199 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.Charset;
+import java.util.Iterator;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.packager.XMLPackager;
+
+/**
+ * A single threaded, non blocking XML channel server, answering each
+ * {@code <isomsg>} it receives after a fixed delay<BR>
+ * The response echoes the request fields with a response MTI and field 39
+ * set, so that key matching clients (such as a QMUX) can correlate it.<BR>
+ * It holds no thread per connection, so that thousands of concurrent
+ * conversations load the client under test, not the server.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class LoopbackServer implements Runnable {
+
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private static final String END_OF_MESSAGE = "</isomsg>";
+
+	private final XMLPackager packager;
+
+	private final long delay;
+
+	private final ServerSocketChannel serverChannel;
+
+	private final Selector selector;
+
+	private final ScheduledExecutorService scheduler = Executors
+			.newSingleThreadScheduledExecutor();
+
+	private volatile boolean running = true;
+
+	/**
+	 * @param delay
+	 *            delay (in millis) before answering a request
+	 */
+	public LoopbackServer(long delay) throws IOException {
+		this.delay = delay;
+		try {
+			this.packager = new XMLPackager();
+		} catch (ISOException e) {
+			throw new IOException(e);
+		}
+		this.selector = Selector.open();
+		this.serverChannel = ServerSocketChannel.open();
+		serverChannel.socket().bind(new InetSocketAddress("127.0.0.1", 0),
+				4096);
+		serverChannel.configureBlocking(false);
+		serverChannel.register(selector, SelectionKey.OP_ACCEPT);
+	}
+
+	public int getPort() {
+		return serverChannel.socket().getLocalPort();
+	}
+
+	public LoopbackServer start() {
+		Thread t = new Thread(this, "loopback-server");
+		t.setDaemon(true);
+		t.start();
+		return this;
+	}
+
+	public void stop() throws IOException {
+		running = false;
+		selector.wakeup();
+		scheduler.shutdownNow();
+	}
+
+	public void run() {
+		while (running) {
+			try {
+				selector.select();
+				Iterator<SelectionKey> it = selector.selectedKeys().iterator();
+				while (it.hasNext()) {
+					SelectionKey key = it.next();
+					it.remove();
+					if (!key.isValid()) {
+						continue;
+					}
+					if (key.isAcceptable()) {
+						accept();
+					} else if (key.isReadable()) {
+						read(key);
+					}
+				}
+			} catch (IOException e) {
+				// Keep serving other connections
+			}
+		}
+
+		try {
+			selector.close();
+			serverChannel.close();
+		} catch (IOException e) {
+			// Safe to ignore
+		}
+	}
+
+	private void accept() throws IOException {
+		SocketChannel channel;
+		while ((channel = serverChannel.accept()) != null) {
+			channel.configureBlocking(false);
+			channel.register(selector, SelectionKey.OP_READ,
+					new StringBuilder());
+		}
+	}
+
+	private void read(SelectionKey key) {
+		final SocketChannel channel = (SocketChannel) key.channel();
+		StringBuilder pending = (StringBuilder) key.attachment();
+		ByteBuffer buffer = ByteBuffer.allocate(4096);
+
+		try {
+			int n = channel.read(buffer);
+			if (n < 0) {
+				key.cancel();
+				channel.close();
+				return;
+			}
+			buffer.flip();
+			pending.append(CHARSET.decode(buffer));
+		} catch (IOException e) {
+			key.cancel();
+			closeQuietly(channel);
+			return;
+		}
+
+		int end;
+		while ((end = pending.indexOf(END_OF_MESSAGE)) >= 0) {
+			int length = end + END_OF_MESSAGE.length();
+			final byte[] response = respond(pending.substring(0, length));
+			pending.delete(0, length);
+			if (response == null) {
+				continue;
+			}
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					write(channel, response);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * @return packed response to the given request, or null if the request
+	 *         cannot be unpacked
+	 */
+	private byte[] respond(String request) {
+		try {
+			ISOMsg m = new ISOMsg();
+			m.setPackager(packager);
+			m.unpack(request.trim().getBytes(CHARSET));
+			m.setResponseMTI();
+			m.set(39, "00");
+			return m.pack();
+		} catch (ISOException e) {
+			return null;
+		}
+	}
+
+	private void write(SocketChannel channel, byte[] response) {
+		ByteBuffer buffer = ByteBuffer.wrap(response);
+		try {
+			while (buffer.hasRemaining()) {
+				if (channel.write(buffer) == 0) {
+					Thread.yield();
+				}
+			}
+		} catch (IOException e) {
+			closeQuietly(channel);
+		}
+	}
+
+	private void closeQuietly(SocketChannel channel) {
+		try {
+			channel.close();
+		} catch (IOException e) {
+			// Safe to ignore
+		}
+	}
+
+}
@@ -0,0 +1,74 @@
+package org.jpos.jposext.oneshotchannelpoolbench;
+
+import java.io.IOException;
+import java.util.concurrent.TimeUnit;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.QMUX;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+/**
+ * Baseline : the same requests as {@link ChannelPoolBenchmark}, sent through
+ * a QMUX over a single persistent channel adaptor, as configured in the
+ * demo's {@code 45_primary_mux.xml}<BR>
+ * Concurrency is the JMH thread count (see {@link HotPathBenchmarks}).
+ * 
+ * @author dgrandemange
+ * 
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode( { Mode.Throughput, Mode.SampleTime })
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3, time = 5)
+@Measurement(iterations = 5, time = 5)
+@Fork(1)
+public class QmuxBenchmark {
+
+	@Param( { "0" })
+	public long serverDelay;
+
+	private LoopbackServer server;
+
+	private BenchmarkQ2 q2;
+
+	private QMUX mux;
+
+	@Setup(Level.Trial)
+	public void setUp() throws IOException, InterruptedException {
+		server = new LoopbackServer(serverDelay).start();
+		q2 = new BenchmarkQ2().deploy(
+				"42_primary_channel_adaptor.xml",
+				BenchmarkQ2.channelAdaptor("primary-channel", server.getPort()))
+				.deploy("45_primary_mux.xml",
+						BenchmarkQ2.qmux("primary-mux", "primary-channel"))
+				.start();
+		mux = (QMUX) q2.await("mux.primary-mux", 30000L);
+		q2.awaitConnected(mux, 30000L);
+	}
+
+	@TearDown(Level.Trial)
+	public void tearDown() throws IOException {
+		q2.stop();
+		server.stop();
+	}
+
+	@Benchmark
+	public ISOMsg request() throws ISOException {
+		return mux.request(BenchmarkRequests.newAuthorization(),
+				ChannelPoolBenchmark.TIMEOUT);
+	}
+
+}
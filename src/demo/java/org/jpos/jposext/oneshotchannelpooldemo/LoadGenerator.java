@@ -0,0 +1,366 @@
+package org.jpos.jposext.oneshotchannelpooldemo;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.LockSupport;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOResponseListener;
+import org.jpos.iso.ISOUtil;
+import org.jpos.iso.MUX;
+import org.jpos.q2.QBeanSupport;
+import org.jpos.q2.iso.metrics.LatencyHistogram;
+import org.jpos.util.NameRegistrar;
+
+/**
+ * Open loop load generator<BR>
+ *
+ * Requests are sent through a MUX (channel selector or QMUX) at a target rate,
+ * reached after a linear ramp, for a given duration. Each request is given an
+ * intended send time from the schedule alone, whatever the responses : a
+ * saturated MUX thus shows up as growing latencies instead of a silently
+ * lowered send rate (no coordinated omission). Latencies are measured from
+ * the intended send time, requests are sent asynchronously.<BR>
+ *
+ * Messages are drawn from a weighted mix of templates, each request getting
+ * its own STAN (field 11) and a random amount (field 4).<BR>
+ *
+ * Achieved TPS and latency percentiles are logged at the end of the run.<BR>
+ *
+ * Configuration sample :
+ *
+ * <pre>
+ * &lt;qbean name="load-generator" logger="Q2" class="org.jpos.jposext.oneshotchannelpooldemo.LoadGenerator"&gt;
+ *   &lt;mux-ref&gt;channel-pool.a-channel-selector&lt;/mux-ref&gt;
+ *   &lt;rate&gt;200&lt;/rate&gt;
+ *   &lt;ramp&gt;10000&lt;/ramp&gt;
+ *   &lt;duration&gt;60000&lt;/duration&gt;
+ *   &lt;message mti="0100" weight="80" processing-code="000000" amount-min="100" amount-max="50000" /&gt;
+ *   &lt;message mti="0200" weight="20" processing-code="000000" amount-min="100" amount-max="50000" /&gt;
+ * &lt;/qbean&gt;
+ * </pre>
+ *
+ * @author dgrandemange
+ *
+ */
+public class LoadGenerator extends QBeanSupport {
+
+	private static final int MAX_STAN = 999999;
+
+	private String muxRef;
+
+	/**
+	 * Target rate (in requests per second)
+	 */
+	private double rate;
+
+	/**
+	 * Ramp duration (in millis), part of the run duration
+	 */
+	private long ramp;
+
+	/**
+	 * Run duration (in millis)
+	 */
+	private long duration;
+
+	/**
+	 * Delay (in millis) before run starts, leaving time to channels to connect
+	 */
+	private long startDelay;
+
+	private long timeout;
+
+	private List<MessageTemplate> mix;
+
+	private int totalWeight;
+
+	private Thread generator;
+
+	@Override
+	protected void initService() throws Exception {
+		Element persist = getPersist();
+
+		muxRef = persist.getChildTextTrim("mux-ref");
+		if (muxRef == null) {
+			muxRef = "channel-pool.a-channel-selector"; // reasonable default
+		}
+
+		String s = persist.getChildTextTrim("rate");
+		rate = (s != null) ? Double.parseDouble(s) : 50d; // reasonable default
+		if (rate <= 0d) {
+			throw new ConfigurationException(String.format(
+					"%s : rate must be positive", getName()));
+		}
+
+		s = persist.getChildTextTrim("duration");
+		duration = (s != null) ? Long.parseLong(s) : 60000L; // reasonable
+																// default
+
+		s = persist.getChildTextTrim("ramp");
+		ramp = (s != null) ? Long.parseLong(s) : 10000L; // reasonable default
+		ramp = Math.max(0L, Math.min(ramp, duration));
+
+		s = persist.getChildTextTrim("start-delay");
+		startDelay = (s != null) ? Long.parseLong(s) : 5000L; // reasonable
+																// default
+
+		s = persist.getChildTextTrim("timeout");
+		timeout = (s != null) ? Long.parseLong(s) : 5000L; // reasonable
+															// default
+
+		mix = new ArrayList<MessageTemplate>();
+		totalWeight = 0;
+		for (Object o : persist.getChildren("message")) {
+			MessageTemplate template = new MessageTemplate((Element) o);
+			totalWeight += template.weight;
+			mix.add(template);
+		}
+		if (mix.isEmpty()) {
+			mix.add(new MessageTemplate(new Element("message")));
+			totalWeight = 1;
+		}
+		if (totalWeight <= 0) {
+			throw new ConfigurationException(String.format(
+					"%s : message weights must add up to a positive value",
+					getName()));
+		}
+	}
+
+	@Override
+	protected void startService() throws Exception {
+		generator = new Thread(new Run(), getName());
+		generator.setDaemon(true);
+		generator.start();
+
+		NameRegistrar.register(getName(), this);
+	}
+
+	@Override
+	protected void stopService() throws Exception {
+		NameRegistrar.unregister(getName());
+
+		if (generator != null) {
+			generator.interrupt();
+			generator = null;
+		}
+	}
+
+	/**
+	 * @param i
+	 *            request index, from 0
+	 * @return intended send time of the i-th request (in nanos) relative to
+	 *         run start<BR>
+	 *         During the ramp, rate grows linearly from 0 to target rate, so
+	 *         that i(t) = rate.t^2 / 2.ramp, then i(t) = rate.(t - ramp/2)
+	 */
+	protected long intendedOffset(long i) {
+		double rampSeconds = ramp / 1000d;
+		double seconds;
+		if (i < rate * rampSeconds / 2d) {
+			seconds = Math.sqrt(2d * rampSeconds * i / rate);
+		} else {
+			seconds = i / rate + rampSeconds / 2d;
+		}
+		return (long) (seconds * 1e9d);
+	}
+
+	protected ISOMsg nextRequest(Random random, int stan) throws ISOException {
+		int pick = random.nextInt(totalWeight);
+		MessageTemplate template = null;
+		for (MessageTemplate t : mix) {
+			template = t;
+			pick -= t.weight;
+			if (pick < 0) {
+				break;
+			}
+		}
+
+		long amount = template.amountMin;
+		if (template.amountMax > template.amountMin) {
+			amount += (long) (random.nextDouble() * (template.amountMax
+					- template.amountMin + 1));
+		}
+
+		ISOMsg m = new ISOMsg();
+		m.setMTI(template.mti);
+		m.set(2, template.pan);
+		m.set(3, template.processingCode);
+		m.set(4, ISOUtil.zeropad(Long.toString(amount), 12));
+		m.set(11, ISOUtil.zeropad(Integer.toString(stan), 6));
+		m.set(41, template.terminalId);
+		return m;
+	}
+
+	/**
+	 * A weighted request template
+	 */
+	static class MessageTemplate {
+
+		final String mti;
+
+		final int weight;
+
+		final String processingCode;
+
+		final long amountMin;
+
+		final long amountMax;
+
+		final String pan;
+
+		final String terminalId;
+
+		MessageTemplate(Element e) throws ConfigurationException {
+			mti = attribute(e, "mti", "0100");
+			processingCode = attribute(e, "processing-code", "000000");
+			pan = attribute(e, "pan", "1234123412341200");
+			terminalId = attribute(e, "terminal-id", "29110001");
+			try {
+				weight = Integer.parseInt(attribute(e, "weight", "1"));
+				amountMin = Long.parseLong(attribute(e, "amount-min", "100"));
+				amountMax = Long.parseLong(attribute(e, "amount-max",
+						Long.toString(amountMin)));
+			} catch (NumberFormatException ex) {
+				throw new ConfigurationException(ex);
+			}
+		}
+
+		private static String attribute(Element e, String name,
+				String defaultValue) {
+			String value = e.getAttributeValue(name);
+			return (value != null) ? value.trim() : defaultValue;
+		}
+	}
+
+	/**
+	 * One run of the schedule, then its report
+	 */
+	class Run implements Runnable, ISOResponseListener {
+
+		private final LatencyHistogram latencies = new LatencyHistogram();
+
+		private final AtomicLong responses = new AtomicLong(0L);
+
+		private final AtomicLong expired = new AtomicLong(0L);
+
+		private final AtomicLong outstanding = new AtomicLong(0L);
+
+		private long sent;
+
+		private long errors;
+
+		/**
+		 * Highest delay (in nanos) between an intended send time and the
+		 * actual send, high values showing the generator itself can't keep up
+		 */
+		private long maxScheduleLag;
+
+		public void run() {
+			try {
+				Thread.sleep(startDelay);
+
+				Object obj = NameRegistrar.getIfExists(muxRef);
+				if (!(obj instanceof MUX)) {
+					getLog().warn(
+							String.format(
+									"%s : '%s' does not reference a registered MUX compatible instance",
+									getName(), muxRef));
+					return;
+				}
+				MUX mux = (MUX) obj;
+
+				getLog().info(
+						String.format(
+								"%s : starting run against '%s', rate=%.1f/s ramp=%dms duration=%dms",
+								getName(), muxRef, rate, ramp, duration));
+
+				Random random = new Random();
+				int stan = random.nextInt(MAX_STAN) + 1;
+				long durationNanos = TimeUnit.MILLISECONDS.toNanos(duration);
+				long start = System.nanoTime();
+
+				for (long i = 0;; i++) {
+					long offset = intendedOffset(i);
+					if (offset >= durationNanos) {
+						break;
+					}
+
+					long intended = start + offset;
+					long wait;
+					while ((wait = intended - System.nanoTime()) > 0L) {
+						LockSupport.parkNanos(wait);
+						if (Thread.interrupted()) {
+							throw new InterruptedException();
+						}
+					}
+					maxScheduleLag = Math.max(maxScheduleLag, -wait);
+
+					stan = (stan % MAX_STAN) + 1;
+					send(mux, nextRequest(random, stan), intended);
+				}
+
+				long elapsed = System.nanoTime() - start;
+				awaitOutstanding();
+				report(elapsed);
+			} catch (InterruptedException e) {
+				getLog().info(
+						String.format("%s : run interrupted", getName()));
+			} catch (ISOException e) {
+				getLog().error(String.format("%s : run aborted", getName()),
+						e);
+			}
+		}
+
+		private void send(MUX mux, ISOMsg m, long intended) {
+			sent++;
+			outstanding.incrementAndGet();
+			try {
+				mux.request(m, timeout, this, Long.valueOf(intended));
+			} catch (ISOException e) {
+				outstanding.decrementAndGet();
+				errors++;
+			}
+		}
+
+		public void responseReceived(ISOMsg resp, Object handBack) {
+			latencies.recordSince(((Long) handBack).longValue());
+			responses.incrementAndGet();
+			outstanding.decrementAndGet();
+		}
+
+		public void expired(Object handBack) {
+			expired.incrementAndGet();
+			outstanding.decrementAndGet();
+		}
+
+		private void awaitOutstanding() throws InterruptedException {
+			long maxWait = System.currentTimeMillis() + timeout + 1000L;
+			while ((outstanding.get() > 0L)
+					&& (System.currentTimeMillis() < maxWait)) {
+				Thread.sleep(50L);
+			}
+		}
+
+		private void report(long elapsedNanos) {
+			double seconds = elapsedNanos / 1e9d;
+			getLog().info(
+					String.format(
+							"%s : run completed in %.1fs, sent=%d (%.1f/s) responses=%d (%.1f/s) expired=%d errors=%d unanswered=%d max-schedule-lag=%.3fms",
+							getName(), seconds, sent, sent / seconds,
+							responses.get(), responses.get() / seconds,
+							expired.get(), errors, outstanding.get(),
+							maxScheduleLag / 1e6d));
+			getLog().info(
+					String.format("%s : latencies (from intended send time) %s",
+							getName(), latencies));
+		}
+	}
+
+}
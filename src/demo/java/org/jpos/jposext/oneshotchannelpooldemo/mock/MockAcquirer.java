@@ -0,0 +1,293 @@
+package org.jpos.jposext.oneshotchannelpooldemo.mock;
+
+import java.io.IOException;
+import java.time.LocalTime;
+import java.time.format.DateTimeFormatter;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jpos.core.Configurable;
+import org.jpos.core.Configuration;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISORequestListener;
+import org.jpos.iso.ISOSource;
+
+/**
+ * Compiled mock acquirer, replacing the former {@code cfg/simulator.bsh}<BR>
+ *
+ * Response code (field 39) is taken from the last two digits of the amount
+ * (field 4), an approval code (field 38) being set when it is "00".<BR>
+ *
+ * On top of that, for benchmarks and failover tests :<BR>
+ * - responses may be delayed according to a latency distribution (none, fixed,
+ * uniform, exponential or lognormal), delayed responses being sent from a
+ * scheduler so that session threads are never held,<BR>
+ * - a share of requests may be refused (connection closed, no response),<BR>
+ * - a share of requests may stall (response sent after a stall duration, or
+ * never),<BR>
+ * - periodic outages may refuse all requests for a while.<BR>
+ *
+ * Configuration sample :
+ *
+ * <pre>
+ * &lt;request-listener class="org.jpos.jposext.oneshotchannelpooldemo.mock.MockAcquirer" logger="Q2"&gt;
+ *   &lt;property name="mtis" value="0100 0200" /&gt;
+ *   &lt;property name="latency-distribution" value="lognormal" /&gt;
+ *   &lt;property name="latency-mean" value="20" /&gt;
+ *   &lt;property name="latency-sigma" value="0.5" /&gt;
+ *   &lt;property name="latency-max" value="2000" /&gt;
+ *   &lt;property name="refusal-rate" value="0.001" /&gt;
+ *   &lt;property name="stall-rate" value="0.001" /&gt;
+ *   &lt;property name="stall-duration" value="0" /&gt;
+ *   &lt;property name="outage-period" value="0" /&gt;
+ *   &lt;property name="outage-duration" value="0" /&gt;
+ * &lt;/request-listener&gt;
+ * </pre>
+ *
+ * @author dgrandemange
+ *
+ */
+public class MockAcquirer implements ISORequestListener, Configurable {
+
+	public static final String LATENCY__NONE = "none";
+
+	public static final String LATENCY__FIXED = "fixed";
+
+	public static final String LATENCY__UNIFORM = "uniform";
+
+	public static final String LATENCY__EXPONENTIAL = "exponential";
+
+	public static final String LATENCY__LOGNORMAL = "lognormal";
+
+	private static final DateTimeFormatter APPROVAL_CODE_FORMAT = DateTimeFormatter
+			.ofPattern("HHmmss");
+
+	private static final AtomicInteger schedulerCount = new AtomicInteger(0);
+
+	private Set<String> mtis;
+
+	private String latencyDistribution;
+
+	/**
+	 * Latency bounds and mean (in millis)
+	 */
+	private long latencyMin;
+
+	private long latencyMax;
+
+	private long latencyMean;
+
+	/**
+	 * Shape of the lognormal distribution (standard deviation of the
+	 * underlying normal distribution)
+	 */
+	private double latencySigma;
+
+	private double refusalRate;
+
+	private double stallRate;
+
+	/**
+	 * Delay (in millis) before a stalled request gets its response, 0 meaning
+	 * never
+	 */
+	private long stallDuration;
+
+	/**
+	 * Outages (in millis) : all requests are refused during the first
+	 * outage-duration millis of every outage-period
+	 */
+	private long outagePeriod;
+
+	private long outageDuration;
+
+	private ScheduledExecutorService scheduler;
+
+	public void setConfiguration(Configuration cfg)
+			throws ConfigurationException {
+		mtis = new HashSet<String>(Arrays.asList(cfg.get("mtis", "0100")
+				.trim().split("[\\s,]+")));
+
+		latencyDistribution = cfg.get("latency-distribution", LATENCY__NONE);
+		if (!Arrays.asList(LATENCY__NONE, LATENCY__FIXED, LATENCY__UNIFORM,
+				LATENCY__EXPONENTIAL, LATENCY__LOGNORMAL).contains(
+				latencyDistribution)) {
+			throw new ConfigurationException(String.format(
+					"Unknown latency distribution '%s'", latencyDistribution));
+		}
+		latencyMin = cfg.getLong("latency-min", 0L);
+		latencyMean = cfg.getLong("latency-mean", latencyMin);
+		latencyMax = cfg.getLong("latency-max", 0L); // 0 : unbounded
+		latencySigma = cfg.getDouble("latency-sigma", 0.5d);
+
+		refusalRate = cfg.getDouble("refusal-rate", 0d);
+		stallRate = cfg.getDouble("stall-rate", 0d);
+		stallDuration = cfg.getLong("stall-duration", 0L);
+
+		outagePeriod = cfg.getLong("outage-period", 0L);
+		outageDuration = cfg.getLong("outage-duration", 0L);
+
+		int schedulerThreads = cfg.getInt("scheduler-threads", 2); // reasonable
+																	// default
+		scheduler = Executors.newScheduledThreadPool(schedulerThreads,
+				new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, String.format(
+								"mock-acquirer-%d", schedulerCount
+										.incrementAndGet()));
+						t.setDaemon(true);
+						return t;
+					}
+				});
+	}
+
+	public boolean process(final ISOSource source, final ISOMsg m) {
+		String mti;
+		try {
+			mti = m.getMTI();
+		} catch (ISOException e) {
+			return false;
+		}
+		if (!mtis.contains(mti)) {
+			return false;
+		}
+
+		if (isInOutage()) {
+			refuse(source);
+			return true;
+		}
+
+		double draw = ThreadLocalRandom.current().nextDouble();
+		if (draw < refusalRate) {
+			refuse(source);
+			return true;
+		}
+
+		long delay;
+		if (draw < refusalRate + stallRate) {
+			if (stallDuration <= 0L) {
+				// Never answered : client ends up on its own timeout
+				return true;
+			}
+			delay = stallDuration;
+		} else {
+			delay = nextLatency();
+		}
+
+		if (delay <= 0L) {
+			respond(source, m);
+		} else {
+			scheduler.schedule(new Runnable() {
+				public void run() {
+					respond(source, m);
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+		return true;
+	}
+
+	protected boolean isInOutage() {
+		return (outagePeriod > 0L)
+				&& ((System.currentTimeMillis() % outagePeriod) < outageDuration);
+	}
+
+	/**
+	 * @return response delay (in millis), drawn from configured distribution
+	 */
+	protected long nextLatency() {
+		ThreadLocalRandom random = ThreadLocalRandom.current();
+		double latency;
+		if (LATENCY__FIXED.equals(latencyDistribution)) {
+			latency = latencyMean;
+		} else if (LATENCY__UNIFORM.equals(latencyDistribution)) {
+			latency = latencyMin + random.nextDouble()
+					* Math.max(latencyMax - latencyMin, 0L);
+		} else if (LATENCY__EXPONENTIAL.equals(latencyDistribution)) {
+			// Shifted by the minimum, keeping the configured mean
+			latency = latencyMin - Math.log(1d - random.nextDouble())
+					* Math.max(latencyMean - latencyMin, 0L);
+		} else if (LATENCY__LOGNORMAL.equals(latencyDistribution)) {
+			// mu chosen so that distribution mean is the configured mean
+			double mu = Math.log(Math.max(latencyMean, 1L)) - latencySigma
+					* latencySigma / 2d;
+			latency = Math.exp(mu + latencySigma * random.nextGaussian());
+		} else {
+			return 0L;
+		}
+
+		latency = Math.max(latency, latencyMin);
+		if (latencyMax > 0L) {
+			latency = Math.min(latency, latencyMax);
+		}
+		return Math.round(latency);
+	}
+
+	protected void respond(ISOSource source, ISOMsg m) {
+		try {
+			m.setResponseMTI();
+
+			String codeRep = convertAmountToCodeRep(m.getString(4));
+			if ("00".equals(codeRep)) {
+				m.set(38, LocalTime.now().format(APPROVAL_CODE_FORMAT));
+			}
+			m.set(39, codeRep);
+
+			source.send(m);
+		} catch (ISOException e) {
+			// Request is left unanswered
+		} catch (IOException e) {
+			// Connection closed by client, nothing to answer to
+		}
+	}
+
+	/**
+	 * @return two digits response code, taken from the amount last two
+	 *         digits ("01" when amount is missing or malformed)
+	 */
+	protected String convertAmountToCodeRep(String amount) {
+		int codeRep = 1;
+
+		if (null != amount) {
+			String lastDigits;
+			amount = amount.trim();
+			int length = amount.length();
+			if (length <= 1) {
+				lastDigits = amount;
+			} else {
+				lastDigits = amount.substring(length - 2, length);
+			}
+
+			try {
+				codeRep = Integer.parseInt(lastDigits);
+			} catch (NumberFormatException e) {
+				// Keep default response code
+			}
+		}
+
+		return String.format("%02d", codeRep);
+	}
+
+	/**
+	 * Closes the connection the request came from, without answering
+	 */
+	protected void refuse(ISOSource source) {
+		if (source instanceof BaseChannel) {
+			try {
+				((BaseChannel) source).disconnect();
+			} catch (IOException e) {
+				// Already closed
+			}
+		}
+	}
+
+}
@@ -0,0 +1,48 @@
+package org.jpos.q2.iso;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.jpos.iso.Channel;
+import org.jpos.iso.ISOMsg;
+
+/**
+ * A {@link Channel} able to carry a request/response conversation without
+ * blocking the caller<BR>
+ * Each call to {@link #submit(ISOMsg, long)} returns its own handle, so a
+ * single caller may have several conversations outstanding.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public interface AsyncChannel extends Channel {
+
+	/**
+	 * Submit a request to be sent, its response to be received in a dedicated
+	 * conversation
+	 * 
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time (in millis) given to the conversation to complete, the
+	 *            returned future then completes exceptionally with a
+	 *            {@link java.util.concurrent.TimeoutException}. A negative or
+	 *            zero value means no timeout.
+	 * @return future of the response. It may complete with a {@code null}
+	 *         response when conversation ended without one. Cancelling it
+	 *         aborts the conversation.
+	 */
+	CompletableFuture<ISOMsg> submit(ISOMsg m, long timeout);
+
+	/**
+	 * Queue a message to be sent, its response to be collected by the next
+	 * {@code receive(...)} call performed by the same thread
+	 * 
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time (in millis) given to the whole conversation, a negative
+	 *            or zero value means no deadline
+	 */
+	void send(ISOMsg m, long timeout);
+
+}
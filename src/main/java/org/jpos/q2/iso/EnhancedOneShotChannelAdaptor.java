@@ -1,801 +1,2692 @@
-package org.jpos.q2.iso;
-
-import java.io.IOException;
-import java.math.BigDecimal;
-import java.util.HashMap;
-import java.util.Map;
-import java.util.NoSuchElementException;
-import java.util.concurrent.Callable;
-import java.util.concurrent.ExecutionException;
-import java.util.concurrent.ExecutorService;
-import java.util.concurrent.Executors;
-import java.util.concurrent.Future;
-import java.util.concurrent.FutureTask;
-import java.util.concurrent.SynchronousQueue;
-import java.util.concurrent.ThreadPoolExecutor;
-import java.util.concurrent.TimeUnit;
-import java.util.concurrent.TimeoutException;
-import java.util.concurrent.atomic.AtomicInteger;
-
-import org.apache.commons.pool.BasePoolableObjectFactory;
-import org.apache.commons.pool.impl.GenericObjectPool;
-import org.apache.commons.pool.impl.GenericObjectPool.Config;
-import org.jdom.Element;
-import org.jpos.core.ConfigurationException;
-import org.jpos.iso.Channel;
-import org.jpos.iso.FactoryChannel;
-import org.jpos.iso.FilteredChannel;
-import org.jpos.iso.ISOChannel;
-import org.jpos.iso.ISOClientSocketFactory;
-import org.jpos.iso.ISOFilter;
-import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISOPackager;
-import org.jpos.iso.ISOUtil;
-import org.jpos.q2.QBeanSupport;
-import org.jpos.q2.QFactory;
-import org.jpos.q2.iso.exception.ConnectionFailureException;
-import org.jpos.space.Space;
-import org.jpos.space.SpaceFactory;
-import org.jpos.util.Log;
-import org.jpos.util.LogSource;
-import org.jpos.util.NameRegistrar;
-
-/**
- * Inspired from jpos original {@link org.jpos.q2.iso.OneShotChannelAdaptor}<BR>
- * 
- * New optional configuration element {@code <cnx-process-handling>} (default is
- * {@code false}) indicates if connection process should be handled so that,
- * when a connection attempt fails, a
- * {@code org.jpos.q2.iso.exception.ConnectionFailureException} is thrown to the
- * client. Note that this exception is a RuntimeException and may be thrown by
- * the {@code receive(...)} methods.<br>
- * 
- * @author dgrandemange
- * 
- */
-public class EnhancedOneShotChannelAdaptor extends QBeanSupport implements
-		EnhancedOneShotChannelAdaptorMBean, Channel {
-	Space<String, Object> sp;
-	String in, out;
-	long delay;
-	boolean cnxProcessHandling;
-	int maxConnections;
-	int maxConnectAttempts;
-	AtomicInteger cnxSuccessCounter;
-	AtomicInteger cnxFailedCounter;
-	private GenericObjectPool<ISOChannel> channelPool;
-	private ExecutorService executorSrv;
-	private Map<Thread, Future<ProcessRequestResult>> mapFutures = new HashMap<Thread, Future<ProcessRequestResult>>();
-	private Config channelPoolConfig;
-
-	protected class ISOChannelPoolFactory extends
-			BasePoolableObjectFactory<ISOChannel> {
-
-		private Element persist;
-		private QFactory factory;
-		private String name;
-		private String socketFactory;
-		private Log log;
-
-		public ISOChannelPoolFactory(QFactory factory, Element persist,
-				String name, String socketFactory, Log log) {
-			this.factory = factory;
-			this.persist = persist;
-			this.name = name;
-			this.socketFactory = socketFactory;
-			this.log = log;
-		}
-
-		@Override
-		public ISOChannel makeObject() throws Exception {
-			ISOChannel channel = initChannel();
-			getLog().debug(
-					String.format(
-							"channel '%s' initialized in pool factory makeObject()",
-							channel.getName()));
-			return channel;
-		}
-
-		@Override
-		public void destroyObject(ISOChannel channel) throws Exception {
-		}
-
-		private void addFilters(FilteredChannel channel, Element e,
-				QFactory fact) throws ConfigurationException {
-			for (Object o : e.getChildren("filter")) {
-				Element f = (Element) o;
-				String clazz = f.getAttributeValue("class");
-				ISOFilter filter = (ISOFilter) fact.newInstance(clazz);
-				fact.setLogger(filter, f);
-				fact.setConfiguration(filter, f);
-				String direction = f.getAttributeValue("direction");
-				if (direction == null)
-					channel.addFilter(filter);
-				else if ("incoming".equalsIgnoreCase(direction))
-					channel.addIncomingFilter(filter);
-				else if ("outgoing".equalsIgnoreCase(direction))
-					channel.addOutgoingFilter(filter);
-				else if ("both".equalsIgnoreCase(direction)) {
-					channel.addIncomingFilter(filter);
-					channel.addOutgoingFilter(filter);
-				}
-			}
-		}
-
-		private ISOChannel initChannel() throws ConfigurationException {
-			ISOChannel channel;
-
-			Element persist = getPersist();
-			Element e = persist.getChild("channel");
-			if (e == null)
-				throw new ConfigurationException("channel element missing");
-
-			channel = newChannel(e, getFactory());
-
-			String socketFactoryString = getSocketFactory();
-			if (socketFactoryString != null
-					&& channel instanceof FactoryChannel) {
-				ISOClientSocketFactory sFac = (ISOClientSocketFactory) getFactory()
-						.newInstance(socketFactoryString);
-				if (sFac != null && sFac instanceof LogSource) {
-					((LogSource) sFac).setLogger(log.getLogger(), getName()
-							+ ".socket-factory");
-				}
-				getFactory().setConfiguration(sFac, e);
-				((FactoryChannel) channel).setSocketFactory(sFac);
-			}
-
-			return channel;
-		}
-
-		private ISOChannel newChannel(Element e, QFactory f)
-				throws ConfigurationException {
-			String channelName = e.getAttributeValue("class");
-			if (channelName == null)
-				throw new ConfigurationException(
-						"class attribute missing from channel element.");
-
-			String packagerName = e.getAttributeValue("packager");
-
-			ISOChannel channel = (ISOChannel) f.newInstance(channelName);
-			ISOPackager packager;
-			if (packagerName != null) {
-				packager = (ISOPackager) f.newInstance(packagerName);
-				getLog().debug(
-						String.format(
-								"package '%s' created in pool factory newChannel()",
-								packagerName));
-				channel.setPackager(packager);
-				f.setConfiguration(packager, e);
-			}
-			QFactory.invoke(channel, "setHeader", e.getAttributeValue("header"));
-			f.setLogger(channel, e);
-			f.setConfiguration(channel, e);
-
-			if (channel instanceof FilteredChannel) {
-				addFilters((FilteredChannel) channel, e, f);
-			}
-
-			return channel;
-		}
-
-		public Element getPersist() {
-			return persist;
-		}
-
-		public QFactory getFactory() {
-			return factory;
-		}
-
-		public String getName() {
-			return name;
-		}
-
-		public String getSocketFactory() {
-			return socketFactory;
-		}
-
-	}
-
-	protected class ProcessRequestResult {
-		private ISOMsg request;
-		private ISOMsg response;
-		private Exception exception;
-
-		public ProcessRequestResult(ISOMsg request) {
-			super();
-			this.request = request;
-		}
-
-		public ISOMsg getRequest() {
-			return request;
-		}
-
-		public void setRequest(ISOMsg request) {
-			this.request = request;
-		}
-
-		public ISOMsg getResponse() {
-			return response;
-		}
-
-		public void setResponse(ISOMsg response) {
-			this.response = response;
-		}
-
-		public Exception getException() {
-			return exception;
-		}
-
-		public void setException(Exception exception) {
-			this.exception = exception;
-		}
-
-	}
-
-	public EnhancedOneShotChannelAdaptor() {
-		super();
-	}
-
-	@SuppressWarnings("unchecked")
-	private Space<String, Object> grabSpace(Element e) {
-		return (Space<String, Object>) SpaceFactory.getSpace(e != null ? e
-				.getText() : "");
-	}
-
-	public void initAdaptor() {
-		cnxSuccessCounter = new AtomicInteger(0);
-		cnxFailedCounter = new AtomicInteger(0);
-
-		Element persist = getPersist();
-
-		sp = grabSpace(persist.getChild("space"));
-		in = persist.getChildTextTrim("in");
-		out = persist.getChildTextTrim("out");
-		delay = 5000;
-
-		String sCnxProcessHandling = persist
-				.getChildTextTrim("cnx-process-handling");
-		if (null != sCnxProcessHandling) {
-			cnxProcessHandling = Boolean.parseBoolean(sCnxProcessHandling);
-		} else {
-			cnxProcessHandling = false;
-		}
-
-		String s = persist.getChildTextTrim("max-connections");
-		maxConnections = (s != null) ? Integer.parseInt(s) : 1; // reasonable
-																// default
-		s = persist.getChildTextTrim("max-connect-attempts");
-		maxConnectAttempts = (s != null) ? Integer.parseInt(s) : 15; // reasonable
-		// default
-		channelPoolConfig = new Config();
-		initChannelPoolConfiguration(channelPoolConfig, maxConnections, persist);
-	}
-
-	public void startService() throws Exception {
-		String step = "start service";
-
-		try {
-			initAdaptor();
-
-			ISOChannelPoolFactory poolFactory = new ISOChannelPoolFactory(
-					getFactory(), getPersist(), getName(), getSocketFactory(),
-					log) {
-
-				@Override
-				public void passivateObject(ISOChannel obj) {
-					if (null == obj) {
-						return;
-					}
-
-					if (obj instanceof ISOChannel) {
-						ISOChannel channel = (ISOChannel) obj;
-						try {
-							channel.disconnect();
-						} catch (IOException e) {
-							getLog().warn(
-									String.format(
-											"%s : error while attempting to passivate channel '%s' in channel pool. %s",
-											this.getName(), channel.getName(),
-											e.getMessage()));
-						}
-					}
-				}
-
-			};
-
-			channelPool = new GenericObjectPool<ISOChannel>(poolFactory,
-					channelPoolConfig);
-
-			executorSrv = Executors.newCachedThreadPool();
-			executorSrv
-					.submit(new PollForRequestsInSpaceTask(this, channelPool));
-
-			NameRegistrar.register(getName(), this);
-		} catch (Exception e) {
-			getLog().error(
-					String.format("%s : [%s] an error ocurred. %s",
-							this.getName(), step, e.getMessage()));
-
-			try {
-				closeChannelPool(step);
-			} catch (Exception e2) {
-				getLog().error(
-						String.format(
-								"%s : [%s] error while attempting to close channel pool. %s",
-								this.getName(), step, e.getMessage()));
-			}
-
-			try {
-				shutdownExecutorService(step);
-			} catch (Exception e2) {
-				getLog().error(
-						String.format(
-								"%s : [%s] error while attempting to shutdown executor service. %s",
-								this.getName(), step, e.getMessage()));
-			}
-
-			throw e;
-		}
-	}
-
-	public void stopService() throws Exception {
-		String step = "stop service";
-		try {
-			try {
-				closeChannelPool(step);
-			} catch (Exception e2) {
-				getLog().error(
-						String.format(
-								"%s : [%s] error while attempting to close channel pool. %s",
-								this.getName(), step, e2.getMessage()));
-			}
-
-			try {
-				shutdownExecutorService(step);
-			} catch (Exception e2) {
-				getLog().error(
-						String.format(
-								"%s : [%s] error while attempting to shutdown executor service. %s",
-								this.getName(), step, e2.getMessage()));
-			}
-		} finally {
-			NameRegistrar.unregister(getName());
-			NameRegistrar.unregister("channel." + getName());
-		}
-
-	}
-
-	protected void initChannelPoolConfiguration(Config poolConfig,
-			int _maxConnections, Element persist) {
-		poolConfig.maxActive = _maxConnections;
-
-		BigDecimal maxConnectionsBigD = new BigDecimal(_maxConnections);
-		poolConfig.maxIdle = maxConnectionsBigD.divide(new BigDecimal("2"),
-				BigDecimal.ROUND_UP).intValue();
-		poolConfig.minIdle = maxConnectionsBigD.divide(new BigDecimal("4"),
-				BigDecimal.ROUND_UP).intValue();
-
-		poolConfig.minEvictableIdleTimeMillis = 120000;
-		poolConfig.numTestsPerEvictionRun = _maxConnections;
-		poolConfig.timeBetweenEvictionRunsMillis = 60000;
-
-		poolConfig.whenExhaustedAction = GenericObjectPool.WHEN_EXHAUSTED_FAIL;
-
-		poolConfig.testOnBorrow = false;
-		poolConfig.testOnReturn = false;
-		poolConfig.testWhileIdle = false;
-	}
-
-	protected void closeChannelPool(String step) throws Exception {
-		if (channelPool != null) {
-			channelPool.close();
-			channelPool = null;
-		}
-	}
-
-	protected void shutdownExecutorService(String step) throws Exception {
-		if (executorSrv != null) {
-			executorSrv.shutdownNow();
-
-			boolean awaitTermination = executorSrv.awaitTermination(30,
-					TimeUnit.SECONDS);
-
-			if (!awaitTermination) {
-				getLog().error(
-						String.format(
-								"%s : [%s] error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
-								this.getName(), step));
-				throw new Exception(
-						String.format(
-								"%s : error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
-								this.getName()));
-			} else {
-				executorSrv = null;
-			}
-		}
-	}
-
-	/**
-	 * Queue a message to be transmitted by this adaptor
-	 * 
-	 * @param m
-	 *            message to send
-	 */
-	public void send(ISOMsg m) {
-		send(m, -1);
-	}
-
-	/**
-	 * Queue a message to be transmitted by this adaptor
-	 * 
-	 * @param m
-	 *            message to send
-	 * @param timeout
-	 *            in millis
-	 */
-	public void send(ISOMsg m, long timeout) {
-		mapFutures.put(Thread.currentThread(), null);
-		ProcessRequestTask task = new ProcessRequestTask(this, channelPool, m,
-				isConnectionProcessHandled());
-		Future<ProcessRequestResult> future = executorSrv.submit(task);
-		mapFutures.put(Thread.currentThread(), future);
-		Thread.yield();
-	}
-
-	/**
-	 * Receive message
-	 */
-	public ISOMsg receive() {
-		return receive(-1);
-	}
-
-	/**
-	 * Receive message
-	 * 
-	 * @param timeout
-	 *            time to wait for an incoming message
-	 */
-	public ISOMsg receive(long timeout) {
-		ProcessRequestResult conversationResult;
-		Future<ProcessRequestResult> future = mapFutures.get(Thread
-				.currentThread());
-
-		if (future == null) {
-			getLog().error(
-					String.format(
-							"%s : cannot retrieve task future for thread '%s'",
-							this.getName(), Thread.currentThread()));
-			return null;
-		}
-
-		try {
-			if (timeout >= 0L) {
-				conversationResult = future.get(timeout, TimeUnit.MILLISECONDS);
-			} else {
-				conversationResult = future.get();
-			}
-		} catch (TimeoutException e) {
-			future.cancel(true);
-			getLog().warn(
-					String.format(
-							"%s : timeout while waiting for send/receive task result",
-							this.getName()));
-			return null;
-		} catch (InterruptedException e) {
-			getLog().error(
-					String.format(
-							"%s : exception occurred while waiting for send/receive task result. %s",
-							this.getName(), e.getMessage()));
-			return null;
-		} catch (ExecutionException e) {
-			getLog().error(
-					String.format(
-							"%s : exception occurred while waiting for send/receive task result. %s",
-							this.getName(), e.getMessage()));
-			return null;
-		}
-
-		Exception exception = conversationResult.exception;
-		if (exception != null) {
-			if (exception instanceof ConnectionFailureException) {
-				throw (ConnectionFailureException) exception;
-			} else {
-				getLog().error(
-						String.format(
-								"%s : exception occurred in send/receive task. %s",
-								this.getName(), exception.getMessage()));
-				return null;
-			}
-		} else {
-			return conversationResult.getResponse();
-		}
-	}
-
-	public class ProcessRequestTask implements Callable<ProcessRequestResult> {
-		GenericObjectPool<ISOChannel> channelPool;
-		ISOMsg request;
-		EnhancedOneShotChannelAdaptor parent;
-		private boolean handleConErr;
-
-		public ProcessRequestTask(EnhancedOneShotChannelAdaptor parent,
-				GenericObjectPool<ISOChannel> channelPool, ISOMsg request,
-				boolean handleConErr) {
-			this.parent = parent;
-			this.channelPool = channelPool;
-			this.request = request;
-			this.handleConErr = handleConErr;
-		}
-
-		public ProcessRequestResult call() throws Exception {
-			ProcessRequestResult convRes = new ProcessRequestResult(request);
-			ISOChannel channel = null;
-			int[] handbackFields = cfg.getInts("handback-field");
-
-			try {
-				try {
-					channel = channelPool.borrowObject();
-				} catch (NoSuchElementException e) {
-					// Pool is exhausted
-					getLog().warn(
-							String.format(
-									"%s : cannot borrow channel from channel pool. Pool is exhausted (max active configured=%d)",
-									parent.getName(),
-									channelPool.getMaxActive()));
-				} catch (Exception e) {
-					getLog().error(
-							String.format(
-									"%s : cannot borrow channel from channel pool. %s",
-									parent.getName()), e.getMessage());
-				}
-
-				if (channel != null) {
-
-					ISOMsg handBack = null;
-					if (handbackFields.length > 0)
-						handBack = (ISOMsg) request.clone(handbackFields);
-
-					for (int i = 0; !channel.isConnected()
-							&& i < maxConnectAttempts; i++) {
-						try {
-							channel.reconnect();
-							if (!channel.isConnected()) {
-								ISOUtil.sleep(100L);
-							}
-						} catch (IOException e) {
-							cnxFailedCounter.incrementAndGet();
-							if (this.handleConErr) {
-								convRes.setException(new ConnectionFailureException(
-										e));
-							}
-							throw e;
-						}
-					}
-					if (channel.isConnected()) {
-						cnxSuccessCounter.incrementAndGet();
-
-						channel.send(request);
-						Thread.yield();
-						ISOMsg response = channel.receive();
-						convRes.setResponse(response);
-						channel.disconnect();
-
-						if (handBack != null) {
-							response.merge(handBack);
-						}
-					} else {
-						cnxFailedCounter.incrementAndGet();
-						if (this.handleConErr) {
-							convRes.setException(new ConnectionFailureException());
-						}
-					}
-				}
-			} catch (Exception e) {
-				if (channel != null) {
-					getLog().warn(
-							String.format("%s : %s", parent.getName(),
-									e.getMessage()));
-				} else {
-					getLog().warn(
-							String.format("%s : %s", parent.getName(),
-									e.getMessage()));
-				}
-			} finally {
-				if (channel != null) {
-					try {
-						channel.disconnect();
-					} catch (Exception e) {
-						getLog().debug(
-								String.format("%s : %s", channel.getName(),
-										e.getMessage()));
-					}
-					channelPool.returnObject(channel);
-				}
-			}
-
-			return convRes;
-		}
-
-	}
-
-	public class PollForRequestsInSpaceTask implements Callable<Void> {
-		private EnhancedOneShotChannelAdaptor parent;
-		private ExecutorService prstExecutorSrv = new ThreadPoolExecutor(
-				maxConnections, Integer.MAX_VALUE, 60, TimeUnit.SECONDS,
-				new SynchronousQueue<Runnable>()) {
-
-			protected void afterExecute(Runnable r, Throwable t) {
-				super.afterExecute(r, t);
-
-				if (t != null) {
-					getLog().warn(
-							String.format(
-									"%s : an exception has caused execution of ProcessRequestTask to terminate. %s",
-									parent.getName(), t.getMessage()));
-					return;
-				}
-
-				if (r instanceof FutureTask) {
-					@SuppressWarnings("unchecked")
-					FutureTask<ProcessRequestResult> futureTask = (FutureTask<ProcessRequestResult>) r;
-
-					try {
-						ProcessRequestResult cvRes = futureTask.get();
-
-						ISOMsg response = cvRes.getResponse();
-						if (response != null) {
-							sp.out(out, response);
-						}
-
-						Exception exception = cvRes.getException();
-						if (exception != null) {
-							getLog().warn(
-									String.format("%s : %s", parent.getName(),
-											exception.getMessage()));
-						}
-					} catch (InterruptedException e) {
-						getLog().warn(
-								String.format("%s : %s", parent.getName(),
-										e.getMessage()));
-					} catch (ExecutionException e) {
-						getLog().warn(
-								String.format("%s : %s", parent.getName(),
-										e.getMessage()));
-					}
-				}
-			}
-		};
-
-		public PollForRequestsInSpaceTask(EnhancedOneShotChannelAdaptor parent,
-				GenericObjectPool<ISOChannel> channelPool) {
-			super();
-			this.parent = parent;
-		}
-
-		public Void call() {
-			while (running()) {
-				try {
-					Object o = sp.in(in, delay);
-					if (o instanceof ISOMsg) {
-						ISOMsg request = (ISOMsg) o;
-						ProcessRequestTask task = new ProcessRequestTask(
-								parent, channelPool, request, false);
-						prstExecutorSrv.submit(task);
-					}
-				} catch (Exception e) {
-					getLog().warn(e.getMessage());
-					ISOUtil.sleep(1000);
-				} finally {
-				}
-			}
-
-			this.prstExecutorSrv.shutdownNow();
-			try {
-				boolean awaitTermination = this.prstExecutorSrv
-						.awaitTermination(30, TimeUnit.SECONDS);
-
-				if (!awaitTermination) {
-					getLog().warn(
-							String.format(
-									"%s : [PollingTask] error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
-									parent.getName()));
-				}
-			} catch (InterruptedException e) {
-			}
-
-			return null;
-		}
-	}
-
-	public synchronized void setHost(String host) {
-		setProperty(getProperties("channel"), "host", host);
-		setModified(true);
-	}
-
-	public String getHost() {
-		return getProperty(getProperties("channel"), "host");
-	}
-
-	public synchronized void setPort(int port) {
-		setProperty(getProperties("channel"), "port", Integer.toString(port));
-		setModified(true);
-	}
-
-	public int getPort() {
-		int port = 0;
-		try {
-			port = Integer.parseInt(getProperty(getProperties("channel"),
-					"port"));
-		} catch (NumberFormatException e) {
-			getLog().error(
-					String.format("%s : %s", this.getName(), e.getMessage()));
-		}
-		return port;
-	}
-
-	public synchronized void setSocketFactory(String sFac) {
-		setProperty(getProperties("channel"), "socketFactory", sFac);
-		setModified(true);
-	}
-
-	public String getSocketFactory() {
-		return getProperty(getProperties("channel"), "socketFactory");
-	}
-
-	private boolean isConnectionProcessHandled() {
-		return cnxProcessHandling;
-	}
-
-	public int getCnxSuccessCounter() {
-		return cnxSuccessCounter.get();
-	}
-
-	public int getCnxFailedCounter() {
-		return cnxFailedCounter.get();
-	}
-
-	public void resetCounters() {
-		cnxSuccessCounter.set(0);
-		cnxFailedCounter.set(0);
-	}
-
-	public int getChannelPoolNumActive() {
-		if (channelPool == null) {
-			return -1;
-		}
-
-		return channelPool.getNumActive();
-	}
-
-	public int getChannelPoolNumIdle() {
-		if (channelPool == null) {
-			return -1;
-		}
-
-		return channelPool.getNumIdle();
-	}
-
-	public int getChannelPoolMaxActive() {
-		if (channelPool == null) {
-			return -1;
-		}
-
-		return channelPool.getMaxActive();
-	}
-
-	public int getChannelPoolMaxIdle() {
-		if (channelPool == null) {
-			return -1;
-		}
-
-		return channelPool.getMaxIdle();
-	}
-
-	public int getChannelPoolMinIdle() {
-		if (channelPool == null) {
-			return -1;
-		}
-
-		return channelPool.getMinIdle();
-	}
-}
+package org.jpos.q2.iso;
+
+import java.io.IOException;
+import java.math.BigDecimal;
+import java.net.Socket;
+import java.net.SocketTimeoutException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.FutureTask;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.FactoryChannel;
+import org.jpos.iso.FilteredChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOClientSocketFactory;
+import org.jpos.iso.ISOFilter;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOPackager;
+import org.jpos.iso.ISOUtil;
+import org.jpos.q2.QBeanSupport;
+import org.jpos.q2.QFactory;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+import org.jpos.q2.iso.exception.RateLimitExceededException;
+import org.jpos.q2.iso.health.HealthProbe;
+import org.jpos.q2.iso.lane.Lane;
+import org.jpos.q2.iso.lane.LaneScheduler;
+import org.jpos.q2.iso.limit.GradientLimiter;
+import org.jpos.q2.iso.limit.TokenBucket;
+import org.jpos.q2.iso.metrics.LatencyHistogram;
+import org.jpos.q2.iso.multiplex.Multiplexer;
+import org.jpos.q2.iso.pool.ObjectPoolConfig;
+import org.jpos.q2.iso.pool.PoolableFactory;
+import org.jpos.q2.iso.pool.StripedObjectPool;
+import org.jpos.space.LocalSpace;
+import org.jpos.space.Space;
+import org.jpos.space.SpaceFactory;
+import org.jpos.space.SpaceListener;
+import org.jpos.util.Log;
+import org.jpos.util.LogSource;
+import org.jpos.util.NameRegistrar;
+
+/**
+ * Inspired from jpos original {@link org.jpos.q2.iso.OneShotChannelAdaptor}<BR>
+ * 
+ * New optional configuration element {@code <cnx-process-handling>} (default is
+ * {@code false}) indicates if connection process should be handled so that,
+ * when a connection attempt fails, a
+ * {@code org.jpos.q2.iso.exception.ConnectionFailureException} is thrown to the
+ * client. Note that this exception is a RuntimeException and may be thrown by
+ * the {@code receive(...)} methods.<br>
+ * 
+ * Conversations may be submitted through {@link #submit(ISOMsg, long)}, which
+ * returns a dedicated future per request. The {@code send(...)}/
+ * {@code receive(...)} pair of the {@code Channel} interface is a thin
+ * compatibility layer on top of it, correlating a send with the next receive
+ * performed by the same thread.<br>
+ * 
+ * New optional configuration element {@code <connection-reuse>} (default is
+ * {@code false}) keeps pooled channels connected once their conversation is
+ * over, so that subsequent conversations reuse the connection instead of
+ * paying a new TCP (and TLS) handshake. Only suitable for hosts accepting
+ * sequential requests on a single connection. On borrow, a connection is
+ * checked to be still alive and is dropped if idle for more than
+ * {@code <connection-max-idle>} millis (default is 30000) or open for more
+ * than {@code <connection-max-lifetime>} millis (default is 300000). A zero
+ * value disables the corresponding limit.<br>
+ * 
+ * A conversation given a timeout (see {@link #submit(ISOMsg, long)} and
+ * {@link #send(ISOMsg, long)}) is bound to its deadline all along : it is
+ * dropped if still queued when deadline is reached, stops connection attempts
+ * and does not send once deadline is reached, and waits for the response no
+ * longer than the remaining time.<br>
+ * 
+ * New optional configuration element {@code <executor>} selects how
+ * conversations are run : {@code cached} (default) runs each one on a pooled
+ * platform thread, {@code virtual} runs each one on its own virtual thread
+ * (requires Java 21 or later), so that many in-flight conversations blocked on
+ * socket I/O do not cost as many OS threads.<br>
+ * Prior to Java 24, a virtual thread blocked inside a {@code synchronized}
+ * block pins its carrier thread, and {@link BaseChannel} sends and receives
+ * under monitors : every conversation waiting for its response then holds a
+ * carrier, so that no more conversations than carriers (as many as cores by
+ * default) are in flight at once. Virtual mode is meant for Java 24 or later
+ * (JEP 491), a warning is logged when it is started on an earlier JVM.<br>
+ * 
+ * Requests taken from the {@code <in>} space queue are run by at most
+ * {@code <max-connections>} workers, backed by a work queue of
+ * {@code <queue-size>} requests (default is {@code <max-connections>}). While
+ * both are full, the space is no longer polled, so that a burst stays queued
+ * in the space instead of being dropped.<br>
+ * 
+ * New optional configuration element {@code <space-consumption>} selects how
+ * the space is consumed : {@code poll} (default) blocks on {@code sp.in(...)}
+ * one request at a time, {@code listener} (local spaces only) is woken up by a
+ * space listener and drains up to {@code <space-batch-size>} requests (default
+ * is 16) per wake up. {@code <space-pollers>} (default is 1) sets the number
+ * of threads consuming the space.<br>
+ * 
+ * New optional configuration element {@code <warm-connections>} (default is
+ * 0, disabled) keeps as many channels pre-connected in the channel pool,
+ * connected in background (see {@link #startWarmer()}), so that conversations
+ * do not wait for a TCP connect. A pre-connected channel still serves a single
+ * conversation, then gets closed and replaced. Pre-connected channels idle for
+ * more than {@code <connection-max-idle>} millis are replaced as well. Delay
+ * between two connection attempts of a conversation is set by
+ * {@code <connect-retry-delay>} (default is 100 millis).<br>
+ * 
+ * Channels are pooled in a {@link StripedObjectPool}. New optional
+ * configuration element {@code <pool-exhausted-action>} sets what a
+ * conversation does when {@code <max-connections>} channels are in use :
+ * {@code fail} (default) gives up at once, {@code wait} waits for a channel
+ * up to {@code <pool-max-wait>} millis (default is 1000) or to the
+ * conversation deadline, {@code fifo} does the same, channels being handed
+ * out in arrival order.<br>
+ * 
+ * The {@code <channel>} element is turned into a channel only once, pooled
+ * channels being cloned from this template : they share its packager,
+ * filters and socket factory, so these must be thread safe, as they are when
+ * a jPOS server shares them between its sessions. Optional configuration
+ * element {@code <channel-template>} set to {@code false} has each pooled
+ * channel built from configuration instead.<br>
+ * 
+ * Latencies of each conversation phase (queue wait, channel borrow, connect,
+ * send and receive) are recorded in {@link LatencyHistogram}s, exposed as
+ * MBean attributes, percentiles being read with
+ * {@link #getPhaseLatencyPercentile(String, double)}. Histograms cover the
+ * time since the last {@link #resetLatencies()}.<br>
+ * 
+ * New optional configuration element {@code <multiplexed>} (default is
+ * {@code false}) switches the adaptor to a pipelined mode, for hosts accepting
+ * several outstanding requests on one connection : up to
+ * {@code <max-connections>} persistent connections each carry up to
+ * {@code <max-outstanding>} concurrent requests (default is 100), a reader
+ * thread per connection matching responses back to their request by the MTI
+ * class and the {@code <key>} fields (default is {@code 41, 11}, as for a
+ * QMUX). A request given no timeout (e.g. taken from the {@code <in>} space
+ * queue) waits for its response up to {@code <multiplexed-timeout>} millis
+ * (default is 60000). The channel {@code timeout} property is ignored in this
+ * mode, connections being kept open while idle. See {@link Multiplexer}.<br>
+ * 
+ * New optional configuration element {@code <health-probe>} (default is
+ * {@code none}) has the remote endpoint probed in background every
+ * {@code <health-probe-interval>} millis (default is 5000), either by a TCP
+ * connect ({@code tcp}) or by an 0800 echo request ({@code echo}), so that
+ * {@link #isHealthy()} tells a {@link OneShotChannelPool} to route around this
+ * adaptor without customer transactions paying for the outage detection. See
+ * {@link HealthProbe}.<br>
+ * 
+ * New optional configuration element {@code <adaptive-limit>} (default is
+ * {@code false}) has the number of concurrent conversations adjusted to the
+ * remote host capacity, between {@code <min-connections>} (default is 1) and
+ * {@code <max-connections>}, starting from {@code <initial-connections>}
+ * (default is {@code <min-connections>}, so that the unloaded response time
+ * is learnt first) : the limit grows while response times stay within
+ * {@code <limit-tolerance>} times their baseline (default is 1.5), and shrinks
+ * when they rise beyond or conversations fail. A
+ * conversation over the limit is handled as if the channel pool were
+ * exhausted. Not applicable to the multiplexed mode. See
+ * {@link GradientLimiter}.<br>
+ * 
+ * New optional configuration element {@code <rate-limit>} (requests per
+ * second, default is 0, disabled) paces requests sent to the remote host, up
+ * to {@code <rate-limit-burst>} requests (default is 1) being let through at
+ * once after an idle period. Likewise, {@code <connect-rate-limit>} (default
+ * is 0, disabled) and {@code <connect-rate-limit-burst>} (default is 1) pace
+ * connection attempts. A request over the limit waits for its turn, up to its
+ * deadline, among at most {@code <rate-limit-queue-size>} waiting requests
+ * (default is 100) ; beyond, it is not sent and fails at once with a
+ * {@link RateLimitExceededException}. See {@link TokenBucket}.<br>
+ * 
+ * New optional configuration element {@code <priority-lanes>} runs
+ * conversations by priority, so that e.g. reversals and network messages do
+ * not queue behind authorizations during a spike. Each {@code <lane>} child,
+ * by decreasing priority, matches requests by MTI ({@code mtis} attribute)
+ * and/or by the value of a field ({@code field} and {@code values}
+ * attributes), reserves {@code reserved} channels (default is 0) that other
+ * lanes never use, and queues up to {@code queue-size} requests (default is
+ * 1000). Other requests go to the default lane, whose queue size is set by
+ * the {@code queue-size} attribute of {@code <priority-lanes>} (default is
+ * 1000). Conversations of a priority lane are not subject to the adaptive
+ * limit. Requests taken from the {@code <in>} space queue are scheduled the
+ * same way : space is polled even when the default lane is out of capacity,
+ * requests of a priority lane being dispatched at once (bounded by their lane
+ * queue only) while default lane requests beyond capacity are moved to the
+ * {@code <in>.deferred} space queue, to be dispatched first, in order, once
+ * capacity is available. When the adaptor stops, space requests not run yet
+ * (work queue, lane queues, then deferred requests) are pushed back to the
+ * head of the {@code <in>} space queue, in order. Not applicable to the
+ * multiplexed mode. See {@link LaneScheduler}.<br>
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class EnhancedOneShotChannelAdaptor extends QBeanSupport implements
+		EnhancedOneShotChannelAdaptorMBean, AsyncChannel, HealthAwareChannel {
+	public static final String EXECUTOR_CACHED = "cached";
+	public static final String EXECUTOR_VIRTUAL = "virtual";
+	public static final String SPACE_CONSUMPTION_POLL = "poll";
+	public static final String SPACE_CONSUMPTION_LISTENER = "listener";
+	public static final String PHASE_QUEUE_WAIT = "queue-wait";
+	public static final String PHASE_BORROW = "borrow";
+	public static final String PHASE_CONNECT = "connect";
+	public static final String PHASE_SEND = "send";
+	public static final String PHASE_RECEIVE = "receive";
+
+	/**
+	 * Upper bound (in millis) of the delay a poller backs off after
+	 * successive failures
+	 */
+	private static final long MAX_POLLER_BACKOFF = 1000L;
+
+	/**
+	 * Delay (in millis) between two borrow attempts of a conversation waiting
+	 * for a channel
+	 */
+	private static final long BORROW_RETRY_DELAY = 20L;
+
+	/**
+	 * Suffix of the space queue holding default lane requests taken from the
+	 * {@code <in>} queue while default lane is out of capacity
+	 */
+	private static final String DEFERRED_SUFFIX = ".deferred";
+
+	/**
+	 * Delay (in millis) between two attempts to dispatch deferred requests
+	 */
+	private static final long DEFERRED_RETRY_DELAY = 10L;
+
+	Space<String, Object> sp;
+	String in, out;
+	long delay;
+	boolean cnxProcessHandling;
+	boolean connectionReuse;
+	long connectionMaxIdle;
+	long connectionMaxLifetime;
+	String executorMode;
+	int maxConnections;
+	int maxConnectAttempts;
+	int queueSize;
+	String spaceConsumption;
+	int spaceBatchSize;
+	int spacePollers;
+	int warmConnections;
+	boolean channelTemplateEnabled;
+	long warmRefillInterval;
+	long connectRetryDelay;
+	boolean multiplexed;
+	int[] keyFields;
+	int maxOutstanding;
+	long multiplexedTimeout;
+	boolean adaptiveLimit;
+	int minConnections;
+	int initialConnections;
+	double limitTolerance;
+	double rateLimit;
+	int rateLimitBurst;
+	double connectRateLimit;
+	int connectRateLimitBurst;
+	int rateLimitQueueSize;
+	AtomicInteger cnxSuccessCounter;
+	AtomicInteger cnxFailedCounter;
+	AtomicInteger cnxReusedCounter;
+	AtomicInteger rateLimitedCounter;
+	private final LatencyHistogram queueWaitLatency = new LatencyHistogram();
+	private final LatencyHistogram borrowLatency = new LatencyHistogram();
+	private final LatencyHistogram connectLatency = new LatencyHistogram();
+	private final LatencyHistogram sendLatency = new LatencyHistogram();
+	private final LatencyHistogram receiveLatency = new LatencyHistogram();
+	private ISOChannelPoolFactory channelPoolFactory;
+	private StripedObjectPool<ISOChannel> channelPool;
+	private volatile ExecutorService executorSrv;
+	private ExecutorService pollerExecutorSrv;
+	private ScheduledExecutorService timeoutScheduler;
+	private ScheduledExecutorService warmerExecutorSrv;
+	private final AtomicBoolean refillPending = new AtomicBoolean(false);
+	private final ThreadLocal<CompletableFuture<ISOMsg>> pendingConversation = new ThreadLocal<CompletableFuture<ISOMsg>>();
+	private ObjectPoolConfig channelPoolConfig;
+	private volatile Multiplexer multiplexer;
+	private volatile HealthProbe healthProbe;
+	private volatile GradientLimiter concurrencyLimiter;
+	private volatile TokenBucket requestRateLimiter;
+	private volatile TokenBucket connectRateLimiter;
+	private volatile LaneScheduler laneScheduler;
+
+	protected class ISOChannelPoolFactory implements
+			PoolableFactory<ISOChannel> {
+
+		private Element persist;
+		private QFactory factory;
+		private String name;
+		private String socketFactory;
+		private Log log;
+		private final Map<ISOChannel, ConnectionUsage> connectionUsages = new ConcurrentHashMap<ISOChannel, ConnectionUsage>();
+
+		private volatile ISOChannel channelTemplate;
+
+		/**
+		 * Set while a conversation borrows a channel, so that a channel
+		 * created on its behalf is not connected in {@link #makeObject()}
+		 */
+		private final ThreadLocal<Boolean> conversationBorrow = new ThreadLocal<Boolean>();
+
+		public ISOChannelPoolFactory(QFactory factory, Element persist,
+				String name, String socketFactory, Log log) {
+			this.factory = factory;
+			this.persist = persist;
+			this.name = name;
+			this.socketFactory = socketFactory;
+			this.log = log;
+		}
+
+		@Override
+		public ISOChannel makeObject() throws Exception {
+			ISOChannel channel = initChannel();
+			getLog().debug(
+					String.format(
+							"channel '%s' initialized in pool factory makeObject()",
+							channel.getName()));
+
+			if ((warmConnections > 0) && (conversationBorrow.get() == null)) {
+				// Channel is added to the pool in background, pre-connect it
+				// so that conversations do not wait for a connection
+				try {
+					channel.connect();
+				} catch (IOException e) {
+					destroyObject(channel);
+					throw e;
+				}
+				connectionEstablished(channel);
+			}
+
+			return channel;
+		}
+
+		/**
+		 * Borrows a channel on behalf of a conversation
+		 * 
+		 * @param timeout
+		 *            maximum time (in millis) to wait for a channel when pool
+		 *            is exhausted
+		 */
+		public ISOChannel borrowForConversation(
+				StripedObjectPool<ISOChannel> pool, long timeout)
+				throws Exception {
+			conversationBorrow.set(Boolean.TRUE);
+			try {
+				return pool.borrowObject(timeout);
+			} finally {
+				conversationBorrow.remove();
+			}
+		}
+
+		public void activateObject(ISOChannel channel) throws Exception {
+		}
+
+		public void passivateObject(ISOChannel channel) throws Exception {
+		}
+
+		@Override
+		public void destroyObject(ISOChannel channel) throws Exception {
+			connectionUsages.remove(channel);
+			if (channel.isConnected()) {
+				try {
+					channel.disconnect();
+				} catch (IOException e) {
+					getLog().debug(
+							String.format("%s : %s", channel.getName(),
+									e.getMessage()));
+				}
+			}
+		}
+
+		/**
+		 * To be called once a pooled channel has been (re)connected
+		 * 
+		 * @param channel
+		 *            connected channel
+		 */
+		public void connectionEstablished(ISOChannel channel) {
+			connectionUsages.put(channel, new ConnectionUsage());
+		}
+
+		/**
+		 * To be called once a conversation ended on a connection kept open
+		 * 
+		 * @param channel
+		 *            connected channel
+		 */
+		public void connectionReleased(ISOChannel channel) {
+			ConnectionUsage usage = connectionUsages.get(channel);
+			if (usage != null) {
+				usage.lastUsedAt = System.currentTimeMillis();
+			}
+		}
+
+		/**
+		 * @param channel
+		 *            a connected channel
+		 * @return true if channel connection is alive and within configured
+		 *         idle and lifetime limits
+		 */
+		public boolean isConnectionReusable(ISOChannel channel) {
+			ConnectionUsage usage = connectionUsages.get(channel);
+			if (usage == null) {
+				return false;
+			}
+
+			long now = System.currentTimeMillis();
+			if ((connectionMaxLifetime > 0)
+					&& (now - usage.connectedAt > connectionMaxLifetime)) {
+				return false;
+			}
+			if ((connectionMaxIdle > 0)
+					&& (now - usage.lastUsedAt > connectionMaxIdle)) {
+				return false;
+			}
+
+			if (channel instanceof BaseChannel) {
+				return isAlive(((BaseChannel) channel).getSocket());
+			}
+
+			return true;
+		}
+
+		/**
+		 * Checks a socket has neither been closed by the remote peer nor
+		 * received unsolicited data while idle, by briefly peeking at it
+		 */
+		private boolean isAlive(Socket socket) {
+			if ((socket == null) || socket.isClosed()
+					|| socket.isInputShutdown() || socket.isOutputShutdown()) {
+				return false;
+			}
+
+			int soTimeout = -1;
+			try {
+				if (socket.getInputStream().available() > 0) {
+					return false;
+				}
+
+				soTimeout = socket.getSoTimeout();
+				socket.setSoTimeout(1);
+				// Either end of stream (closed by peer) or unsolicited data
+				socket.getInputStream().read();
+				return false;
+			} catch (SocketTimeoutException e) {
+				return true;
+			} catch (IOException e) {
+				return false;
+			} finally {
+				if (soTimeout >= 0) {
+					try {
+						socket.setSoTimeout(soTimeout);
+					} catch (IOException e) {
+						// Safe to ignore, connection is then dropped anyway
+					}
+				}
+			}
+		}
+
+		private void addFilters(FilteredChannel channel, Element e,
+				QFactory fact) throws ConfigurationException {
+			for (Object o : e.getChildren("filter")) {
+				Element f = (Element) o;
+				String clazz = f.getAttributeValue("class");
+				ISOFilter filter = (ISOFilter) fact.newInstance(clazz);
+				fact.setLogger(filter, f);
+				fact.setConfiguration(filter, f);
+				String direction = f.getAttributeValue("direction");
+				if (direction == null)
+					channel.addFilter(filter);
+				else if ("incoming".equalsIgnoreCase(direction))
+					channel.addIncomingFilter(filter);
+				else if ("outgoing".equalsIgnoreCase(direction))
+					channel.addOutgoingFilter(filter);
+				else if ("both".equalsIgnoreCase(direction)) {
+					channel.addIncomingFilter(filter);
+					channel.addOutgoingFilter(filter);
+				}
+			}
+		}
+
+		/**
+		 * Creates a channel from the channel template when enabled (see
+		 * {@link #getChannelTemplate()}), or else from configuration
+		 */
+		private ISOChannel initChannel() throws ConfigurationException {
+			if (channelTemplateEnabled) {
+				ISOChannel template = getChannelTemplate();
+				if (template instanceof BaseChannel) {
+					return (ISOChannel) ((BaseChannel) template).clone();
+				}
+			}
+
+			return buildChannel();
+		}
+
+		/**
+		 * @return a configured, never connected channel, built once, from
+		 *         which pooled channels are cloned. Clones share its packager,
+		 *         filters, header, configuration and socket factory, and only
+		 *         get their own connection state.
+		 */
+		private ISOChannel getChannelTemplate() throws ConfigurationException {
+			ISOChannel template = channelTemplate;
+			if (template == null) {
+				synchronized (this) {
+					template = channelTemplate;
+					if (template == null) {
+						template = buildChannel();
+						channelTemplate = template;
+					}
+				}
+			}
+			return template;
+		}
+
+		private ISOChannel buildChannel() throws ConfigurationException {
+			ISOChannel channel;
+
+			Element persist = getPersist();
+			Element e = persist.getChild("channel");
+			if (e == null)
+				throw new ConfigurationException("channel element missing");
+
+			channel = newChannel(e, getFactory());
+
+			String socketFactoryString = getSocketFactory();
+			if (socketFactoryString != null
+					&& channel instanceof FactoryChannel) {
+				ISOClientSocketFactory sFac = (ISOClientSocketFactory) getFactory()
+						.newInstance(socketFactoryString);
+				if (sFac != null && sFac instanceof LogSource) {
+					((LogSource) sFac).setLogger(log.getLogger(), getName()
+							+ ".socket-factory");
+				}
+				getFactory().setConfiguration(sFac, e);
+				((FactoryChannel) channel).setSocketFactory(sFac);
+			}
+
+			return channel;
+		}
+
+		private ISOChannel newChannel(Element e, QFactory f)
+				throws ConfigurationException {
+			String channelName = e.getAttributeValue("class");
+			if (channelName == null)
+				throw new ConfigurationException(
+						"class attribute missing from channel element.");
+
+			String packagerName = e.getAttributeValue("packager");
+
+			ISOChannel channel = (ISOChannel) f.newInstance(channelName);
+			ISOPackager packager;
+			if (packagerName != null) {
+				packager = (ISOPackager) f.newInstance(packagerName);
+				getLog().debug(
+						String.format(
+								"package '%s' created in pool factory newChannel()",
+								packagerName));
+				channel.setPackager(packager);
+				f.setConfiguration(packager, e);
+			}
+			QFactory.invoke(channel, "setHeader", e.getAttributeValue("header"));
+			f.setLogger(channel, e);
+			f.setConfiguration(channel, e);
+
+			if (channel instanceof FilteredChannel) {
+				addFilters((FilteredChannel) channel, e, f);
+			}
+
+			return channel;
+		}
+
+		public Element getPersist() {
+			return persist;
+		}
+
+		public QFactory getFactory() {
+			return factory;
+		}
+
+		public String getName() {
+			return name;
+		}
+
+		public String getSocketFactory() {
+			return socketFactory;
+		}
+
+	}
+
+	protected static class ConnectionUsage {
+		final long connectedAt;
+		volatile long lastUsedAt;
+
+		public ConnectionUsage() {
+			this.connectedAt = System.currentTimeMillis();
+			this.lastUsedAt = connectedAt;
+		}
+	}
+
+	protected class ProcessRequestResult {
+		private ISOMsg request;
+		private ISOMsg response;
+		private Exception exception;
+
+		public ProcessRequestResult(ISOMsg request) {
+			super();
+			this.request = request;
+		}
+
+		public ISOMsg getRequest() {
+			return request;
+		}
+
+		public void setRequest(ISOMsg request) {
+			this.request = request;
+		}
+
+		public ISOMsg getResponse() {
+			return response;
+		}
+
+		public void setResponse(ISOMsg response) {
+			this.response = response;
+		}
+
+		public Exception getException() {
+			return exception;
+		}
+
+		public void setException(Exception exception) {
+			this.exception = exception;
+		}
+
+	}
+
+	public EnhancedOneShotChannelAdaptor() {
+		super();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Space<String, Object> grabSpace(Element e) {
+		return (Space<String, Object>) SpaceFactory.getSpace(e != null ? e
+				.getText() : "");
+	}
+
+	public void initAdaptor() {
+		cnxSuccessCounter = new AtomicInteger(0);
+		cnxFailedCounter = new AtomicInteger(0);
+		cnxReusedCounter = new AtomicInteger(0);
+		rateLimitedCounter = new AtomicInteger(0);
+
+		Element persist = getPersist();
+
+		sp = grabSpace(persist.getChild("space"));
+		in = persist.getChildTextTrim("in");
+		out = persist.getChildTextTrim("out");
+		delay = 5000;
+
+		String sCnxProcessHandling = persist
+				.getChildTextTrim("cnx-process-handling");
+		if (null != sCnxProcessHandling) {
+			cnxProcessHandling = Boolean.parseBoolean(sCnxProcessHandling);
+		} else {
+			cnxProcessHandling = false;
+		}
+
+		String s = persist.getChildTextTrim("connection-reuse");
+		connectionReuse = (s != null) ? Boolean.parseBoolean(s) : false;
+		s = persist.getChildTextTrim("connection-max-idle");
+		connectionMaxIdle = (s != null) ? Long.parseLong(s) : 30000L;
+		s = persist.getChildTextTrim("connection-max-lifetime");
+		connectionMaxLifetime = (s != null) ? Long.parseLong(s) : 300000L;
+
+		s = persist.getChildTextTrim("executor");
+		executorMode = (s != null) ? s : EXECUTOR_CACHED;
+
+		s = persist.getChildTextTrim("max-connections");
+		maxConnections = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																// default
+		s = persist.getChildTextTrim("max-connect-attempts");
+		maxConnectAttempts = (s != null) ? Integer.parseInt(s) : 15; // reasonable
+		// default
+		s = persist.getChildTextTrim("queue-size");
+		queueSize = (s != null) ? Integer.parseInt(s) : maxConnections; // reasonable
+																		// default
+		s = persist.getChildTextTrim("space-consumption");
+		spaceConsumption = (s != null) ? s : SPACE_CONSUMPTION_POLL;
+		s = persist.getChildTextTrim("space-batch-size");
+		spaceBatchSize = (s != null) ? Integer.parseInt(s) : 16; // reasonable
+																	// default
+		s = persist.getChildTextTrim("space-pollers");
+		spacePollers = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																// default
+		s = persist.getChildTextTrim("warm-connections");
+		warmConnections = (s != null) ? Math.min(Integer.parseInt(s),
+				maxConnections) : 0;
+		s = persist.getChildTextTrim("warm-refill-interval");
+		warmRefillInterval = (s != null) ? Long.parseLong(s) : 1000L; // reasonable
+																		// default
+		s = persist.getChildTextTrim("channel-template");
+		channelTemplateEnabled = (s != null) ? Boolean.parseBoolean(s) : true;
+		s = persist.getChildTextTrim("connect-retry-delay");
+		connectRetryDelay = (s != null) ? Long.parseLong(s) : 100L; // reasonable
+																	// default
+		s = persist.getChildTextTrim("multiplexed");
+		multiplexed = (s != null) ? Boolean.parseBoolean(s) : false;
+		s = persist.getChildTextTrim("key");
+		keyFields = MessageKeys.parseFields((s != null) ? s
+				: Multiplexer.DEFAULT_KEY);
+		s = persist.getChildTextTrim("max-outstanding");
+		maxOutstanding = (s != null) ? Integer.parseInt(s) : 100; // reasonable
+																	// default
+		s = persist.getChildTextTrim("multiplexed-timeout");
+		multiplexedTimeout = (s != null) ? Long.parseLong(s) : 60000L; // reasonable
+																		// default
+		s = persist.getChildTextTrim("adaptive-limit");
+		adaptiveLimit = (s != null) ? Boolean.parseBoolean(s) : false;
+		s = persist.getChildTextTrim("min-connections");
+		minConnections = (s != null) ? Math.min(Integer.parseInt(s),
+				maxConnections) : 1; // reasonable default
+		s = persist.getChildTextTrim("initial-connections");
+		initialConnections = (s != null) ? Integer.parseInt(s)
+				: minConnections; // reasonable default
+		s = persist.getChildTextTrim("limit-tolerance");
+		limitTolerance = (s != null) ? Double.parseDouble(s) : 1.5d; // reasonable
+																		// default
+		s = persist.getChildTextTrim("rate-limit");
+		rateLimit = (s != null) ? Double.parseDouble(s) : 0d;
+		s = persist.getChildTextTrim("rate-limit-burst");
+		rateLimitBurst = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																// default
+		s = persist.getChildTextTrim("connect-rate-limit");
+		connectRateLimit = (s != null) ? Double.parseDouble(s) : 0d;
+		s = persist.getChildTextTrim("connect-rate-limit-burst");
+		connectRateLimitBurst = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																		// default
+		s = persist.getChildTextTrim("rate-limit-queue-size");
+		rateLimitQueueSize = (s != null) ? Integer.parseInt(s) : 100; // reasonable
+																		// default
+		if (multiplexed) {
+			// Multiplexed connections are persistent by nature, never pooled
+			warmConnections = 0;
+			adaptiveLimit = false;
+		}
+		channelPoolConfig = new ObjectPoolConfig();
+		initChannelPoolConfiguration(channelPoolConfig, maxConnections, persist);
+	}
+
+	public void startService() throws Exception {
+		String step = "start service";
+
+		try {
+			initAdaptor();
+
+			channelPoolFactory = new ISOChannelPoolFactory(getFactory(),
+					getPersist(), getName(), getSocketFactory(), log) {
+
+				@Override
+				public void activateObject(ISOChannel channel) {
+					if ((connectionReuse || (warmConnections > 0))
+							&& (null != channel)
+							&& channel.isConnected()
+							&& !isConnectionReusable(channel)) {
+						try {
+							channel.disconnect();
+						} catch (IOException e) {
+							getLog().debug(
+									String.format("%s : %s",
+											channel.getName(), e.getMessage()));
+						}
+					}
+				}
+
+				@Override
+				public void passivateObject(ISOChannel obj) {
+					if (null == obj) {
+						return;
+					}
+
+					if (connectionReuse && obj.isConnected()) {
+						connectionReleased(obj);
+						return;
+					}
+
+					if ((warmConnections > 0) && obj.isConnected()) {
+						// Pre-connected channel added to the pool
+						return;
+					}
+
+					if (obj instanceof ISOChannel) {
+						ISOChannel channel = (ISOChannel) obj;
+						try {
+							channel.disconnect();
+						} catch (IOException e) {
+							getLog().warn(
+									String.format(
+											"%s : error while attempting to passivate channel '%s' in channel pool. %s",
+											this.getName(), channel.getName(),
+											e.getMessage()));
+						}
+					}
+				}
+
+			};
+
+			try {
+				channelPool = new StripedObjectPool<ISOChannel>(getName(),
+						channelPoolFactory, channelPoolConfig);
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(e.getMessage(), e);
+			}
+
+			if (EXECUTOR_VIRTUAL.equals(executorMode)) {
+				executorSrv = newVirtualThreadExecutor("conversation");
+				warnIfCarriersPinned();
+			} else if (EXECUTOR_CACHED.equals(executorMode)) {
+				executorSrv = Executors.newCachedThreadPool();
+			} else {
+				throw new ConfigurationException(String.format(
+						"unknown executor '%s' (expecting '%s' or '%s')",
+						executorMode, EXECUTOR_CACHED, EXECUTOR_VIRTUAL));
+			}
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+					1, new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, getName() + "-timeout");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			scheduler.setRemoveOnCancelPolicy(true);
+			timeoutScheduler = scheduler;
+			if (warmConnections > 0) {
+				startWarmer();
+			}
+			if (multiplexed) {
+				multiplexer = newMultiplexer();
+			}
+			try {
+				if (adaptiveLimit) {
+					concurrencyLimiter = new GradientLimiter(
+							initialConnections, minConnections,
+							maxConnections, limitTolerance);
+				}
+				if (rateLimit > 0d) {
+					requestRateLimiter = new TokenBucket(rateLimit,
+							rateLimitBurst, rateLimitQueueSize);
+				}
+				if (connectRateLimit > 0d) {
+					connectRateLimiter = new TokenBucket(connectRateLimit,
+							connectRateLimitBurst, rateLimitQueueSize);
+				}
+			} catch (IllegalArgumentException e) {
+				throw new ConfigurationException(e.getMessage(), e);
+			}
+			Element lanesElement = getPersist().getChild("priority-lanes");
+			if ((lanesElement != null) && !multiplexed) {
+				laneScheduler = newLaneScheduler(lanesElement);
+			}
+			// Space polling keeps platform threads of its own, whatever the
+			// conversations executor
+			pollerExecutorSrv = Executors.newFixedThreadPool(spacePollers,
+					new ThreadFactory() {
+						private final AtomicInteger threadNumber = new AtomicInteger(
+								0);
+
+						public Thread newThread(Runnable r) {
+							return new Thread(r, getName() + "-space-poller-"
+									+ threadNumber.incrementAndGet());
+						}
+					});
+			PollForRequestsInSpaceTask pollingTask = new PollForRequestsInSpaceTask(
+					this, channelPool);
+			for (int i = 0; i < spacePollers; i++) {
+				pollerExecutorSrv.submit(pollingTask);
+			}
+
+			NameRegistrar.register(getName(), this);
+
+			healthProbe = HealthProbe.fromConfiguration(getName(),
+					getPersist(), this, getHost(), getPort(), getLog());
+			if (healthProbe != null) {
+				healthProbe.start(HealthProbe.intervalOf(getPersist()));
+			}
+		} catch (Exception e) {
+			getLog().error(
+					String.format("%s : [%s] an error ocurred. %s",
+							this.getName(), step, e.getMessage()));
+
+			stopHealthProbe();
+
+			try {
+				closeChannelPool(step);
+			} catch (Exception e2) {
+				getLog().error(
+						String.format(
+								"%s : [%s] error while attempting to close channel pool. %s",
+								this.getName(), step, e.getMessage()));
+			}
+
+			try {
+				shutdownExecutorService(step);
+			} catch (Exception e2) {
+				getLog().error(
+						String.format(
+								"%s : [%s] error while attempting to shutdown executor service. %s",
+								this.getName(), step, e.getMessage()));
+			}
+
+			throw e;
+		}
+	}
+
+	public void stopService() throws Exception {
+		String step = "stop service";
+		try {
+			stopHealthProbe();
+
+			try {
+				closeChannelPool(step);
+			} catch (Exception e2) {
+				getLog().error(
+						String.format(
+								"%s : [%s] error while attempting to close channel pool. %s",
+								this.getName(), step, e2.getMessage()));
+			}
+
+			try {
+				shutdownExecutorService(step);
+			} catch (Exception e2) {
+				getLog().error(
+						String.format(
+								"%s : [%s] error while attempting to shutdown executor service. %s",
+								this.getName(), step, e2.getMessage()));
+			}
+		} finally {
+			NameRegistrar.unregister(getName());
+			NameRegistrar.unregister("channel." + getName());
+		}
+
+	}
+
+	/**
+	 * Builds the priority lanes configured under {@code <priority-lanes>}
+	 */
+	protected LaneScheduler newLaneScheduler(Element e)
+			throws ConfigurationException {
+		List<Lane> lanes = new ArrayList<Lane>();
+		try {
+			for (Object o : e.getChildren("lane")) {
+				Element l = (Element) o;
+				String name = l.getAttributeValue("name");
+				if (name == null) {
+					throw new ConfigurationException(
+							"name attribute missing from lane element");
+				}
+				String s = l.getAttributeValue("field");
+				int field = (s != null) ? Integer.parseInt(s) : 0;
+				s = l.getAttributeValue("reserved");
+				int reserved = (s != null) ? Integer.parseInt(s) : 0;
+				s = l.getAttributeValue("queue-size");
+				int laneQueueSize = (s != null) ? Integer.parseInt(s) : 1000; // reasonable
+																				// default
+				lanes.add(new Lane(name, l.getAttributeValue("mtis"), field, l
+						.getAttributeValue("values"), reserved, laneQueueSize));
+			}
+			String s = e.getAttributeValue("queue-size");
+			int defaultQueueSize = (s != null) ? Integer.parseInt(s) : 1000; // reasonable
+																				// default
+			return new LaneScheduler(getName(), lanes, maxConnections,
+					defaultQueueSize, getLog());
+		} catch (IllegalArgumentException ex) {
+			throw new ConfigurationException(ex.getMessage(), ex);
+		}
+	}
+
+	protected void stopHealthProbe() {
+		HealthProbe probe = healthProbe;
+		if (probe != null) {
+			probe.stop();
+			healthProbe = null;
+		}
+	}
+
+	protected void initChannelPoolConfiguration(ObjectPoolConfig poolConfig,
+			int _maxConnections, Element persist) {
+		poolConfig.maxActive = _maxConnections;
+
+		BigDecimal maxConnectionsBigD = new BigDecimal(_maxConnections);
+		poolConfig.maxIdle = maxConnectionsBigD.divide(new BigDecimal("2"),
+				BigDecimal.ROUND_UP).intValue();
+		poolConfig.minIdle = maxConnectionsBigD.divide(new BigDecimal("4"),
+				BigDecimal.ROUND_UP).intValue();
+
+		poolConfig.minEvictableIdleTimeMillis = 120000;
+		poolConfig.timeBetweenEvictionRunsMillis = 60000;
+
+		String s = persist.getChildTextTrim("pool-exhausted-action");
+		poolConfig.whenExhaustedAction = (s != null) ? s
+				: StripedObjectPool.WHEN_EXHAUSTED_FAIL;
+		s = persist.getChildTextTrim("pool-max-wait");
+		poolConfig.maxWait = (s != null) ? Long.parseLong(s) : 1000L; // reasonable
+																		// default
+
+		if (warmConnections > 0) {
+			// Pre-connected channels kept idle, see startWarmer()
+			poolConfig.minIdle = warmConnections;
+			poolConfig.maxIdle = Math.max(poolConfig.maxIdle, warmConnections);
+		}
+
+		if ((connectionReuse || (warmConnections > 0))
+				&& (connectionMaxIdle > 0)) {
+			// Idle connections get closed by the evictor
+			poolConfig.minEvictableIdleTimeMillis = connectionMaxIdle;
+			poolConfig.timeBetweenEvictionRunsMillis = Math.min(
+					poolConfig.timeBetweenEvictionRunsMillis,
+					connectionMaxIdle);
+		}
+	}
+
+	/**
+	 * Creates the multiplexer of the {@code <multiplexed>} mode, its
+	 * connections being created by the channel pool factory and reporting to
+	 * the adaptor counters and latency histograms
+	 */
+	protected Multiplexer newMultiplexer() throws Exception {
+		return new Multiplexer(getName(), channelPoolFactory, maxConnections,
+				maxOutstanding, keyFields, new Multiplexer.Listener() {
+
+					public void connected(ISOChannel channel, long startNanos) {
+						connectLatency.recordSince(startNanos);
+						cnxSuccessCounter.incrementAndGet();
+					}
+
+					public void connectFailed(ISOChannel channel, Exception e) {
+						cnxFailedCounter.incrementAndGet();
+						getLog().warn(
+								String.format(
+										"%s : multiplexed connection failed. %s",
+										getName(), e.getMessage()));
+					}
+
+					public void sent(long startNanos) {
+						sendLatency.recordSince(startNanos);
+					}
+
+					public void responseReceived(long sentNanos) {
+						receiveLatency.recordSince(sentNanos);
+					}
+
+					public void unmatched(ISOMsg response) {
+						getLog().warn(
+								String.format(
+										"%s : response matches no outstanding request, dropped",
+										getName()), response);
+					}
+				});
+	}
+
+	protected void closeChannelPool(String step) throws Exception {
+		if (multiplexer != null) {
+			multiplexer.close();
+			multiplexer = null;
+		}
+
+		if (channelPool != null) {
+			channelPool.close();
+			channelPool = null;
+		}
+	}
+
+	protected void shutdownExecutorService(String step) throws Exception {
+		if (timeoutScheduler != null) {
+			timeoutScheduler.shutdownNow();
+			timeoutScheduler = null;
+		}
+
+		if (warmerExecutorSrv != null) {
+			warmerExecutorSrv.shutdownNow();
+			warmerExecutorSrv = null;
+		}
+
+		if (pollerExecutorSrv != null) {
+			pollerExecutorSrv.shutdownNow();
+			pollerExecutorSrv = null;
+		}
+
+		if (executorSrv != null) {
+			executorSrv.shutdownNow();
+
+			boolean awaitTermination = executorSrv.awaitTermination(30,
+					TimeUnit.SECONDS);
+
+			if (!awaitTermination) {
+				getLog().error(
+						String.format(
+								"%s : [%s] error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
+								this.getName(), step));
+				throw new Exception(
+						String.format(
+								"%s : error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
+								this.getName()));
+			} else {
+				executorSrv = null;
+			}
+		}
+	}
+
+	/**
+	 * Starts the background task keeping {@code <warm-connections>}
+	 * pre-connected channels idle in the channel pool<BR>
+	 * Pool is refilled every {@code <warm-refill-interval>} millis, and as soon
+	 * as a warm channel has been used up.
+	 */
+	protected void startWarmer() {
+		warmerExecutorSrv = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, getName() + "-warmer");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		warmerExecutorSrv.scheduleWithFixedDelay(new Runnable() {
+			public void run() {
+				refillWarmPool();
+			}
+		}, 0L, warmRefillInterval, TimeUnit.MILLISECONDS);
+	}
+
+	/**
+	 * Asks the warmer to refill the pool, unless a refill is pending already
+	 */
+	protected void requestWarmPoolRefill() {
+		ScheduledExecutorService warmer = warmerExecutorSrv;
+		if ((warmer != null) && refillPending.compareAndSet(false, true)) {
+			try {
+				warmer.execute(new Runnable() {
+					public void run() {
+						refillWarmPool();
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				refillPending.set(false);
+			}
+		}
+	}
+
+	private void refillWarmPool() {
+		refillPending.set(false);
+		StripedObjectPool<ISOChannel> pool = channelPool;
+		try {
+			while (running() && (pool != null)
+					&& (pool.getNumIdle() < warmConnections)
+					&& (pool.getNumIdle() + pool.getNumActive() < maxConnections)
+					&& ((connectRateLimiter == null) || connectRateLimiter
+							.tryAcquire())) {
+				pool.addObject();
+			}
+		} catch (Exception e) {
+			// Next attempt on next run
+			getLog().debug(
+					String.format("%s : cannot pre-connect channel. %s",
+							this.getName(), e.getMessage()));
+		}
+	}
+
+	/**
+	 * Creates an executor running each task on a new virtual thread<BR>
+	 * Resolved reflectively, so that the adaptor still builds and runs on
+	 * JVMs prior to Java 21 as long as virtual mode is not configured.
+	 * 
+	 * @param role
+	 *            role of the threads, used in their name
+	 * @throws ConfigurationException
+	 *             when the running JVM does not provide virtual threads
+	 */
+	protected ExecutorService newVirtualThreadExecutor(String role)
+			throws ConfigurationException {
+		ThreadFactory threadFactory = newVirtualThreadFactory(role);
+		try {
+			return (ExecutorService) Executors.class.getMethod(
+					"newThreadPerTaskExecutor", ThreadFactory.class).invoke(
+					null, threadFactory);
+		} catch (Exception e) {
+			throw new ConfigurationException(String.format(
+					"cannot create '%s' executor", EXECUTOR_VIRTUAL), e);
+		}
+	}
+
+	/**
+	 * Warns when virtual threads run on a JVM where blocking channel I/O pins
+	 * their carrier thread (see class comment)
+	 */
+	protected void warnIfCarriersPinned() {
+		int version = getJavaFeatureVersion();
+		if ((version > 0) && (version < 24)) {
+			getLog().warn(
+					String.format(
+							"%s : executor '%s' on Java %d : conversations pin their carrier thread while blocked in channel I/O, at most %d run at once. Java 24 or later is recommended",
+							this.getName(), EXECUTOR_VIRTUAL, version,
+							getCarrierCount()));
+		}
+	}
+
+	/**
+	 * @return feature version of the running JVM (e.g. 21), -1 if unknown
+	 */
+	public static int getJavaFeatureVersion() {
+		String version = System.getProperty("java.specification.version", "");
+		if (version.startsWith("1.")) {
+			version = version.substring(2);
+		}
+		try {
+			return Integer.parseInt(version);
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	/**
+	 * @return number of carrier threads of the virtual thread scheduler
+	 */
+	public static int getCarrierCount() {
+		// reasonable default
+		int carriers = Runtime.getRuntime().availableProcessors();
+		String parallelism = System
+				.getProperty("jdk.virtualThreadScheduler.parallelism");
+		if (parallelism != null) {
+			try {
+				carriers = Integer.parseInt(parallelism.trim());
+			} catch (NumberFormatException e) {
+				// Keep default
+			}
+		}
+		return carriers;
+	}
+
+	/**
+	 * Creates a factory of virtual threads (see
+	 * {@link #newVirtualThreadExecutor(String)})
+	 * 
+	 * @param role
+	 *            role of the threads, used in their name
+	 * @throws ConfigurationException
+	 *             when the running JVM does not provide virtual threads
+	 */
+	protected ThreadFactory newVirtualThreadFactory(String role)
+			throws ConfigurationException {
+		try {
+			Object builder = Thread.class.getMethod("ofVirtual").invoke(null);
+			Class<?> builderClass = Class.forName("java.lang.Thread$Builder");
+			builder = builderClass.getMethod("name", String.class, long.class)
+					.invoke(builder, getName() + "-" + role + "-", 0L);
+			return (ThreadFactory) builderClass.getMethod("factory").invoke(
+					builder);
+		} catch (NoSuchMethodException e) {
+			throw new ConfigurationException(String.format(
+					"executor '%s' requires Java 21 or later", EXECUTOR_VIRTUAL),
+					e);
+		} catch (Exception e) {
+			throw new ConfigurationException(String.format(
+					"cannot create '%s' executor", EXECUTOR_VIRTUAL), e);
+		}
+	}
+
+	/**
+	 * Queue a message to be transmitted by this adaptor
+	 * 
+	 * @param m
+	 *            message to send
+	 */
+	public void send(ISOMsg m) {
+		send(m, -1);
+	}
+
+	/**
+	 * Queue a message to be transmitted by this adaptor<BR>
+	 * Response is to be collected by the next {@code receive(...)} call
+	 * performed by the same thread.
+	 * 
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time (in millis) given to the whole conversation, a negative
+	 *            or zero value means no deadline
+	 */
+	public void send(ISOMsg m, long timeout) {
+		pendingConversation.set(submit(m, timeout));
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jpos.q2.iso.AsyncChannel#submit(org.jpos.iso.ISOMsg, long)
+	 */
+	public CompletableFuture<ISOMsg> submit(ISOMsg m, long timeout) {
+		ExecutorService executor = executorSrv;
+		if (executor == null) {
+			// Adaptor is stopped, yet may still be referenced by a caller
+			CompletableFuture<ISOMsg> failed = new CompletableFuture<ISOMsg>();
+			failed.completeExceptionally(new ConnectionFailureException(
+					String.format("%s : channel adaptor is not running",
+							this.getName())));
+			return failed;
+		}
+
+		Multiplexer mux = multiplexer;
+		if (mux != null) {
+			return submitMultiplexed(mux, executor, m, timeout);
+		}
+
+		long deadline = (timeout > 0) ? System.currentTimeMillis() + timeout
+				: 0L;
+		ProcessRequestTask task = new ProcessRequestTask(this, channelPool, m,
+				isConnectionProcessHandled(), deadline);
+		LaneScheduler scheduler = laneScheduler;
+		Lane lane = (scheduler != null) ? scheduler.laneOf(m) : null;
+		if (lane != null) {
+			task.setLimitExempt(!LaneScheduler.DEFAULT_LANE.equals(lane
+					.getName()));
+		}
+		final CompletingProcessRequestTask futureTask = new CompletingProcessRequestTask(
+				task);
+		final CompletableFuture<ISOMsg> completion = futureTask.getCompletion();
+
+		if (timeout > 0) {
+			final ScheduledFuture<?> timer = timeoutScheduler.schedule(
+					() -> completion.completeExceptionally(new TimeoutException(
+							String.format(
+									"%s : no response received within %d ms",
+									this.getName(), timeout))), timeout,
+					TimeUnit.MILLISECONDS);
+			completion.whenComplete((response, t) -> timer.cancel(false));
+		}
+
+		// Conversation is aborted as soon as its future is completed from
+		// the outside (timeout, cancellation)
+		completion.whenComplete((response, t) -> {
+			if (!futureTask.isDone()) {
+				futureTask.cancel(true);
+			}
+		});
+
+		if (lane != null) {
+			try {
+				scheduler.execute(lane, futureTask, executor);
+			} catch (RejectedExecutionException e) {
+				completion.completeExceptionally(e);
+			}
+		} else {
+			executor.execute(futureTask);
+		}
+		return completion;
+	}
+
+	/**
+	 * Sends a request on a multiplexed connection, the calling thread sending
+	 * it unless a connection has to be established first, or unless it has to
+	 * wait for its turn under the {@code <rate-limit>}
+	 * 
+	 * @param timeout
+	 *            time (in millis) given to the conversation,
+	 *            {@code <multiplexed-timeout>} if negative or zero
+	 */
+	protected CompletableFuture<ISOMsg> submitMultiplexed(
+			final Multiplexer mux, final ExecutorService executor,
+			final ISOMsg m, long timeout) {
+		final long conversationTimeout = (timeout > 0) ? timeout
+				: multiplexedTimeout;
+		final TokenBucket bucket = requestRateLimiter;
+		long delay = (bucket != null) ? bucket.reserve(conversationTimeout)
+				: 0L;
+		if (delay == 0L) {
+			return sendMultiplexed(mux, executor, m, conversationTimeout);
+		}
+
+		final CompletableFuture<ISOMsg> completion = new CompletableFuture<ISOMsg>();
+		if (delay < 0L) {
+			rateLimitedCounter.incrementAndGet();
+			completion.completeExceptionally(newRateLimitExceededException(
+					"request", bucket));
+			return completion;
+		}
+
+		// Sent by a worker once its turn has come, with what is left of its
+		// timeout
+		final long remaining = Math.max(conversationTimeout
+				- TimeUnit.NANOSECONDS.toMillis(delay), 1L);
+		final ScheduledFuture<?> turn = timeoutScheduler.schedule(() -> {
+			try {
+				executor.execute(() -> {
+					if (completion.isDone()) {
+						return;
+					}
+					CompletableFuture<ISOMsg> sent = sendMultiplexed(mux,
+							executor, m, remaining);
+					sent.whenComplete((response, t) -> {
+						if (t != null) {
+							completion.completeExceptionally(t);
+						} else {
+							completion.complete(response);
+						}
+					});
+					// Cancelling the returned future forgets the request
+					completion.whenComplete((response, t) -> sent
+							.cancel(false));
+				});
+			} catch (RejectedExecutionException e) {
+				completion.completeExceptionally(new ConnectionFailureException(
+						e));
+			}
+		}, delay, TimeUnit.NANOSECONDS);
+		completion.whenComplete((response, t) -> {
+			if (turn.cancel(false)) {
+				// Request given up before its turn
+				bucket.refund();
+			}
+		});
+		return completion;
+	}
+
+	/**
+	 * Sends a request on a multiplexed connection, the calling thread sending
+	 * it unless a connection has to be established first
+	 * 
+	 * @param conversationTimeout
+	 *            time (in millis) given to the conversation
+	 */
+	protected CompletableFuture<ISOMsg> sendMultiplexed(Multiplexer mux,
+			ExecutorService executor, ISOMsg m, final long conversationTimeout) {
+		int[] handbackFields = cfg.getInts("handback-field");
+		final ISOMsg handBack = (handbackFields.length > 0) ? (ISOMsg) m
+				.clone(handbackFields) : null;
+
+		final CompletableFuture<ISOMsg> future = mux.submit(m, executor);
+		final CompletableFuture<ISOMsg> completion = (handBack == null) ? future
+				: future.thenApply(response -> {
+					response.merge(handBack);
+					return response;
+				});
+		if (future.isDone()) {
+			return completion;
+		}
+
+		final ScheduledFuture<?> timer = timeoutScheduler.schedule(
+				() -> future.completeExceptionally(new TimeoutException(
+						String.format("%s : no response received within %d ms",
+								this.getName(), conversationTimeout))),
+				conversationTimeout, TimeUnit.MILLISECONDS);
+		future.whenComplete((response, t) -> timer.cancel(false));
+		// Cancelling the returned future forgets the request
+		completion.whenComplete((response, t) -> future.cancel(false));
+		return completion;
+	}
+
+	protected RateLimitExceededException newRateLimitExceededException(
+			String what, TokenBucket bucket) {
+		return new RateLimitExceededException(String.format(
+				"%s : %s rate limit (%s per second) reached, %d waiting",
+				this.getName(), what, bucket.getRate(), bucket.getQueued()));
+	}
+
+	/**
+	 * A conversation task which reports its outcome to a
+	 * {@link CompletableFuture} as soon as it is done
+	 */
+	protected class CompletingProcessRequestTask extends
+			FutureTask<ProcessRequestResult> {
+		private final CompletableFuture<ISOMsg> completion = new CompletableFuture<ISOMsg>();
+		private final ProcessRequestTask task;
+
+		public CompletingProcessRequestTask(ProcessRequestTask task) {
+			super(task);
+			this.task = task;
+		}
+
+		@Override
+		public boolean cancel(boolean mayInterruptIfRunning) {
+			boolean cancelled = super.cancel(mayInterruptIfRunning);
+			if (cancelled && mayInterruptIfRunning) {
+				// A thread blocked on socket I/O is not woken up by an
+				// interruption
+				task.abort();
+			}
+			return cancelled;
+		}
+
+		public CompletableFuture<ISOMsg> getCompletion() {
+			return completion;
+		}
+
+		@Override
+		protected void done() {
+			if (isCancelled()) {
+				completion.cancel(false);
+				return;
+			}
+
+			try {
+				ProcessRequestResult conversationResult = get();
+				Exception exception = conversationResult.getException();
+				if (exception != null) {
+					completion.completeExceptionally(exception);
+				} else {
+					completion.complete(conversationResult.getResponse());
+				}
+			} catch (ExecutionException e) {
+				completion.completeExceptionally(e.getCause());
+			} catch (InterruptedException e) {
+				completion.completeExceptionally(e);
+			} catch (CancellationException e) {
+				completion.cancel(false);
+			}
+		}
+	}
+
+	/**
+	 * Receive message
+	 */
+	public ISOMsg receive() {
+		return receive(-1);
+	}
+
+	/**
+	 * Receive the response to the message previously sent by the current
+	 * thread
+	 * 
+	 * @param timeout
+	 *            time to wait for an incoming message
+	 */
+	public ISOMsg receive(long timeout) {
+		CompletableFuture<ISOMsg> future = pendingConversation.get();
+		pendingConversation.remove();
+
+		if (future == null) {
+			getLog().error(
+					String.format(
+							"%s : cannot retrieve task future for thread '%s'",
+							this.getName(), Thread.currentThread()));
+			return null;
+		}
+
+		try {
+			if (timeout >= 0L) {
+				return future.get(timeout, TimeUnit.MILLISECONDS);
+			} else {
+				return future.get();
+			}
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			getLog().warn(
+					String.format(
+							"%s : timeout while waiting for send/receive task result",
+							this.getName()));
+			return null;
+		} catch (CancellationException e) {
+			getLog().warn(
+					String.format("%s : send/receive task has been cancelled",
+							this.getName()));
+			return null;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			getLog().error(
+					String.format(
+							"%s : exception occurred while waiting for send/receive task result. %s",
+							this.getName(), e.getMessage()));
+			return null;
+		} catch (ExecutionException e) {
+			Throwable exception = e.getCause();
+			if (exception instanceof ConnectionFailureException) {
+				throw (ConnectionFailureException) exception;
+			} else if (exception instanceof RateLimitExceededException) {
+				throw (RateLimitExceededException) exception;
+			} else if (exception instanceof TimeoutException) {
+				getLog().warn(
+						String.format(
+								"%s : timeout while waiting for send/receive task result",
+								this.getName()));
+				return null;
+			} else {
+				getLog().error(
+						String.format(
+								"%s : exception occurred in send/receive task. %s",
+								this.getName(), exception.getMessage()));
+				return null;
+			}
+		}
+	}
+
+	public class ProcessRequestTask implements Callable<ProcessRequestResult> {
+		StripedObjectPool<ISOChannel> channelPool;
+		ISOMsg request;
+		EnhancedOneShotChannelAdaptor parent;
+		private boolean handleConErr;
+		private long deadline;
+		private boolean waitForChannel;
+		private ISOChannel activeChannel;
+		private final long createdAt = System.nanoTime();
+		private GradientLimiter limiter;
+		private boolean limitExempt;
+		private boolean limitReached;
+		private long conversationStart;
+
+		/**
+		 * True while holding a connection rate token taken before borrowing
+		 * a channel, not used yet
+		 */
+		private boolean connectToken;
+
+		public ProcessRequestTask(EnhancedOneShotChannelAdaptor parent,
+				StripedObjectPool<ISOChannel> channelPool, ISOMsg request,
+				boolean handleConErr) {
+			this(parent, channelPool, request, handleConErr, 0L);
+		}
+
+		/**
+		 * @param deadline
+		 *            time (as given by {@code System.currentTimeMillis()})
+		 *            after which conversation is pointless, 0 if none
+		 */
+		public ProcessRequestTask(EnhancedOneShotChannelAdaptor parent,
+				StripedObjectPool<ISOChannel> channelPool, ISOMsg request,
+				boolean handleConErr, long deadline) {
+			this.parent = parent;
+			this.channelPool = channelPool;
+			this.request = request;
+			this.handleConErr = handleConErr;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * @param waitForChannel
+		 *            if true, conversation waits for a channel to be
+		 *            available when channel pool is exhausted, instead of
+		 *            giving up
+		 */
+		public void setWaitForChannel(boolean waitForChannel) {
+			this.waitForChannel = waitForChannel;
+		}
+
+		/**
+		 * @param limitExempt
+		 *            if true, conversation is not subject to the adaptive
+		 *            limit
+		 */
+		public void setLimitExempt(boolean limitExempt) {
+			this.limitExempt = limitExempt;
+		}
+
+		private synchronized void setActiveChannel(ISOChannel channel) {
+			activeChannel = channel;
+		}
+
+		/**
+		 * Aborts the conversation in progress by closing its connection
+		 */
+		public synchronized void abort() {
+			if (activeChannel != null) {
+				try {
+					activeChannel.disconnect();
+				} catch (IOException e) {
+					getLog().debug(
+							String.format("%s : %s", parent.getName(),
+									e.getMessage()));
+				}
+			}
+		}
+
+		/**
+		 * @return time left (in millis) before deadline
+		 */
+		private long remaining() {
+			return (deadline > 0L) ? deadline - System.currentTimeMillis()
+					: Long.MAX_VALUE;
+		}
+
+		private void checkDeadline(String phase) throws TimeoutException {
+			if (remaining() <= 0L) {
+				throw new TimeoutException(String.format(
+						"%s : deadline reached %s", parent.getName(), phase));
+			}
+		}
+
+		private ISOChannel borrowChannel() throws Exception {
+			while (true) {
+				try {
+					acquireLimit();
+					try {
+						ISOChannel channel = channelPoolFactory
+								.borrowForConversation(channelPool,
+										remaining());
+						conversationStart = System.nanoTime();
+						return channel;
+					} catch (Exception e) {
+						releaseLimit(null);
+						throw e;
+					}
+				} catch (NoSuchElementException e) {
+					if (!waitForChannel || !running()
+							|| (remaining() <= BORROW_RETRY_DELAY)) {
+						throw e;
+					}
+					ISOUtil.sleep(BORROW_RETRY_DELAY);
+				}
+			}
+		}
+
+		/**
+		 * Takes a permit from the adaptive limit, if enabled, waiting for it
+		 * as long as a channel would be waited for when pool is exhausted
+		 * 
+		 * @throws NoSuchElementException
+		 *             if limit is reached
+		 */
+		private void acquireLimit() throws NoSuchElementException {
+			GradientLimiter gradientLimiter = concurrencyLimiter;
+			if ((gradientLimiter == null) || limitExempt) {
+				return;
+			}
+
+			// A conversation waiting for a channel is retried by
+			// borrowChannel()
+			long maxWait = (waitForChannel || StripedObjectPool.WHEN_EXHAUSTED_FAIL
+					.equals(channelPoolConfig.whenExhaustedAction)) ? 0L
+					: Math.min(channelPoolConfig.maxWait, remaining());
+			long maxWaitTime = System.currentTimeMillis() + maxWait;
+			while (!gradientLimiter.tryAcquire()) {
+				if (!running()
+						|| (System.currentTimeMillis() + BORROW_RETRY_DELAY > maxWaitTime)) {
+					limitReached = true;
+					throw new NoSuchElementException("concurrency limit reached");
+				}
+				ISOUtil.sleep(BORROW_RETRY_DELAY);
+			}
+			limitReached = false;
+			limiter = gradientLimiter;
+		}
+
+		/**
+		 * Reports the conversation outcome to the adaptive limit, if a permit
+		 * was taken
+		 * 
+		 * @param failed
+		 *            true if the host failed to answer, false if it did, null
+		 *            if conversation tells nothing about the host
+		 */
+		private void releaseLimit(Boolean failed) {
+			if (limiter == null) {
+				return;
+			}
+			if (failed == null) {
+				limiter.onIgnored();
+			} else if (failed) {
+				limiter.onDropped();
+			} else {
+				limiter.onSuccess(System.nanoTime() - conversationStart);
+			}
+			limiter = null;
+		}
+
+		/**
+		 * Waits for a token of the given rate limiter, if enabled, up to the
+		 * conversation deadline
+		 * 
+		 * @throws RateLimitExceededException
+		 *             if no token may be obtained in time
+		 */
+		private void awaitToken(TokenBucket bucket, String what)
+				throws InterruptedException {
+			if ((bucket != null) && !bucket.acquire(remaining())) {
+				rateLimitedCounter.incrementAndGet();
+				throw newRateLimitExceededException(what, bucket);
+			}
+		}
+
+		public ProcessRequestResult call() throws Exception {
+			ProcessRequestResult convRes = new ProcessRequestResult(request);
+			ISOChannel channel = null;
+			boolean keepConnection = false;
+			int channelTimeout = -1;
+			int[] handbackFields = cfg.getInts("handback-field");
+
+			queueWaitLatency.recordSince(createdAt);
+			try {
+				checkDeadline("before conversation start");
+				awaitToken(requestRateLimiter, "request");
+				if ((connectRateLimiter != null) && !connectionReuse
+						&& (warmConnections <= 0)) {
+					// Conversation is sure to open a connection : its token is
+					// waited for before borrowing, so as not to hold a channel
+					// meanwhile
+					awaitToken(connectRateLimiter, "connection");
+					connectToken = true;
+				}
+
+				long phaseStart = System.nanoTime();
+				try {
+					channel = borrowChannel();
+					setActiveChannel(channel);
+				} catch (NoSuchElementException e) {
+					if (limitReached) {
+						getLog().warn(
+								String.format(
+										"%s : cannot borrow channel from channel pool. Concurrency limit is reached (adaptive limit=%d)",
+										parent.getName(),
+										concurrencyLimiter.getLimit()));
+					} else {
+						// Pool is exhausted
+						getLog().warn(
+								String.format(
+										"%s : cannot borrow channel from channel pool. Pool is exhausted (max active configured=%d)",
+										parent.getName(),
+										channelPool.getMaxActive()));
+					}
+				} catch (Exception e) {
+					getLog().error(
+							String.format(
+									"%s : cannot borrow channel from channel pool. %s",
+									parent.getName()), e.getMessage());
+				} finally {
+					borrowLatency.recordSince(phaseStart);
+				}
+
+				if (channel != null) {
+
+					ISOMsg handBack = null;
+					if (handbackFields.length > 0)
+						handBack = (ISOMsg) request.clone(handbackFields);
+
+					boolean reused = channel.isConnected();
+					phaseStart = System.nanoTime();
+					try {
+						connect(channel, convRes);
+					} finally {
+						if (!reused) {
+							connectLatency.recordSince(phaseStart);
+						}
+					}
+					if (channel.isConnected()) {
+						if (reused && connectionReuse) {
+							cnxReusedCounter.incrementAndGet();
+						} else {
+							cnxSuccessCounter.incrementAndGet();
+						}
+
+						checkDeadline("before sending request");
+						phaseStart = System.nanoTime();
+						try {
+							channel.send(request);
+						} catch (IOException e) {
+							if (!reused) {
+								throw e;
+							}
+							// Persistent connection has gone stale while idle.
+							// Request has not been sent, so it is safe to
+							// retry on a fresh connection
+							getLog().debug(
+									String.format(
+											"%s : reused connection is stale, reconnecting. %s",
+											parent.getName(), e.getMessage()));
+							channel.disconnect();
+							connect(channel, convRes);
+							if (!channel.isConnected()) {
+								throw e;
+							}
+							cnxSuccessCounter.incrementAndGet();
+							channel.send(request);
+						}
+						sendLatency.recordSince(phaseStart);
+						Thread.yield();
+						if ((deadline > 0L) && (channel instanceof BaseChannel)) {
+							// Response is not waited for past deadline
+							checkDeadline("before receiving response");
+							BaseChannel baseChannel = (BaseChannel) channel;
+							channelTimeout = baseChannel.getTimeout();
+							baseChannel.setTimeout((int) Math.min(
+									remaining(), Integer.MAX_VALUE));
+						}
+						phaseStart = System.nanoTime();
+						ISOMsg response = channel.receive();
+						receiveLatency.recordSince(phaseStart);
+						convRes.setResponse(response);
+						if (connectionReuse) {
+							keepConnection = true;
+						} else {
+							channel.disconnect();
+						}
+
+						if (handBack != null) {
+							response.merge(handBack);
+						}
+					} else {
+						cnxFailedCounter.incrementAndGet();
+						if (this.handleConErr) {
+							convRes.setException(new ConnectionFailureException());
+						}
+					}
+				}
+			} catch (RateLimitExceededException e) {
+				keepConnection = false;
+				// Our own pacing, telling nothing about the host
+				releaseLimit(null);
+				convRes.setException(e);
+				// Message is prefixed with the adaptor name already
+				getLog().warn(e.getMessage());
+			} catch (Exception e) {
+				keepConnection = false;
+				if (channel != null) {
+					getLog().warn(
+							String.format("%s : %s", parent.getName(),
+									e.getMessage()));
+				} else {
+					getLog().warn(
+							String.format("%s : %s", parent.getName(),
+									e.getMessage()));
+				}
+			} finally {
+				if (connectToken) {
+					// Channel was connected already, or never borrowed
+					connectToken = false;
+					connectRateLimiter.refund();
+				}
+				if ((channel != null) && (channelTimeout >= 0)) {
+					try {
+						((BaseChannel) channel).setTimeout(channelTimeout);
+					} catch (IOException e) {
+						keepConnection = false;
+					}
+				}
+				if (channel != null) {
+					if (!keepConnection) {
+						try {
+							channel.disconnect();
+						} catch (Exception e) {
+							getLog().debug(
+									String.format("%s : %s",
+											channel.getName(), e.getMessage()));
+						}
+					}
+					setActiveChannel(null);
+					releaseLimit(convRes.getResponse() == null);
+					if (!keepConnection && (warmConnections > 0)) {
+						// Warm pool only holds pre-connected channels, a
+						// used up channel gets replaced
+						channelPool.invalidateObject(channel);
+						requestWarmPoolRefill();
+					} else {
+						channelPool.returnObject(channel);
+					}
+				}
+			}
+
+			return convRes;
+		}
+
+		/**
+		 * Attempts to connect channel, unless it is already connected
+		 * 
+		 * @throws IOException
+		 *             when a connection attempt fails
+		 */
+		private void connect(ISOChannel channel, ProcessRequestResult convRes)
+				throws IOException, InterruptedException {
+			boolean reconnected = false;
+			for (int i = 0; !channel.isConnected() && i < maxConnectAttempts
+					&& remaining() > 0L; i++) {
+				if (connectToken) {
+					connectToken = false;
+				} else {
+					awaitToken(connectRateLimiter, "connection");
+				}
+				try {
+					reconnected = true;
+					channel.reconnect();
+					if (!channel.isConnected()) {
+						ISOUtil.sleep(Math.min(connectRetryDelay,
+								Math.max(remaining(), 0L)));
+					}
+				} catch (IOException e) {
+					cnxFailedCounter.incrementAndGet();
+					if (this.handleConErr) {
+						convRes.setException(new ConnectionFailureException(e));
+					}
+					throw e;
+				}
+			}
+
+			// A channel already connected (reused or pre-connected) keeps its
+			// usage, so that its lifetime keeps running
+			if (reconnected && channel.isConnected()) {
+				channelPoolFactory.connectionEstablished(channel);
+			}
+		}
+
+	}
+
+	/**
+	 * Takes requests from the {@code <in>} space queue and hands them to a
+	 * bounded set of workers<BR>
+	 * May be run by several poller threads at once. In {@code listener}
+	 * consumption mode, pollers are woken up by a space listener and drain up
+	 * to {@code <space-batch-size>} requests per wake up, instead of blocking
+	 * on {@code sp.in(...)} one request at a time.
+	 */
+	public class PollForRequestsInSpaceTask implements Callable<Void>,
+			SpaceListener {
+		private EnhancedOneShotChannelAdaptor parent;
+		private ExecutorService prstExecutorSrv;
+		private final boolean listening;
+
+		/**
+		 * One permit per space notification not consumed yet, bounded by
+		 * the number of pollers
+		 */
+		private final Semaphore wakeUps = new Semaphore(0);
+
+		/**
+		 * Number of pollers still running, the last one to leave shuts
+		 * workers down
+		 */
+		private final AtomicInteger activePollers = new AtomicInteger(0);
+
+		/**
+		 * One permit per request either being processed or waiting in the
+		 * work queue (default lane requests only, when priority lanes are
+		 * configured)
+		 */
+		private Semaphore admission;
+
+		/**
+		 * Space queue of the default lane requests waiting for admission
+		 */
+		private final String deferred = in + DEFERRED_SUFFIX;
+
+		/**
+		 * Runs a conversation, then publishes its response to the
+		 * {@code out} space queue
+		 */
+		private class PublishingTask implements Runnable {
+			private final ProcessRequestTask task;
+			private final Semaphore permit;
+
+			/**
+			 * @param permit
+			 *            admission permit released once conversation ended,
+			 *            null if none
+			 */
+			public PublishingTask(ProcessRequestTask task, Semaphore permit) {
+				this.task = task;
+				this.permit = permit;
+			}
+
+			public void run() {
+				ProcessRequestResult cvRes;
+				try {
+					cvRes = task.call();
+				} catch (Exception e) {
+					getLog().warn(
+							String.format(
+									"%s : an exception has caused execution of ProcessRequestTask to terminate. %s",
+									parent.getName(), e.getMessage()));
+					return;
+				} finally {
+					if (permit != null) {
+						permit.release();
+					}
+				}
+
+				ISOMsg response = cvRes.getResponse();
+				if (response != null) {
+					sp.out(out, response);
+				}
+
+				Exception exception = cvRes.getException();
+				if (exception != null) {
+					getLog().warn(
+							String.format("%s : %s", parent.getName(),
+									exception.getMessage()));
+				}
+			}
+		}
+
+		public PollForRequestsInSpaceTask(EnhancedOneShotChannelAdaptor parent,
+				StripedObjectPool<ISOChannel> channelPool)
+				throws ConfigurationException {
+			super();
+			this.parent = parent;
+			int capacity = maxConnections + queueSize;
+			if (multiplexed) {
+				// Requests are not run by workers, but outstanding on the
+				// multiplexed connections
+				this.admission = new Semaphore(maxConnections * maxOutstanding);
+			} else {
+				this.admission = new Semaphore(capacity);
+			}
+
+			// As many workers as channels, as a worker holds a channel for
+			// the whole conversation. Work queue may hold every admitted
+			// request, as a worker still holds its permit while finishing a
+			// task
+			ThreadPoolExecutor executor;
+			if (EXECUTOR_VIRTUAL.equals(executorMode)) {
+				executor = new ThreadPoolExecutor(maxConnections,
+						maxConnections, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(capacity),
+						newVirtualThreadFactory("space-conversation"));
+			} else {
+				executor = new ThreadPoolExecutor(maxConnections,
+						maxConnections, 60, TimeUnit.SECONDS,
+						new ArrayBlockingQueue<Runnable>(capacity));
+			}
+			executor.allowCoreThreadTimeOut(true);
+			prstExecutorSrv = executor;
+
+			if (SPACE_CONSUMPTION_LISTENER.equals(spaceConsumption)) {
+				if (sp instanceof LocalSpace) {
+					listening = true;
+				} else {
+					listening = false;
+					getLog().warn(
+							String.format(
+									"%s : space does not support listeners, falling back to '%s' space consumption",
+									parent.getName(), SPACE_CONSUMPTION_POLL));
+				}
+			} else if (SPACE_CONSUMPTION_POLL.equals(spaceConsumption)) {
+				listening = false;
+			} else {
+				throw new ConfigurationException(String.format(
+						"unknown space consumption '%s' (expecting '%s' or '%s')",
+						spaceConsumption, SPACE_CONSUMPTION_POLL,
+						SPACE_CONSUMPTION_LISTENER));
+			}
+		}
+
+		/**
+		 * Called by the space whenever a request is put in the {@code <in>}
+		 * queue
+		 */
+		public void notify(Object key, Object value) {
+			if (wakeUps.availablePermits() < spacePollers) {
+				wakeUps.release();
+			}
+		}
+
+		/**
+		 * Hands a request taken from space over to the workers
+		 * 
+		 * @return false if {@code o} is not a request
+		 */
+		private boolean dispatch(Object o) {
+			if (!(o instanceof ISOMsg)) {
+				admission.release();
+				return false;
+			}
+			ISOMsg request = (ISOMsg) o;
+			if (multiplexer != null) {
+				dispatchMultiplexed(request);
+				return true;
+			}
+			ProcessRequestTask task = newSpaceTask(request);
+			LaneScheduler scheduler = laneScheduler;
+			try {
+				if (scheduler != null) {
+					scheduler.execute(scheduler.laneOf(request),
+							new PublishingTask(task, admission),
+							prstExecutorSrv);
+				} else {
+					prstExecutorSrv.execute(new PublishingTask(task, admission));
+				}
+			} catch (RejectedExecutionException e) {
+				admission.release();
+				sp.push(in, request);
+				throw e;
+			}
+			return true;
+		}
+
+		private ProcessRequestTask newSpaceTask(ISOMsg request) {
+			ProcessRequestTask task = new ProcessRequestTask(parent,
+					channelPool, request, false);
+			task.setWaitForChannel(true);
+			return task;
+		}
+
+		/**
+		 * Hands a request taken from space over to its lane, whatever the
+		 * shared admission : a priority lane request is dispatched at once,
+		 * bounded by its lane queue only, while a default lane request is
+		 * deferred when admission is exhausted or when older requests are
+		 * deferred already
+		 */
+		private void classify(Object o, LaneScheduler scheduler) {
+			if (!(o instanceof ISOMsg)) {
+				return;
+			}
+			ISOMsg request = (ISOMsg) o;
+			Lane lane = scheduler.laneOf(request);
+			if (!LaneScheduler.DEFAULT_LANE.equals(lane.getName())) {
+				ProcessRequestTask task = newSpaceTask(request);
+				task.setLimitExempt(true);
+				try {
+					scheduler.execute(lane, new PublishingTask(task, null),
+							prstExecutorSrv);
+				} catch (RejectedExecutionException e) {
+					sp.push(in, request);
+					throw e;
+				}
+			} else if ((sp.rdp(deferred) == null) && admission.tryAcquire()) {
+				dispatch(request);
+			} else {
+				sp.out(deferred, request);
+			}
+		}
+
+		/**
+		 * Dispatches deferred default lane requests, in order, as long as
+		 * admission allows
+		 * 
+		 * @return true if requests remain deferred
+		 */
+		private boolean undefer() {
+			while (sp.rdp(deferred) != null) {
+				if (!admission.tryAcquire()) {
+					return true;
+				}
+				Object o;
+				try {
+					o = sp.inp(deferred);
+				} catch (RuntimeException e) {
+					admission.release();
+					throw e;
+				}
+				if (o == null) {
+					admission.release();
+					return false;
+				}
+				dispatch(o);
+			}
+			return false;
+		}
+
+		/**
+		 * @return how long to wait for new requests : not long when deferred
+		 *         requests wait for admission
+		 */
+		private long pollDelay() {
+			return ((laneScheduler != null) && (sp.rdp(deferred) != null)) ? DEFERRED_RETRY_DELAY
+					: delay;
+		}
+
+		/**
+		 * Sends a request on a multiplexed connection, its response being
+		 * published to the {@code out} space queue once received
+		 */
+		private void dispatchMultiplexed(ISOMsg request) {
+			submit(request, multiplexedTimeout).whenComplete(
+					(response, t) -> {
+						admission.release();
+						if (response != null) {
+							sp.out(out, response);
+						} else if (t != null) {
+							getLog().warn(
+									String.format("%s : %s", parent.getName(),
+											t.getMessage()));
+						}
+					});
+		}
+
+		/**
+		 * Takes up to {@code <space-batch-size>} requests out of space,
+		 * without waiting for new ones
+		 * 
+		 * @return true if space queue has been found empty
+		 */
+		private boolean drain() throws InterruptedException {
+			LaneScheduler scheduler = laneScheduler;
+			if (scheduler != null) {
+				undefer();
+				for (int drained = 0; (drained < spaceBatchSize) && running(); drained++) {
+					Object o = sp.inp(in);
+					if (o == null) {
+						return true;
+					}
+					classify(o, scheduler);
+				}
+				return false;
+			}
+
+			for (int drained = 0; (drained < spaceBatchSize) && running(); drained++) {
+				// Space is not polled while workers and work queue are full,
+				// so that pending requests stay queued in the space
+				if (!admission.tryAcquire(delay, TimeUnit.MILLISECONDS)) {
+					return false;
+				}
+				Object o;
+				try {
+					o = sp.inp(in);
+				} catch (RuntimeException e) {
+					admission.release();
+					throw e;
+				}
+				if (o == null) {
+					admission.release();
+					return true;
+				}
+				dispatch(o);
+			}
+			return false;
+		}
+
+		/**
+		 * Takes one request out of space, waiting for it no longer than
+		 * {@code delay}
+		 */
+		private void poll() throws InterruptedException {
+			LaneScheduler scheduler = laneScheduler;
+			if (scheduler != null) {
+				Object o = sp.in(in, undefer() ? DEFERRED_RETRY_DELAY : delay);
+				if (o != null) {
+					classify(o, scheduler);
+				}
+				return;
+			}
+
+			// Space is not polled while workers and work queue are full, so
+			// that pending requests stay queued in the space
+			if (!admission.tryAcquire(delay, TimeUnit.MILLISECONDS)) {
+				return;
+			}
+			Object o;
+			try {
+				o = sp.in(in, delay);
+			} catch (RuntimeException e) {
+				admission.release();
+				throw e;
+			}
+			if (o != null) {
+				dispatch(o);
+			} else {
+				admission.release();
+			}
+		}
+
+		/**
+		 * Collects the requests of space tasks not run, cancelling the
+		 * other tasks (conversations submitted through
+		 * {@link EnhancedOneShotChannelAdaptor#submit(ISOMsg, long)} and
+		 * queued in a lane)
+		 */
+		private void collect(List<Runnable> tasks, List<Object> requests) {
+			for (Runnable r : tasks) {
+				r = LaneScheduler.unwrap(r);
+				if (r instanceof PublishingTask) {
+					requests.add(((PublishingTask) r).task.request);
+				} else if (r instanceof Future) {
+					((Future<?>) r).cancel(false);
+				}
+			}
+		}
+
+		@SuppressWarnings("unchecked")
+		public Void call() {
+			if ((activePollers.getAndIncrement() == 0) && listening) {
+				((LocalSpace<String, Object>) sp).addListener(in, this);
+			}
+
+			int failures = 0;
+			while (running()) {
+				try {
+					if (listening) {
+						if (drain()) {
+							// Timed wait, so that requests out before the
+							// listener got registered are not missed
+							wakeUps.tryAcquire(pollDelay(), TimeUnit.MILLISECONDS);
+						} else {
+							// Queue may hold more, leave room to the other
+							// pollers before going on
+							Thread.yield();
+						}
+					} else {
+						poll();
+					}
+					failures = 0;
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					getLog().warn(
+							String.format("%s : %s", parent.getName(),
+									e.getMessage()));
+					ISOUtil.sleep(Math.min(MAX_POLLER_BACKOFF,
+							10L << Math.min(failures++, 7)));
+				}
+			}
+
+			if (activePollers.decrementAndGet() > 0) {
+				return null;
+			}
+			if (listening) {
+				((LocalSpace<String, Object>) sp).removeListener(in, this);
+			}
+
+			// Requests not run yet are given back to the space, oldest first :
+			// work queue, then lane queues, then deferred requests
+			LaneScheduler scheduler = laneScheduler;
+			List<Runnable> queued = (scheduler != null) ? scheduler.shutdown()
+					: new ArrayList<Runnable>();
+			List<Runnable> notStarted = this.prstExecutorSrv.shutdownNow();
+			List<Object> requests = new ArrayList<Object>();
+			collect(notStarted, requests);
+			collect(queued, requests);
+			Object o;
+			while ((o = sp.inp(deferred)) != null) {
+				requests.add(o);
+			}
+			for (int i = requests.size() - 1; i >= 0; i--) {
+				sp.push(in, requests.get(i));
+			}
+			try {
+				boolean awaitTermination = this.prstExecutorSrv
+						.awaitTermination(30, TimeUnit.SECONDS);
+
+				if (!awaitTermination) {
+					getLog().warn(
+							String.format(
+									"%s : [PollingTask] error while attempting to shutdown executor service. Cause : timeout while waiting for executor service termination",
+									parent.getName()));
+				}
+			} catch (InterruptedException e) {
+			}
+
+			return null;
+		}
+	}
+
+	public synchronized void setHost(String host) {
+		setProperty(getProperties("channel"), "host", host);
+		setModified(true);
+	}
+
+	public String getHost() {
+		return getProperty(getProperties("channel"), "host");
+	}
+
+	public synchronized void setPort(int port) {
+		setProperty(getProperties("channel"), "port", Integer.toString(port));
+		setModified(true);
+	}
+
+	public int getPort() {
+		int port = 0;
+		try {
+			port = Integer.parseInt(getProperty(getProperties("channel"),
+					"port"));
+		} catch (NumberFormatException e) {
+			getLog().error(
+					String.format("%s : %s", this.getName(), e.getMessage()));
+		}
+		return port;
+	}
+
+	public synchronized void setSocketFactory(String sFac) {
+		setProperty(getProperties("channel"), "socketFactory", sFac);
+		setModified(true);
+	}
+
+	public String getSocketFactory() {
+		return getProperty(getProperties("channel"), "socketFactory");
+	}
+
+	private boolean isConnectionProcessHandled() {
+		return cnxProcessHandling;
+	}
+
+	public int getCnxSuccessCounter() {
+		return cnxSuccessCounter.get();
+	}
+
+	public int getCnxFailedCounter() {
+		return cnxFailedCounter.get();
+	}
+
+	public int getCnxReusedCounter() {
+		return cnxReusedCounter.get();
+	}
+
+	public int getRateLimitedCounter() {
+		return rateLimitedCounter.get();
+	}
+
+	public void resetCounters() {
+		cnxSuccessCounter.set(0);
+		cnxFailedCounter.set(0);
+		cnxReusedCounter.set(0);
+		rateLimitedCounter.set(0);
+	}
+
+	public int getChannelPoolNumActive() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getNumActive();
+	}
+
+	public int getChannelPoolNumIdle() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getNumIdle();
+	}
+
+	public int getChannelPoolMaxActive() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getMaxActive();
+	}
+
+	public int getChannelPoolMaxIdle() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getMaxIdle();
+	}
+
+	public int getChannelPoolMinIdle() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getMinIdle();
+	}
+
+	public String getQueueWaitLatency() {
+		return queueWaitLatency.toString();
+	}
+
+	public String getBorrowLatency() {
+		return borrowLatency.toString();
+	}
+
+	public String getConnectLatency() {
+		return connectLatency.toString();
+	}
+
+	public String getSendLatency() {
+		return sendLatency.toString();
+	}
+
+	public String getReceiveLatency() {
+		return receiveLatency.toString();
+	}
+
+	public long getPhaseLatencyPercentile(String phase, double percentile) {
+		LatencyHistogram histogram = getPhaseLatency(phase);
+		return (histogram != null) ? histogram.getPercentile(percentile) : -1L;
+	}
+
+	/**
+	 * @param phase
+	 *            one of {@code queue-wait}, {@code borrow}, {@code connect},
+	 *            {@code send} or {@code receive}
+	 * @return latency histogram of the given conversation phase, null if
+	 *         phase is unknown
+	 */
+	public LatencyHistogram getPhaseLatency(String phase) {
+		if (PHASE_QUEUE_WAIT.equals(phase)) {
+			return queueWaitLatency;
+		} else if (PHASE_BORROW.equals(phase)) {
+			return borrowLatency;
+		} else if (PHASE_CONNECT.equals(phase)) {
+			return connectLatency;
+		} else if (PHASE_SEND.equals(phase)) {
+			return sendLatency;
+		} else if (PHASE_RECEIVE.equals(phase)) {
+			return receiveLatency;
+		}
+		return null;
+	}
+
+	public void resetLatencies() {
+		queueWaitLatency.reset();
+		borrowLatency.reset();
+		connectLatency.reset();
+		sendLatency.reset();
+		receiveLatency.reset();
+	}
+
+	public int getMultiplexedNumConnected() {
+		Multiplexer mux = multiplexer;
+		return (mux != null) ? mux.getNumConnected() : 0;
+	}
+
+	public int getMultiplexedNumOutstanding() {
+		Multiplexer mux = multiplexer;
+		return (mux != null) ? mux.getNumOutstanding() : 0;
+	}
+
+	public long getMultiplexedNumUnmatched() {
+		Multiplexer mux = multiplexer;
+		return (mux != null) ? mux.getNumUnmatched() : 0L;
+	}
+
+	public int getChannelPoolNumWaiters() {
+		if (channelPool == null) {
+			return -1;
+		}
+
+		return channelPool.getNumWaiters();
+	}
+
+	public boolean isHealthy() {
+		HealthProbe probe = healthProbe;
+		return (probe == null) || probe.isHealthy();
+	}
+
+	public String getHealthState() {
+		HealthProbe probe = healthProbe;
+		return (probe != null) ? probe.getState() : HealthProbe.PROBE_NONE;
+	}
+
+	public String getHealthLastFailure() {
+		HealthProbe probe = healthProbe;
+		return (probe != null) ? probe.getLastFailure() : null;
+	}
+
+	public int getConcurrencyLimit() {
+		GradientLimiter gradientLimiter = concurrencyLimiter;
+		return (gradientLimiter != null) ? gradientLimiter.getLimit()
+				: maxConnections;
+	}
+
+	public int getConcurrencyLimitInFlight() {
+		GradientLimiter gradientLimiter = concurrencyLimiter;
+		return (gradientLimiter != null) ? gradientLimiter.getInFlight() : -1;
+	}
+
+	public String getPriorityLanes() {
+		LaneScheduler scheduler = laneScheduler;
+		return (scheduler != null) ? scheduler.getStatus() : "";
+	}
+
+	public int getRateLimitQueued() {
+		TokenBucket bucket = requestRateLimiter;
+		return (bucket != null) ? bucket.getQueued() : 0;
+	}
+
+	public int getConnectRateLimitQueued() {
+		TokenBucket bucket = connectRateLimiter;
+		return (bucket != null) ? bucket.getQueued() : 0;
+	}
+
+	public String getConcurrencyLimitLatency() {
+		GradientLimiter gradientLimiter = concurrencyLimiter;
+		if (gradientLimiter == null) {
+			return "";
+		}
+		return String.format("short=%.1fms baseline=%.1fms",
+				gradientLimiter.getShortRtt(), gradientLimiter.getBaselineRtt());
+	}
+}
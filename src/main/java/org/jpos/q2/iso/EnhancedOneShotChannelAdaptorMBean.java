@@ -1,33 +1,77 @@
-package org.jpos.q2.iso;
-
-public interface EnhancedOneShotChannelAdaptorMBean extends
-		org.jpos.q2.QBeanSupportMBean {
-
-	void setHost(java.lang.String host);
-
-	java.lang.String getHost();
-
-	void setPort(int port);
-
-	int getPort();
-
-	void setSocketFactory(java.lang.String sFac);
-
-	java.lang.String getSocketFactory();
-
-	int getCnxSuccessCounter();
-	
-	int getCnxFailedCounter();
-	
-	void resetCounters();
-
-	int getChannelPoolMaxActive();
-	
-	int getChannelPoolMaxIdle();
-	
-	int getChannelPoolMinIdle();
-	
-	int getChannelPoolNumActive();
-	
-	int getChannelPoolNumIdle();
-}
+package org.jpos.q2.iso;
+
+public interface EnhancedOneShotChannelAdaptorMBean extends
+		org.jpos.q2.QBeanSupportMBean {
+
+	void setHost(java.lang.String host);
+
+	java.lang.String getHost();
+
+	void setPort(int port);
+
+	int getPort();
+
+	void setSocketFactory(java.lang.String sFac);
+
+	java.lang.String getSocketFactory();
+
+	int getCnxSuccessCounter();
+	
+	int getCnxFailedCounter();
+	
+	int getCnxReusedCounter();
+
+	int getRateLimitedCounter();
+	
+	void resetCounters();
+
+	int getChannelPoolMaxActive();
+	
+	int getChannelPoolMaxIdle();
+	
+	int getChannelPoolMinIdle();
+	
+	int getChannelPoolNumActive();
+	
+	int getChannelPoolNumIdle();
+
+	int getChannelPoolNumWaiters();
+
+	int getMultiplexedNumConnected();
+
+	int getMultiplexedNumOutstanding();
+
+	long getMultiplexedNumUnmatched();
+
+	java.lang.String getQueueWaitLatency();
+
+	java.lang.String getBorrowLatency();
+
+	java.lang.String getConnectLatency();
+
+	java.lang.String getSendLatency();
+
+	java.lang.String getReceiveLatency();
+
+	long getPhaseLatencyPercentile(java.lang.String phase, double percentile);
+
+	void resetLatencies();
+
+	boolean isHealthy();
+
+	java.lang.String getHealthState();
+
+	java.lang.String getHealthLastFailure();
+
+	int getConcurrencyLimit();
+
+	int getConcurrencyLimitInFlight();
+
+	java.lang.String getConcurrencyLimitLatency();
+
+	int getRateLimitQueued();
+
+	int getConnectRateLimitQueued();
+
+	java.lang.String getPriorityLanes();
+}
@@ -0,0 +1,21 @@
+package org.jpos.q2.iso;
+
+import org.jpos.iso.Channel;
+
+/**
+ * A {@link Channel} knowing whether its remote endpoint is reachable, so that
+ * callers may route around it without paying a failed conversation to find
+ * out
+ *
+ * @author dgrandemange
+ *
+ */
+public interface HealthAwareChannel extends Channel {
+
+	/**
+	 * @return false if the remote endpoint is known to be unreachable, true
+	 *         otherwise (including when health is not monitored)
+	 */
+	boolean isHealthy();
+
+}
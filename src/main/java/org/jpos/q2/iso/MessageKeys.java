@@ -0,0 +1,33 @@
+package org.jpos.q2.iso;
+
+import java.util.StringTokenizer;
+
+/**
+ * Helpers shared by the components identifying messages by a set of key
+ * fields (response correlation of multiplexed connections, duplicate
+ * suppression of channel pools)
+ *
+ * @author dgrandemange
+ *
+ */
+public final class MessageKeys {
+
+	private MessageKeys() {
+	}
+
+	/**
+	 * @param key
+	 *            comma or space separated field numbers, e.g.
+	 *            {@code "2, 3, 11"}
+	 * @return field numbers
+	 */
+	public static int[] parseFields(String key) {
+		StringTokenizer st = new StringTokenizer(key, ", ");
+		int[] fields = new int[st.countTokens()];
+		for (int i = 0; st.hasMoreTokens(); i++) {
+			fields[i] = Integer.parseInt(st.nextToken());
+		}
+		return fields;
+	}
+
+}
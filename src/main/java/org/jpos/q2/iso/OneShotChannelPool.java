@@ -1,173 +1,857 @@
-package org.jpos.q2.iso;
-
-import java.util.StringTokenizer;
-
-import org.jdom.Element;
-import org.jpos.core.ConfigurationException;
-import org.jpos.iso.Channel;
-import org.jpos.iso.ISOException;
-import org.jpos.iso.ISOMsg;
-import org.jpos.iso.ISOResponseListener;
-import org.jpos.iso.MUX;
-import org.jpos.q2.QBeanSupport;
-import org.jpos.q2.iso.exception.ConnectionFailureException;
-import org.jpos.util.NameRegistrar;
-import org.jpos.util.NameRegistrar.NotFoundException;
-
-/**
- * A pool of Channel<BR>
- * Like org.jpos.q2.iso.MUXPool, it provides a load distribution strategy
- * {@code round-robin} and a failover strategy {@code primary-secondary}<BR>
- * Although it's a pool of Channels (not MUXes), it still exposes the MUX
- * interface for convenience purposes.<BR>
- * Channels registration is checked at runtime (i.e. request time, not at
- * service start).<BR>
- * <BR>
- * <U>Typical configuration sample</U><BR>
- * &lt;channel-pool class="org.jpos.q2.iso.OneShotChannelPool" logger="Q2"
- * name="some-channel-pool"&gt;<BR>
- * &nbsp;&nbsp;&lt;channels&gt;primary-channel
- * secondary-channel&lt;/channels&gt;<BR>
- * &nbsp;&nbsp;&lt;strategy&gt;primary-secondary&lt;/strategy&gt;<BR>
- * &nbsp;&nbsp;&lt;!-- &lt;strategy&gt;round-robin&lt;/strategy&gt; --&gt;<BR>
- * &lt;/channel-pool&gt;<BR>
- * 
- * @author dgrandemange
- * 
- */
-public class OneShotChannelPool extends QBeanSupport implements MUX {
-
-	private static final String DISTRIBUTION_STRATEGY__ROUND_ROBIN = "round-robin";
-
-	int strategy = 0;
-	String[] channelsName;
-	int msgno = 0;
-	public static final int ROUND_ROBIN = 1;
-	public static final int PRIMARY_SECONDARY = 0;
-
-	public void initService() throws ConfigurationException {
-		Element e = getPersist();
-
-		channelsName = toStringArray(e.getChildTextTrim("channels"));
-		String s = e.getChildTextTrim("strategy");
-		strategy = DISTRIBUTION_STRATEGY__ROUND_ROBIN.equals(s) ? ROUND_ROBIN
-				: PRIMARY_SECONDARY;
-
-		NameRegistrar.register("channel-pool." + getName(), this);
-		// FIXME put registration in startService() ?
-	}
-
-	public void stopService() {
-		NameRegistrar.unregister("channel-pool." + getName());
-	}
-
-	private String[] toStringArray(String s) {
-		String[] ss = null;
-		if (s != null && s.length() > 0) {
-			StringTokenizer st = new StringTokenizer(s);
-			ss = new String[st.countTokens()];
-			for (int i = 0; st.hasMoreTokens(); i++)
-				ss[i] = st.nextToken();
-		}
-		return ss;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.jpos.iso.MUX#request(org.jpos.iso.ISOMsg, long)
-	 */
-	public ISOMsg request(ISOMsg m, long timeout) throws ISOException {
-		ISOMsg response = null;
-		int mnumber = 0;
-		long maxWait = System.currentTimeMillis() + timeout;
-		synchronized (this) {
-			mnumber = msgno++;
-		}
-
-		Channel selectedChannel = null;
-		for (int i = 0; (i < channelsName.length) && (selectedChannel == null)
-				&& ((System.currentTimeMillis() < maxWait)); i++) {
-
-			int channelIdx;
-			if (PRIMARY_SECONDARY == strategy) {
-				channelIdx = i;
-			} else {
-				int j = (mnumber + i) % channelsName.length;
-				channelIdx = j;
-			}
-
-			try {
-				selectedChannel = findChannelByName(channelsName[channelIdx],
-						Channel.class);
-
-				selectedChannel.send(m);
-
-				Thread.yield();
-
-				response = selectedChannel.receive(timeout);
-			} catch (NotFoundException e) {
-				getLog().warn(
-						String.format("%s : %s", this.getName(), e.getMessage()));
-
-				selectedChannel = null;
-			} catch (ConnectionFailureException e) {
-				selectedChannel = null;
-			}
-		}
-
-		return response;
-	}
-
-	@SuppressWarnings("unchecked")
-	protected <T extends Channel> T findChannelByName(String name,
-			Class<T> clazz) throws NotFoundException {
-		T res = null;
-
-		Object object = NameRegistrar.get(name);
-		if (clazz.isAssignableFrom(object.getClass())) {
-			res = (T) object;
-		} else {
-			throw new NotFoundException(name);
-		}
-
-		return res;
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.jpos.iso.MUX#request(org.jpos.iso.ISOMsg, long,
-	 * org.jpos.iso.ISOResponseListener, java.lang.Object)
-	 */
-	public void request(ISOMsg m, long timeout, ISOResponseListener r,
-			Object handBack) throws ISOException {
-		// FIXME not yet implemented
-		throw new ISOException("not yet implemented");
-	}
-
-	/*
-	 * (non-Javadoc)
-	 * 
-	 * @see org.jpos.iso.MUX#isConnected()
-	 */
-	public boolean isConnected() {
-		// We consider pool is connected if one channel at least is well
-		// deployed and registered
-
-		boolean res = false;
-
-		for (int i = 0; (i < channelsName.length); i++) {
-			try {
-				findChannelByName(channelsName[i], Channel.class);
-				res = true;
-				break;
-			} catch (NotFoundException e) {
-				// Safe to ignore
-			}
-		}
-
-		return res;
-	}
-
-}
+package org.jpos.q2.iso;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
+import java.util.List;
+import java.util.Set;
+import java.util.StringTokenizer;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.Channel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOResponseListener;
+import org.jpos.iso.MUX;
+import org.jpos.q2.QBeanSupport;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+import org.jpos.q2.iso.exception.RateLimitExceededException;
+import org.jpos.q2.iso.routing.CircuitBreaker;
+import org.jpos.q2.iso.routing.DuplicateCache;
+import org.jpos.q2.iso.routing.LatencyWindow;
+import org.jpos.q2.iso.routing.PeakEwmaLatency;
+import org.jpos.util.NameRegistrar;
+
+/**
+ * A pool of Channel<BR>
+ * Like org.jpos.q2.iso.MUXPool, it provides a load distribution strategy
+ * {@code round-robin} and a failover strategy {@code primary-secondary}<BR>
+ * A latency-aware strategy {@code least-latency} is also provided : each
+ * request is routed first to the channel with the lowest expected cost, i.e.
+ * its peak-EWMA response time multiplied by its number of in-flight requests.
+ * The optional {@code <decay-time>} element (in millis, default is 5000) sets
+ * how fast the average of a recovering channel decays.<BR>
+ * Each channel is guarded by a circuit breaker : after
+ * {@code <failure-threshold>} consecutive failures (connection failures or
+ * timeouts, default is 5, 0 disables breakers), requests skip the channel at
+ * no cost for {@code <open-duration>} millis (default is 30000). A single
+ * probe request is then let through to test recovery.<BR>
+ * The request timeout is an end-to-end deadline : when failing over, each
+ * channel is only given the time left.<BR>
+ * Idempotent requests, whose MTI is listed in the optional
+ * {@code <hedged-mtis>} element, are hedged : when the first channel has not
+ * answered within the {@code <hedge-percentile>} (default is 95) of its recent
+ * response times (but no sooner than {@code <hedge-min-delay>} millis, default
+ * is 10), a duplicate is sent to the next channel. First response received
+ * wins, the other conversation is cancelled.<BR>
+ * Although it's a pool of Channels (not MUXes), it still exposes the MUX
+ * interface for convenience purposes.<BR>
+ * Channels registration is checked at runtime, not only at service start :
+ * resolved channels are cached and refreshed from the {@link NameRegistrar}
+ * every {@code <resolve-ttl>} millis (default is 1000, 0 or less to resolve
+ * them on every request). Until then, a channel which is not (or no longer)
+ * registered is skipped.<BR>
+ * The asynchronous {@code request(...)} flavour returns at once : responses
+ * and expirations are notified to the {@link ISOResponseListener} by a small
+ * completion thread pool, whose size is set by the optional
+ * {@code <completion-threads>} element (default is 2). A channel which is not
+ * an {@link AsyncChannel} blocks a thread for the whole conversation : such
+ * conversations are run by a separate cached thread pool, so that they never
+ * hold completion threads.<BR>
+ * A channel reporting its remote endpoint as unreachable (see
+ * {@link HealthAwareChannel}, e.g. an adaptor configured with a
+ * {@code <health-probe>}) is skipped, as if it were not registered, until it
+ * reports it reachable again.<BR>
+ * A request refused by a channel for its rate limit (see
+ * {@link RateLimitExceededException}) has not been sent : it is tried on the
+ * next channel, the refusing channel not being held as failing.<BR>
+ * With {@code <duplicate-suppression>} set to true, retransmissions of a
+ * request (same MTI, a repeat such as 0101 matching 0100, and same
+ * {@code <duplicate-key>} fields, default is
+ * {@code 2 7 11 41}) are not sent again : a retransmission of a request still
+ * in flight waits for the original response, and a retransmission of a
+ * request answered less than {@code <duplicate-ttl>} millis ago (default is
+ * 30000, 0 to only suppress requests in flight) gets a copy of that response.
+ * At most {@code <duplicate-cache-size>} requests (default is 10000) are
+ * tracked.<BR>
+ * <BR>
+ * <U>Typical configuration sample</U><BR>
+ * &lt;channel-pool class="org.jpos.q2.iso.OneShotChannelPool" logger="Q2"
+ * name="some-channel-pool"&gt;<BR>
+ * &nbsp;&nbsp;&lt;channels&gt;primary-channel
+ * secondary-channel&lt;/channels&gt;<BR>
+ * &nbsp;&nbsp;&lt;strategy&gt;primary-secondary&lt;/strategy&gt;<BR>
+ * &nbsp;&nbsp;&lt;!-- &lt;strategy&gt;round-robin&lt;/strategy&gt; --&gt;<BR>
+ * &nbsp;&nbsp;&lt;!-- &lt;strategy&gt;least-latency&lt;/strategy&gt; --&gt;<BR>
+ * &nbsp;&nbsp;&lt;completion-threads&gt;2&lt;/completion-threads&gt;<BR>
+ * &nbsp;&nbsp;&lt;resolve-ttl&gt;1000&lt;/resolve-ttl&gt;<BR>
+ * &nbsp;&nbsp;&lt;failure-threshold&gt;5&lt;/failure-threshold&gt;<BR>
+ * &nbsp;&nbsp;&lt;open-duration&gt;30000&lt;/open-duration&gt;<BR>
+ * &nbsp;&nbsp;&lt;hedged-mtis&gt;0800 0100&lt;/hedged-mtis&gt;<BR>
+ * &nbsp;&nbsp;&lt;duplicate-suppression&gt;true&lt;/duplicate-suppression&gt;<BR>
+ * &nbsp;&nbsp;&lt;duplicate-key&gt;2 7 11 41&lt;/duplicate-key&gt;<BR>
+ * &nbsp;&nbsp;&lt;duplicate-ttl&gt;30000&lt;/duplicate-ttl&gt;<BR>
+ * &lt;/channel-pool&gt;<BR>
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class OneShotChannelPool extends QBeanSupport implements MUX {
+
+	private static final String DISTRIBUTION_STRATEGY__ROUND_ROBIN = "round-robin";
+
+	private static final String DISTRIBUTION_STRATEGY__LEAST_LATENCY = "least-latency";
+
+	/**
+	 * Number of recent response times kept per channel
+	 */
+	private static final int LATENCY_WINDOW_SIZE = 256;
+
+	/**
+	 * Requests are not hedged until the first channel has answered this many
+	 * times
+	 */
+	private static final int HEDGE_MIN_SAMPLES = 20;
+
+	int strategy = 0;
+	String[] channelsName;
+	int msgno = 0;
+	int completionThreads;
+	PeakEwmaLatency[] latencies;
+	LatencyWindow[] latencyWindows;
+	CircuitBreaker[] breakers;
+	long resolveTTL;
+	private volatile Channel[] resolvedChannels;
+	Set<String> hedgedMTIs;
+	double hedgePercentile;
+	long hedgeMinDelay;
+	DuplicateCache duplicateCache;
+	private ExecutorService completionExecutor;
+	private ExecutorService blockingExecutor;
+	private ScheduledExecutorService expiryScheduler;
+	public static final int ROUND_ROBIN = 1;
+	public static final int PRIMARY_SECONDARY = 0;
+	public static final int LEAST_LATENCY = 2;
+
+	public void initService() throws ConfigurationException {
+		Element e = getPersist();
+
+		channelsName = toStringArray(e.getChildTextTrim("channels"));
+		String s = e.getChildTextTrim("strategy");
+		if (DISTRIBUTION_STRATEGY__ROUND_ROBIN.equals(s)) {
+			strategy = ROUND_ROBIN;
+		} else if (DISTRIBUTION_STRATEGY__LEAST_LATENCY.equals(s)) {
+			strategy = LEAST_LATENCY;
+		} else {
+			strategy = PRIMARY_SECONDARY;
+		}
+
+		s = e.getChildTextTrim("decay-time");
+		long decayTime = (s != null) ? Long.parseLong(s) : 5000L;
+		latencies = new PeakEwmaLatency[channelsName.length];
+		latencyWindows = new LatencyWindow[channelsName.length];
+		for (int i = 0; i < latencies.length; i++) {
+			latencies[i] = new PeakEwmaLatency(decayTime);
+			latencyWindows[i] = new LatencyWindow(LATENCY_WINDOW_SIZE);
+		}
+
+		hedgedMTIs = new HashSet<String>();
+		String[] mtis = toStringArray(e.getChildTextTrim("hedged-mtis"));
+		if (mtis != null) {
+			hedgedMTIs.addAll(Arrays.asList(mtis));
+		}
+		s = e.getChildTextTrim("hedge-percentile");
+		hedgePercentile = (s != null) ? Double.parseDouble(s) : 95d;
+		s = e.getChildTextTrim("hedge-min-delay");
+		hedgeMinDelay = (s != null) ? Long.parseLong(s) : 10L;
+
+		s = e.getChildTextTrim("failure-threshold");
+		int failureThreshold = (s != null) ? Integer.parseInt(s) : 5;
+		if (failureThreshold <= 0) {
+			failureThreshold = Integer.MAX_VALUE;
+		}
+		s = e.getChildTextTrim("open-duration");
+		long openDuration = (s != null) ? Long.parseLong(s) : 30000L;
+		breakers = new CircuitBreaker[channelsName.length];
+		for (int i = 0; i < breakers.length; i++) {
+			breakers[i] = new CircuitBreaker(failureThreshold, openDuration);
+		}
+
+		s = e.getChildTextTrim("resolve-ttl");
+		resolveTTL = (s != null) ? Long.parseLong(s) : 1000L;
+		resolvedChannels = new Channel[channelsName.length];
+		resolveChannels();
+
+		if ("true".equalsIgnoreCase(e.getChildTextTrim("duplicate-suppression"))) {
+			s = e.getChildTextTrim("duplicate-key");
+			int[] keyFields = MessageKeys.parseFields((s != null) ? s
+					: DuplicateCache.DEFAULT_KEY);
+			s = e.getChildTextTrim("duplicate-ttl");
+			long duplicateTTL = (s != null) ? Long.parseLong(s) : 30000L;
+			s = e.getChildTextTrim("duplicate-cache-size");
+			int duplicateCacheSize = (s != null) ? Integer.parseInt(s) : 10000; // reasonable
+																				// default
+			duplicateCache = new DuplicateCache(keyFields, duplicateTTL,
+					duplicateCacheSize);
+		} else {
+			duplicateCache = null;
+		}
+
+		s = e.getChildTextTrim("completion-threads");
+		completionThreads = (s != null) ? Integer.parseInt(s) : 2; // reasonable
+																	// default
+
+		NameRegistrar.register("channel-pool." + getName(), this);
+		// FIXME put registration in startService() ?
+	}
+
+	public void startService() {
+		completionExecutor = Executors.newFixedThreadPool(completionThreads,
+				new PoolThreadFactory("completion"));
+		blockingExecutor = Executors.newCachedThreadPool(new PoolThreadFactory(
+				"blocking"));
+
+		ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+				1, new PoolThreadFactory("expiry"));
+		scheduler.setRemoveOnCancelPolicy(true);
+		expiryScheduler = scheduler;
+
+		if (resolveTTL > 0L) {
+			expiryScheduler.scheduleWithFixedDelay(() -> resolveChannels(),
+					resolveTTL, resolveTTL, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	public void stopService() {
+		if (expiryScheduler != null) {
+			expiryScheduler.shutdownNow();
+			expiryScheduler = null;
+		}
+
+		if (completionExecutor != null) {
+			completionExecutor.shutdown();
+			completionExecutor = null;
+		}
+
+		if (blockingExecutor != null) {
+			blockingExecutor.shutdown();
+			blockingExecutor = null;
+		}
+
+		NameRegistrar.unregister("channel-pool." + getName());
+	}
+
+	private String[] toStringArray(String s) {
+		String[] ss = null;
+		if (s != null && s.length() > 0) {
+			StringTokenizer st = new StringTokenizer(s);
+			ss = new String[st.countTokens()];
+			for (int i = 0; st.hasMoreTokens(); i++)
+				ss[i] = st.nextToken();
+		}
+		return ss;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jpos.iso.MUX#request(org.jpos.iso.ISOMsg, long)
+	 */
+	public ISOMsg request(ISOMsg m, long timeout) throws ISOException {
+		DuplicateCache cache = duplicateCache;
+		String key = (cache != null) ? cache.keyOf(m) : null;
+		if (key == null) {
+			return sendRequest(m, timeout);
+		}
+
+		ISOMsg recent = cache.getRecent(key);
+		if (recent != null) {
+			return recent;
+		}
+
+		CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		CompletableFuture<ISOMsg> running = cache.join(key, leader);
+		if (running != null) {
+			return awaitDuplicate(running, timeout);
+		}
+
+		ISOMsg response = null;
+		try {
+			response = sendRequest(m, timeout);
+		} finally {
+			leader.complete(response);
+		}
+		return response;
+	}
+
+	/**
+	 * Sends a request through the pool channels, regardless of duplicates
+	 */
+	private ISOMsg sendRequest(ISOMsg m, long timeout) throws ISOException {
+		ISOMsg response = null;
+		int mnumber = 0;
+		long maxWait = System.currentTimeMillis() + timeout;
+		synchronized (this) {
+			mnumber = msgno++;
+		}
+
+		if ((completionExecutor != null) && isHedgeable(m)) {
+			return awaitResponse(new AsyncRequest(m, timeout, mnumber).start());
+		}
+
+		Channel[] channels = getChannels();
+		int[] order = channelOrder(mnumber);
+		Channel selectedChannel = null;
+		for (int i = 0; (i < order.length) && (selectedChannel == null)
+				&& ((System.currentTimeMillis() < maxWait)); i++) {
+
+			int channelIdx = order[i];
+
+			Channel channel = channels[channelIdx];
+			if (!isAvailable(channel) || !breakers[channelIdx].tryAcquire()) {
+				continue;
+			}
+
+			boolean success = false;
+			boolean rateLimited = false;
+			// Each attempt is only given what is left of the caller's timeout
+			long attemptTimeout = Math.max(
+					maxWait - System.currentTimeMillis(), 1L);
+			long start = latencies[channelIdx].start();
+			try {
+				selectedChannel = channel;
+
+				send(selectedChannel, m, attemptTimeout);
+
+				Thread.yield();
+
+				response = selectedChannel.receive(Math.max(
+						maxWait - System.currentTimeMillis(), 1L));
+				success = (response != null);
+			} catch (ConnectionFailureException e) {
+				selectedChannel = null;
+			} catch (RateLimitExceededException e) {
+				// Channel is busy, not failing
+				selectedChannel = null;
+				rateLimited = true;
+			} finally {
+				if (rateLimited) {
+					latencies[channelIdx].abandon();
+					breakers[channelIdx].onAbandoned();
+				} else {
+					if (success) {
+						latencyWindows[channelIdx].record(latencies[channelIdx]
+								.end(start));
+					} else {
+						latencies[channelIdx].fail(start, attemptTimeout);
+					}
+					attemptEnded(channelIdx, success);
+				}
+			}
+		}
+
+		return response;
+	}
+
+	private ISOMsg awaitResponse(CompletableFuture<ISOMsg> future)
+			throws ISOException {
+		try {
+			return future.get();
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException e) {
+			throw new ISOException(e.getCause());
+		}
+	}
+
+	/**
+	 * Waits for the response to the original of a retransmitted request, no
+	 * longer than the retransmission's own timeout
+	 * 
+	 * @return copy of the original response, null if none
+	 */
+	private ISOMsg awaitDuplicate(CompletableFuture<ISOMsg> running,
+			long timeout) {
+		try {
+			ISOMsg response = running.get(timeout, TimeUnit.MILLISECONDS);
+			return (response != null) ? (ISOMsg) response.clone() : null;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return null;
+		} catch (ExecutionException | TimeoutException e) {
+			return null;
+		}
+	}
+
+	/**
+	 * Reports the outcome of a request sent through a channel to its circuit
+	 * breaker
+	 * 
+	 * @param channelIdx
+	 *            channel index
+	 * @param success
+	 *            true if a response has been received
+	 */
+	protected void attemptEnded(int channelIdx, boolean success) {
+		CircuitBreaker breaker = breakers[channelIdx];
+		if (success) {
+			if (breaker.onSuccess()) {
+				getLog().info(
+						String.format(
+								"%s : channel '%s' has recovered, circuit breaker closed",
+								this.getName(), channelsName[channelIdx]));
+			}
+		} else if (breaker.onFailure()) {
+			getLog().warn(
+					String.format(
+							"%s : channel '%s' is failing, circuit breaker opened",
+							this.getName(), channelsName[channelIdx]));
+		}
+	}
+
+	/**
+	 * @param mnumber
+	 *            request sequence number
+	 * @return indexes of the channels to try in turn, according to the
+	 *         configured strategy
+	 */
+	protected int[] channelOrder(int mnumber) {
+		int[] order = new int[channelsName.length];
+
+		if (LEAST_LATENCY == strategy) {
+			double[] costs = new double[order.length];
+			for (int i = 0; i < order.length; i++) {
+				costs[i] = latencies[i].getCost();
+				// Insertion sort, channels are few
+				int j = i;
+				while ((j > 0) && (costs[order[j - 1]] > costs[i])) {
+					order[j] = order[j - 1];
+					j--;
+				}
+				order[j] = i;
+			}
+		} else {
+			for (int i = 0; i < order.length; i++) {
+				if (PRIMARY_SECONDARY == strategy) {
+					order[i] = i;
+				} else {
+					order[i] = (mnumber + i) % order.length;
+				}
+			}
+		}
+
+		return order;
+	}
+
+	/**
+	 * Refreshes the cache of resolved channels from the {@link NameRegistrar}.
+	 * Channels appearing or disappearing are logged once, not on each request.
+	 */
+	protected synchronized void resolveChannels() {
+		Channel[] previous = resolvedChannels;
+		Channel[] resolved = new Channel[channelsName.length];
+		boolean changed = false;
+
+		for (int i = 0; i < channelsName.length; i++) {
+			Object object = NameRegistrar.getIfExists(channelsName[i]);
+			if (object instanceof Channel) {
+				resolved[i] = (Channel) object;
+			}
+
+			if (resolved[i] != previous[i]) {
+				changed = true;
+				if (resolved[i] == null) {
+					getLog().warn(
+							String.format(
+									"%s : channel '%s' is no longer registered",
+									this.getName(), channelsName[i]));
+				} else {
+					getLog().info(
+							String.format("%s : channel '%s' resolved",
+									this.getName(), channelsName[i]));
+				}
+			}
+		}
+
+		if (changed) {
+			resolvedChannels = resolved;
+		}
+	}
+
+	/**
+	 * @return resolved channels, refreshed first when {@code <resolve-ttl>} is
+	 *         0 or less
+	 */
+	protected Channel[] getChannels() {
+		if (resolveTTL <= 0L) {
+			resolveChannels();
+		}
+		return resolvedChannels;
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jpos.iso.MUX#request(org.jpos.iso.ISOMsg, long,
+	 * org.jpos.iso.ISOResponseListener, java.lang.Object)
+	 */
+	public void request(ISOMsg m, long timeout, ISOResponseListener r,
+			Object handBack) throws ISOException {
+		if (completionExecutor == null) {
+			throw new ISOException(String.format(
+					"%s : channel pool is not running", this.getName()));
+		}
+
+		int mnumber = 0;
+		synchronized (this) {
+			mnumber = msgno++;
+		}
+
+		requestAsync(m, timeout, mnumber).whenCompleteAsync(
+				(response, t) -> {
+					if (response != null) {
+						r.responseReceived(response, handBack);
+					} else {
+						r.expired(handBack);
+					}
+				}, completionExecutor);
+	}
+
+	/**
+	 * @return future response to a request, shared with the original request
+	 *         when it is a retransmission and duplicate suppression is enabled
+	 */
+	private CompletableFuture<ISOMsg> requestAsync(ISOMsg m, long timeout,
+			int mnumber) {
+		DuplicateCache cache = duplicateCache;
+		String key = (cache != null) ? cache.keyOf(m) : null;
+		if (key == null) {
+			return new AsyncRequest(m, timeout, mnumber).start();
+		}
+
+		ISOMsg recent = cache.getRecent(key);
+		if (recent != null) {
+			return CompletableFuture.completedFuture(recent);
+		}
+
+		final CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		CompletableFuture<ISOMsg> running = cache.join(key, leader);
+		if (running != null) {
+			// The retransmission keeps its own timeout
+			final CompletableFuture<ISOMsg> duplicate = new CompletableFuture<ISOMsg>();
+			running.whenComplete((response, t) -> duplicate
+					.complete((response != null) ? (ISOMsg) response.clone()
+							: null));
+			final ScheduledFuture<?> expiry = expiryScheduler.schedule(
+					() -> duplicate.complete(null), timeout,
+					TimeUnit.MILLISECONDS);
+			duplicate.whenComplete((response, t) -> expiry.cancel(false));
+			return duplicate;
+		}
+
+		new AsyncRequest(m, timeout, mnumber).start().whenComplete(
+				(response, t) -> leader.complete(response));
+		return leader;
+	}
+
+	/**
+	 * Queue a message to be sent through a channel, binding the conversation
+	 * to given timeout whenever channel supports it
+	 */
+	private void send(Channel channel, ISOMsg m, long timeout) {
+		if (channel instanceof AsyncChannel) {
+			((AsyncChannel) channel).send(m, timeout);
+		} else {
+			channel.send(m);
+		}
+	}
+
+	/**
+	 * Sends a message through a channel without blocking the caller<BR>
+	 * {@link AsyncChannel}s are driven natively, any other channel is driven by
+	 * a thread of the blocking pool, completion threads being kept for
+	 * listener notifications.
+	 * 
+	 * @param channel
+	 *            selected channel
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time to wait for the response
+	 * @return future of the response
+	 */
+	protected CompletableFuture<ISOMsg> sendAsync(final Channel channel,
+			final ISOMsg m, final long timeout) {
+		if (channel instanceof AsyncChannel) {
+			return ((AsyncChannel) channel).submit(m, timeout);
+		}
+
+		final long maxWait = System.currentTimeMillis() + timeout;
+		return CompletableFuture.supplyAsync(() -> {
+			send(channel, m, Math.max(maxWait - System.currentTimeMillis(), 1L));
+			return channel.receive(Math.max(
+					maxWait - System.currentTimeMillis(), 1L));
+		}, blockingExecutor);
+	}
+
+	/**
+	 * State of a request driven asynchronously, walking the channels the same
+	 * way {@link #request(ISOMsg, long)} does : next channel is tried when
+	 * current one is not registered or reports a connection failure.<BR>
+	 * A hedged request also sends a duplicate to the next channel when the
+	 * first one has not answered within its usual response time. The first
+	 * response received wins, remaining conversations are then cancelled.
+	 */
+	protected class AsyncRequest implements Runnable {
+		private final ISOMsg request;
+		private final long timeout;
+		private final long maxWait;
+		private final Channel[] channels;
+		private final int[] order;
+		private final boolean hedged;
+		private final CompletableFuture<ISOMsg> result = new CompletableFuture<ISOMsg>();
+		private final List<CompletableFuture<ISOMsg>> inFlight = new ArrayList<CompletableFuture<ISOMsg>>(
+				2);
+		private volatile ScheduledFuture<?> expiry;
+		private volatile ScheduledFuture<?> hedge;
+		private int attempt = 0;
+
+		public AsyncRequest(ISOMsg request, long timeout, int mnumber) {
+			this.request = request;
+			this.timeout = timeout;
+			this.maxWait = System.currentTimeMillis() + timeout;
+			this.channels = getChannels();
+			this.order = channelOrder(mnumber);
+			this.hedged = isHedgeable(request);
+		}
+
+		/**
+		 * @return future of the response, completed with {@code null} when
+		 *         request expired or all channels failed
+		 */
+		public CompletableFuture<ISOMsg> start() {
+			if (timeout > 0) {
+				expiry = expiryScheduler.schedule(this, timeout,
+						TimeUnit.MILLISECONDS);
+			}
+			if (!tryNextChannel()) {
+				complete(null);
+			}
+			return result;
+		}
+
+		/**
+		 * Expiration task
+		 */
+		public void run() {
+			complete(null);
+		}
+
+		/**
+		 * Sends the request through the next available channel
+		 * 
+		 * @return false if no channel is left to try
+		 */
+		private synchronized boolean tryNextChannel() {
+			while ((attempt < order.length) && !result.isDone()
+					&& (System.currentTimeMillis() < maxWait)) {
+				final int channelIdx = order[attempt++];
+
+				Channel selectedChannel = channels[channelIdx];
+				if (!isAvailable(selectedChannel)
+						|| !breakers[channelIdx].tryAcquire()) {
+					continue;
+				}
+
+				// A hedged duplicate gets its own copy of the request
+				ISOMsg m = inFlight.isEmpty() ? request : (ISOMsg) request
+						.clone();
+				final long attemptTimeout = Math.max(
+						maxWait - System.currentTimeMillis(), 1L);
+				final long start = latencies[channelIdx].start();
+				final CompletableFuture<ISOMsg> future = sendAsync(
+						selectedChannel, m, attemptTimeout);
+				inFlight.add(future);
+				future.whenComplete((response, t) -> {
+					if (unwrap(t) instanceof RateLimitExceededException) {
+						// Not sent at all
+						latencies[channelIdx].abandon();
+						breakers[channelIdx].onAbandoned();
+					} else if (future.isCancelled()
+							&& (result.getNow(null) != null)) {
+						// Lost the race against a hedged duplicate : elapsed
+						// time is a lower bound of its response time
+						latencies[channelIdx].end(start);
+						breakers[channelIdx].onAbandoned();
+					} else if ((t == null) && (response != null)) {
+						latencyWindows[channelIdx].record(latencies[channelIdx]
+								.end(start));
+						attemptEnded(channelIdx, true);
+					} else {
+						latencies[channelIdx].fail(start, attemptTimeout);
+						attemptEnded(channelIdx, false);
+					}
+					attemptCompleted(future, response, t);
+				});
+
+				if (hedged && (hedge == null)) {
+					scheduleHedge(channelIdx);
+				}
+				return true;
+			}
+
+			return false;
+		}
+
+		private void scheduleHedge(int channelIdx) {
+			long delay = latencyWindows[channelIdx].percentile(
+					hedgePercentile, HEDGE_MIN_SAMPLES);
+			if (delay < 0) {
+				return;
+			}
+			delay = Math.max(delay, hedgeMinDelay);
+			if (System.currentTimeMillis() + delay >= maxWait) {
+				return;
+			}
+
+			hedge = expiryScheduler.schedule(() -> {
+				if (!result.isDone()) {
+					tryNextChannel();
+				}
+			}, delay, TimeUnit.MILLISECONDS);
+		}
+
+		private void attemptCompleted(CompletableFuture<ISOMsg> future,
+				ISOMsg response, Throwable t) {
+			boolean othersInFlight;
+			synchronized (this) {
+				inFlight.remove(future);
+				othersInFlight = !inFlight.isEmpty();
+			}
+
+			if ((t == null) && (response != null)) {
+				complete(response);
+				return;
+			}
+
+			if (othersInFlight) {
+				// Wait for the hedged conversation
+				return;
+			}
+
+			Throwable cause = unwrap(t);
+			if (((cause instanceof ConnectionFailureException) || (cause instanceof RateLimitExceededException))
+					&& tryNextChannel()) {
+				return;
+			}
+
+			complete(null);
+		}
+
+		private void complete(ISOMsg response) {
+			if (!result.complete(response)) {
+				return;
+			}
+
+			if (expiry != null) {
+				expiry.cancel(false);
+			}
+			if (hedge != null) {
+				hedge.cancel(false);
+			}
+
+			List<CompletableFuture<ISOMsg>> losers;
+			synchronized (this) {
+				losers = new ArrayList<CompletableFuture<ISOMsg>>(inFlight);
+			}
+			for (CompletableFuture<ISOMsg> loser : losers) {
+				loser.cancel(true);
+			}
+		}
+	}
+
+	/**
+	 * @param m
+	 *            a request
+	 * @return true if request MTI is configured as hedgeable
+	 */
+	protected boolean isHedgeable(ISOMsg m) {
+		if (hedgedMTIs.isEmpty()) {
+			return false;
+		}
+
+		try {
+			return hedgedMTIs.contains(m.getMTI());
+		} catch (ISOException e) {
+			return false;
+		}
+	}
+
+	private class PoolThreadFactory implements ThreadFactory {
+		private final String role;
+		private final AtomicInteger counter = new AtomicInteger(0);
+
+		public PoolThreadFactory(String role) {
+			this.role = role;
+		}
+
+		public Thread newThread(Runnable r) {
+			Thread t = new Thread(r, String.format("%s-%s-%d",
+					OneShotChannelPool.this.getName(), role,
+					counter.incrementAndGet()));
+			t.setDaemon(true);
+			return t;
+		}
+	}
+
+	/*
+	 * (non-Javadoc)
+	 * 
+	 * @see org.jpos.iso.MUX#isConnected()
+	 */
+	public boolean isConnected() {
+		// We consider pool is connected if one channel at least is well
+		// deployed and registered, and its remote endpoint is not known to be
+		// unreachable
+
+		Channel[] channels = getChannels();
+		for (int i = 0; (i < channels.length); i++) {
+			if (isAvailable(channels[i])) {
+				return true;
+			}
+		}
+
+		return false;
+	}
+
+	private static Throwable unwrap(Throwable t) {
+		return (t instanceof CompletionException) ? t.getCause() : t;
+	}
+
+	/**
+	 * @return true if channel is registered and not known to be unhealthy
+	 */
+	protected static boolean isAvailable(Channel channel) {
+		if (channel == null) {
+			return false;
+		}
+		return !(channel instanceof HealthAwareChannel)
+				|| ((HealthAwareChannel) channel).isHealthy();
+	}
+
+}
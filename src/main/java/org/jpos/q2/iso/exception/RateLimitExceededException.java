@@ -0,0 +1,30 @@
+package org.jpos.q2.iso.exception;
+
+
+/**
+ * Thrown when a request cannot be sent within its deadline without exceeding
+ * the rate agreed with the remote host. The request has not been sent.
+ * 
+ * @author dgrandemange
+ *
+ */
+@SuppressWarnings("serial")
+public class RateLimitExceededException extends RuntimeException {
+
+	public RateLimitExceededException() {
+		super();
+	}
+
+	public RateLimitExceededException(String arg0, Throwable arg1) {
+		super(arg0, arg1);
+	}
+
+	public RateLimitExceededException(String arg0) {
+		super(arg0);
+	}
+
+	public RateLimitExceededException(Throwable arg0) {
+		super(arg0);
+	}
+
+}
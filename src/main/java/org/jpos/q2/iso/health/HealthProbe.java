@@ -0,0 +1,297 @@
+package org.jpos.q2.iso.health;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.util.Date;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.ISODate;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOUtil;
+import org.jpos.q2.iso.AsyncChannel;
+import org.jpos.util.Log;
+
+/**
+ * Probes a remote endpoint in background, at a fixed interval, and keeps its
+ * health state<BR>
+ *
+ * Two probes are provided : {@code tcp} opens (then closes) a TCP connection
+ * to the endpoint, {@code echo} sends a network management request (0800,
+ * field 70 set to 301) through the channel and expects a response.<BR>
+ *
+ * Endpoint is considered down after {@code failureThreshold} consecutive
+ * failed probes, and up again after {@code successThreshold} consecutive
+ * successful ones. Until first probe completes, health is unknown and
+ * endpoint is considered up.<BR>
+ *
+ * Configuration elements, read by
+ * {@link #fromConfiguration(String, Element, AsyncChannel, String, int, Log)}
+ * : {@code <health-probe>} ({@code none}, default, {@code tcp} or
+ * {@code echo}), {@code <health-probe-interval>} (millis, default is 5000),
+ * {@code <health-probe-timeout>} (millis, default is 2000),
+ * {@code <health-probe-failures>} (default is 2) and
+ * {@code <health-probe-successes>} (default is 1).
+ *
+ * @author dgrandemange
+ *
+ */
+public class HealthProbe implements Runnable {
+
+	public static final String PROBE_NONE = "none";
+	public static final String PROBE_TCP = "tcp";
+	public static final String PROBE_ECHO = "echo";
+
+	public static final String STATE_UNKNOWN = "unknown";
+	public static final String STATE_UP = "up";
+	public static final String STATE_DOWN = "down";
+
+	/**
+	 * A single reachability check, failing by throwing an exception
+	 */
+	public interface Check {
+		void check() throws Exception;
+	}
+
+	private final String name;
+
+	private final Check check;
+
+	private final int failureThreshold;
+
+	private final int successThreshold;
+
+	private final Log log;
+
+	private volatile String state = STATE_UNKNOWN;
+
+	private int consecutiveFailures;
+
+	private int consecutiveSuccesses;
+
+	private volatile long lastProbeTime;
+
+	private volatile String lastFailure;
+
+	private ScheduledExecutorService scheduler;
+
+	public HealthProbe(String name, Check check, int failureThreshold,
+			int successThreshold, Log log) {
+		this.name = name;
+		this.check = check;
+		this.failureThreshold = Math.max(failureThreshold, 1);
+		this.successThreshold = Math.max(successThreshold, 1);
+		this.log = log;
+	}
+
+	/**
+	 * Creates a probe as configured under given QBean element
+	 *
+	 * @param channel
+	 *            channel through which {@code echo} probes are sent
+	 * @param host
+	 *            host {@code tcp} probes connect to
+	 * @param port
+	 *            port {@code tcp} probes connect to
+	 * @return configured probe, not started yet, or null if probing is
+	 *         disabled
+	 */
+	public static HealthProbe fromConfiguration(String name, Element persist,
+			AsyncChannel channel, String host, int port, Log log)
+			throws ConfigurationException {
+		String s = persist.getChildTextTrim("health-probe");
+		String type = (s != null) ? s : PROBE_NONE;
+		s = persist.getChildTextTrim("health-probe-timeout");
+		int timeout = (s != null) ? Integer.parseInt(s) : 2000; // reasonable
+																// default
+		s = persist.getChildTextTrim("health-probe-failures");
+		int failures = (s != null) ? Integer.parseInt(s) : 2; // reasonable
+																// default
+		s = persist.getChildTextTrim("health-probe-successes");
+		int successes = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																// default
+
+		Check check;
+		if (PROBE_NONE.equals(type)) {
+			return null;
+		} else if (PROBE_TCP.equals(type)) {
+			check = tcpCheck(host, port, timeout);
+		} else if (PROBE_ECHO.equals(type)) {
+			check = echoCheck(channel, timeout);
+		} else {
+			throw new ConfigurationException(String.format(
+					"unknown health probe '%s' (expecting '%s', '%s' or '%s')",
+					type, PROBE_NONE, PROBE_TCP, PROBE_ECHO));
+		}
+
+		return new HealthProbe(name, check, failures, successes, log);
+	}
+
+	/**
+	 * @return interval (in millis) between two probes, as configured under
+	 *         given QBean element
+	 */
+	public static long intervalOf(Element persist) {
+		String s = persist.getChildTextTrim("health-probe-interval");
+		return (s != null) ? Long.parseLong(s) : 5000L; // reasonable default
+	}
+
+	/**
+	 * @return a check opening a TCP connection to given endpoint
+	 */
+	public static Check tcpCheck(final String host, final int port,
+			final int timeout) {
+		return new Check() {
+			public void check() throws IOException {
+				Socket socket = new Socket();
+				try {
+					socket.connect(new InetSocketAddress(host, port), timeout);
+				} finally {
+					socket.close();
+				}
+			}
+		};
+	}
+
+	/**
+	 * @return a check sending an echo request through given channel
+	 */
+	public static Check echoCheck(final AsyncChannel channel,
+			final long timeout) {
+		final AtomicInteger stan = new AtomicInteger(0);
+		return new Check() {
+			public void check() throws Exception {
+				ISOMsg m = new ISOMsg("0800");
+				m.set(7, ISODate.getDateTime(new Date()));
+				m.set(11, ISOUtil.zeropad(Integer.toString((stan
+						.incrementAndGet() & Integer.MAX_VALUE) % 1000000), 6));
+				m.set(70, "301");
+
+				ISOMsg response;
+				try {
+					response = channel.submit(m, timeout).get(timeout,
+							TimeUnit.MILLISECONDS);
+				} catch (ExecutionException e) {
+					Throwable cause = e.getCause();
+					throw (cause instanceof Exception) ? (Exception) cause : e;
+				}
+				if (response == null) {
+					throw new ISOException("no echo response");
+				}
+			}
+		};
+	}
+
+	/**
+	 * Starts probing in background, first probe being run at once
+	 *
+	 * @param interval
+	 *            delay (in millis) between two probes
+	 */
+	public synchronized void start(long interval) {
+		scheduler = Executors
+				.newSingleThreadScheduledExecutor(new ThreadFactory() {
+					public Thread newThread(Runnable r) {
+						Thread t = new Thread(r, name + "-health-probe");
+						t.setDaemon(true);
+						return t;
+					}
+				});
+		scheduler.scheduleWithFixedDelay(this, 0L, interval,
+				TimeUnit.MILLISECONDS);
+	}
+
+	public synchronized void stop() {
+		if (scheduler != null) {
+			scheduler.shutdownNow();
+			scheduler = null;
+		}
+	}
+
+	/**
+	 * Runs one probe
+	 */
+	public void run() {
+		Exception failure = null;
+		try {
+			check.check();
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			return;
+		} catch (Exception e) {
+			failure = e;
+		}
+		lastProbeTime = System.currentTimeMillis();
+
+		synchronized (this) {
+			if (failure == null) {
+				consecutiveFailures = 0;
+				consecutiveSuccesses++;
+				lastFailure = null;
+				if (!STATE_UP.equals(state)
+						&& (STATE_UNKNOWN.equals(state) || (consecutiveSuccesses >= successThreshold))) {
+					changeState(STATE_UP, null);
+				}
+			} else {
+				consecutiveSuccesses = 0;
+				consecutiveFailures++;
+				lastFailure = String.valueOf(failure.getMessage());
+				if (!STATE_DOWN.equals(state)
+						&& (consecutiveFailures >= failureThreshold)) {
+					changeState(STATE_DOWN, failure);
+				}
+			}
+		}
+	}
+
+	private void changeState(String newState, Exception failure) {
+		String previous = state;
+		state = newState;
+		if (STATE_DOWN.equals(newState)) {
+			log.warn(String.format(
+					"%s : remote endpoint unreachable after %d failed probes. %s",
+					name, consecutiveFailures, failure.getMessage()));
+		} else if (STATE_DOWN.equals(previous)) {
+			log.info(String.format("%s : remote endpoint reachable again",
+					name));
+		}
+	}
+
+	/**
+	 * @return false once endpoint is considered down
+	 */
+	public boolean isHealthy() {
+		return !STATE_DOWN.equals(state);
+	}
+
+	/**
+	 * @return {@code unknown}, {@code up} or {@code down}
+	 */
+	public String getState() {
+		return state;
+	}
+
+	/**
+	 * @return time of the last completed probe, 0 if none
+	 */
+	public long getLastProbeTime() {
+		return lastProbeTime;
+	}
+
+	/**
+	 * @return message of the last probe failure, null if last probe
+	 *         succeeded
+	 */
+	public String getLastFailure() {
+		return lastFailure;
+	}
+
+}
@@ -0,0 +1,125 @@
+package org.jpos.q2.iso.lane;
+
+import java.util.ArrayDeque;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Deque;
+import java.util.HashSet;
+import java.util.Set;
+import java.util.concurrent.Executor;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+/**
+ * A priority class of requests, with its own queue and its own reserved
+ * capacity (see {@link LaneScheduler})<BR>
+ * A request belongs to the lane if its MTI is one of the lane MTIs (when
+ * set) and if the lane field holds one of the lane values (when set).
+ *
+ * @author dgrandemange
+ *
+ */
+public class Lane {
+
+	/**
+	 * A task waiting in the lane queue, with the executor to run it on
+	 */
+	static class Entry {
+		final Runnable task;
+
+		final Executor executor;
+
+		Entry(Runnable task, Executor executor) {
+			this.task = task;
+			this.executor = executor;
+		}
+	}
+
+	private final String name;
+
+	private final Set<String> mtis;
+
+	private final int field;
+
+	private final Set<String> values;
+
+	private final int reserved;
+
+	private final int queueSize;
+
+	/**
+	 * Guarded by the scheduler
+	 */
+	final Deque<Entry> queue = new ArrayDeque<Entry>();
+
+	int reservedInUse;
+
+	int running;
+
+	long rejected;
+
+	/**
+	 * @param mtis
+	 *            space separated MTIs, null to match any MTI
+	 * @param field
+	 *            field to match, 0 for none
+	 * @param values
+	 *            space separated values of {@code field}
+	 * @param reserved
+	 *            number of conversations only this lane may run
+	 * @param queueSize
+	 *            maximum number of requests waiting in this lane
+	 */
+	public Lane(String name, String mtis, int field, String values,
+			int reserved, int queueSize) {
+		this.name = name;
+		this.mtis = split(mtis);
+		this.field = field;
+		this.values = split(values);
+		this.reserved = reserved;
+		this.queueSize = queueSize;
+	}
+
+	private static Set<String> split(String s) {
+		if ((s == null) || (s.trim().length() == 0)) {
+			return Collections.emptySet();
+		}
+		return new HashSet<String>(Arrays.asList(s.trim().split("[\\s,]+")));
+	}
+
+	/**
+	 * @return true if request belongs to this lane
+	 */
+	public boolean matches(ISOMsg m) {
+		if (!mtis.isEmpty()) {
+			try {
+				if (!mtis.contains(m.getMTI())) {
+					return false;
+				}
+			} catch (ISOException e) {
+				return false;
+			}
+		}
+		if (field > 0) {
+			String value = m.getString(field);
+			if ((value == null) || !values.contains(value.trim())) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+	public String getName() {
+		return name;
+	}
+
+	public int getReserved() {
+		return reserved;
+	}
+
+	public int getQueueSize() {
+		return queueSize;
+	}
+
+}
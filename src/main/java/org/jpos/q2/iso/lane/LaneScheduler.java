@@ -0,0 +1,260 @@
+package org.jpos.q2.iso.lane;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.Executor;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+
+import org.jpos.iso.ISOMsg;
+import org.jpos.util.Log;
+
+/**
+ * Runs conversations by priority, within a fixed capacity (the number of
+ * channels)<BR>
+ * Each priority lane holds its own queue and may reserve part of the
+ * capacity, which requests of other lanes never use, so that a burst in one
+ * lane cannot starve another. Remaining capacity is shared : whenever a
+ * conversation ends, the next one is taken from the highest priority lane
+ * having a request waiting and capacity available. Requests matching no
+ * priority lane go to the default lane, lowest priority, using shared
+ * capacity only.<BR>
+ * Tasks are handed to their executor wrapped in a {@link Dispatched}, see
+ * {@link #unwrap(Runnable)}. Once {@link #shutdown()} is called, queued tasks
+ * are handed back to the caller and no more task is dispatched.
+ *
+ * @author dgrandemange
+ *
+ */
+public class LaneScheduler {
+
+	public static final String DEFAULT_LANE = "default";
+
+	/**
+	 * A task handed to its executor, releasing its capacity once run
+	 */
+	public class Dispatched implements Runnable {
+		private final Runnable task;
+
+		private final Lane lane;
+
+		private final boolean fromReserve;
+
+		Dispatched(Runnable task, Lane lane, boolean fromReserve) {
+			this.task = task;
+			this.lane = lane;
+			this.fromReserve = fromReserve;
+		}
+
+		public void run() {
+			try {
+				task.run();
+			} finally {
+				release(lane, fromReserve);
+				dispatch();
+			}
+		}
+
+		/**
+		 * @return task queued in the lane
+		 */
+		public Runnable getTask() {
+			return task;
+		}
+	}
+
+	/**
+	 * Lanes by decreasing priority, default lane last
+	 */
+	private final Lane[] lanes;
+
+	/**
+	 * Capacity not reserved by any lane and not in use, guarded by this
+	 */
+	private int sharedAvailable;
+
+	/**
+	 * Guarded by this
+	 */
+	private boolean shutdown;
+
+	private final String name;
+
+	private final Log log;
+
+	/**
+	 * @param name
+	 *            name of the scheduler owner, used in log messages
+	 * @param priorityLanes
+	 *            lanes by decreasing priority
+	 * @param capacity
+	 *            maximum number of conversations run at once
+	 * @param defaultQueueSize
+	 *            maximum number of requests waiting in the default lane
+	 * @param log
+	 *            where tasks dropped by a shut down executor are reported,
+	 *            may be null
+	 * @throws IllegalArgumentException
+	 *             if lanes reserve more than the whole capacity
+	 */
+	public LaneScheduler(String name, List<Lane> priorityLanes,
+			int capacity, int defaultQueueSize, Log log) {
+		int reserved = 0;
+		for (Lane lane : priorityLanes) {
+			reserved += lane.getReserved();
+		}
+		if (reserved > capacity) {
+			throw new IllegalArgumentException(String.format(
+					"lanes reserve %d conversations, more than the %d available",
+					reserved, capacity));
+		}
+
+		lanes = priorityLanes.toArray(new Lane[priorityLanes.size() + 1]);
+		lanes[priorityLanes.size()] = new Lane(DEFAULT_LANE, null, 0, null, 0,
+				defaultQueueSize);
+		sharedAvailable = capacity - reserved;
+		this.name = name;
+		this.log = log;
+	}
+
+	/**
+	 * @return lane the request belongs to, default lane if none
+	 */
+	public Lane laneOf(ISOMsg m) {
+		for (int i = 0; i < lanes.length - 1; i++) {
+			if (lanes[i].matches(m)) {
+				return lanes[i];
+			}
+		}
+		return lanes[lanes.length - 1];
+	}
+
+	/**
+	 * Queues a task in its lane, to be run on the given executor once
+	 * capacity is available
+	 *
+	 * @throws RejectedExecutionException
+	 *             if lane queue is full, or if scheduler is shut down
+	 */
+	public void execute(Lane lane, Runnable task, Executor executor)
+			throws RejectedExecutionException {
+		synchronized (this) {
+			if (shutdown) {
+				throw new RejectedExecutionException(
+						"lane scheduler is shut down");
+			}
+			if (lane.queue.size() >= lane.getQueueSize()) {
+				lane.rejected++;
+				throw new RejectedExecutionException(String.format(
+						"lane '%s' queue is full (%d requests)",
+						lane.getName(), lane.getQueueSize()));
+			}
+			lane.queue.addLast(new Lane.Entry(task, executor));
+		}
+		dispatch();
+	}
+
+	/**
+	 * Runs waiting tasks, by priority, as long as capacity is available
+	 */
+	private synchronized void dispatch() {
+		if (shutdown) {
+			return;
+		}
+		for (int i = 0; i < lanes.length; i++) {
+			final Lane lane = lanes[i];
+			while (!lane.queue.isEmpty()) {
+				final boolean fromReserve;
+				if (lane.reservedInUse < lane.getReserved()) {
+					fromReserve = true;
+				} else if (sharedAvailable > 0) {
+					fromReserve = false;
+				} else {
+					break;
+				}
+
+				Lane.Entry entry = lane.queue.pollFirst();
+				take(lane, fromReserve);
+				Runnable task = entry.task;
+				try {
+					entry.executor.execute(new Dispatched(task, lane,
+							fromReserve));
+				} catch (RejectedExecutionException e) {
+					// Executor is shut down
+					release(lane, fromReserve);
+					if (task instanceof Future) {
+						((Future<?>) task).cancel(false);
+					}
+					if (log != null) {
+						log.warn(String.format(
+								"%s : task of lane '%s' dropped, executor is shut down",
+								name, lane.getName()));
+					}
+				}
+			}
+		}
+	}
+
+	/**
+	 * Stops dispatching tasks : tasks still queued are removed from their
+	 * lane and handed back, and tasks submitted from now on are rejected
+	 *
+	 * @return tasks which were queued, by decreasing priority then in
+	 *         submission order
+	 */
+	public synchronized List<Runnable> shutdown() {
+		shutdown = true;
+		List<Runnable> queued = new ArrayList<Runnable>();
+		for (Lane lane : lanes) {
+			for (Lane.Entry entry : lane.queue) {
+				queued.add(entry.task);
+			}
+			lane.queue.clear();
+		}
+		return queued;
+	}
+
+	/**
+	 * @return task queued in its lane, if {@code r} is a task handed to an
+	 *         executor by this scheduler, {@code r} itself otherwise
+	 */
+	public static Runnable unwrap(Runnable r) {
+		return (r instanceof Dispatched) ? ((Dispatched) r).getTask() : r;
+	}
+
+	private void take(Lane lane, boolean fromReserve) {
+		lane.running++;
+		if (fromReserve) {
+			lane.reservedInUse++;
+		} else {
+			sharedAvailable--;
+		}
+	}
+
+	private synchronized void release(Lane lane, boolean fromReserve) {
+		lane.running--;
+		if (fromReserve) {
+			lane.reservedInUse--;
+		} else {
+			sharedAvailable++;
+		}
+	}
+
+	/**
+	 * @return state of each lane, e.g.
+	 *         {@code reversals(running=1, queued=0, rejected=0)}
+	 */
+	public synchronized String getStatus() {
+		StringBuilder sb = new StringBuilder();
+		for (Lane lane : lanes) {
+			if (sb.length() > 0) {
+				sb.append(", ");
+			}
+			sb.append(String.format("%s(running=%d, queued=%d, rejected=%d)",
+					lane.getName(), lane.running, lane.queue.size(),
+					lane.rejected));
+		}
+		return sb.toString();
+	}
+
+}
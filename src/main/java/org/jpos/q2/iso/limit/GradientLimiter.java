@@ -0,0 +1,209 @@
+package org.jpos.q2.iso.limit;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Adaptive concurrency limit, growing and shrinking the number of concurrent
+ * conversations allowed towards a remote host according to their observed
+ * latency<BR>
+ * Two response times are tracked : a short term moving average, following
+ * current conditions, and a baseline, following the lowest short term average
+ * seen and drifting up slowly (within a few minutes) when the host gets
+ * durably slower. While the short term average stays within
+ * {@code tolerance} times the baseline, the limit grows by about the square
+ * root of its value ; once the host slows down beyond, the limit is scaled
+ * down by the ratio of both (by half at most). A failed conversation (timeout, connection
+ * failure) cuts the limit by 10%.<BR>
+ * The limit only grows while it is actually used : samples taken while less
+ * than half of it is in flight say nothing about how much more the host may
+ * take.<BR>
+ * Every conversation let through by {@link #tryAcquire()} must be reported
+ * with either {@link #onSuccess(long)}, {@link #onDropped()} or
+ * {@link #onIgnored()}.
+ *
+ * @author dgrandemange
+ *
+ */
+public class GradientLimiter {
+
+	/**
+	 * Weight of a new sample in the short term average (about 10 samples)
+	 */
+	private static final double SHORT_ALPHA = 2d / 11d;
+
+	/**
+	 * Time constant (in nanos) of the baseline upward drift
+	 */
+	private static final double BASELINE_DRIFT_TIME = 60d * 1000000000d;
+
+	/**
+	 * Share of a new limit estimate blended into the current limit
+	 */
+	private static final double SMOOTHING = 0.2d;
+
+	/**
+	 * Factor applied to the limit when a conversation fails
+	 */
+	private static final double BACKOFF_RATIO = 0.9d;
+
+	private final int minLimit;
+
+	private final int maxLimit;
+
+	private final double tolerance;
+
+	private final AtomicInteger inFlight = new AtomicInteger(0);
+
+	private volatile int limit;
+
+	/**
+	 * Limit before rounding, guarded by this
+	 */
+	private double estimatedLimit;
+
+	/**
+	 * Short term average and baseline response times (in nanos), 0 until the
+	 * first sample, guarded by this
+	 */
+	private double shortRtt;
+
+	private double baselineRtt;
+
+	private long stamp = System.nanoTime();
+
+	/**
+	 * @param initialLimit
+	 *            limit until the first samples are taken
+	 * @param minLimit
+	 *            lower bound of the limit
+	 * @param maxLimit
+	 *            upper bound of the limit
+	 * @param tolerance
+	 *            how slower than its baseline the host may get before the
+	 *            limit is reduced, e.g. 1.5
+	 */
+	public GradientLimiter(int initialLimit, int minLimit, int maxLimit,
+			double tolerance) {
+		if ((minLimit < 1) || (maxLimit < minLimit)) {
+			throw new IllegalArgumentException(String.format(
+					"invalid limit bounds [%d, %d]", minLimit, maxLimit));
+		}
+		if (tolerance < 1d) {
+			throw new IllegalArgumentException(String.format(
+					"tolerance must be at least 1 (%s)", tolerance));
+		}
+		this.minLimit = minLimit;
+		this.maxLimit = maxLimit;
+		this.tolerance = tolerance;
+		this.estimatedLimit = Math.min(Math.max(initialLimit, minLimit),
+				maxLimit);
+		this.limit = (int) estimatedLimit;
+	}
+
+	/**
+	 * @return true if a conversation may start, false if limit is reached
+	 */
+	public boolean tryAcquire() {
+		while (true) {
+			int n = inFlight.get();
+			if (n >= limit) {
+				return false;
+			}
+			if (inFlight.compareAndSet(n, n + 1)) {
+				return true;
+			}
+		}
+	}
+
+	/**
+	 * To be called when a conversation completed with a response
+	 *
+	 * @param rttNanos
+	 *            conversation duration, in nanos
+	 */
+	public void onSuccess(long rttNanos) {
+		int n = inFlight.getAndDecrement();
+		sample(Math.max(rttNanos, 1L), n);
+	}
+
+	/**
+	 * To be called when a conversation failed (timeout, connection failure)
+	 */
+	public void onDropped() {
+		inFlight.decrementAndGet();
+		synchronized (this) {
+			setLimit(estimatedLimit * BACKOFF_RATIO);
+		}
+	}
+
+	/**
+	 * To be called when a conversation ended without telling anything about
+	 * the host (e.g. it was never sent)
+	 */
+	public void onIgnored() {
+		inFlight.decrementAndGet();
+	}
+
+	private synchronized void sample(long rtt, int n) {
+		long now = System.nanoTime();
+		long elapsed = Math.max(now - stamp, 0L);
+		stamp = now;
+
+		if (shortRtt == 0d) {
+			shortRtt = rtt;
+			baselineRtt = rtt;
+		} else {
+			shortRtt += SHORT_ALPHA * (rtt - shortRtt);
+			if (shortRtt < baselineRtt) {
+				baselineRtt = shortRtt;
+			} else {
+				double w = Math.exp(-elapsed / BASELINE_DRIFT_TIME);
+				baselineRtt = baselineRtt * w + shortRtt * (1d - w);
+			}
+		}
+
+		if (2 * n < estimatedLimit) {
+			return;
+		}
+
+		double gradient = Math.max(0.5d,
+				Math.min(1d, tolerance * baselineRtt / shortRtt));
+		double newLimit = estimatedLimit * gradient
+				+ Math.sqrt(estimatedLimit);
+		setLimit(estimatedLimit * (1d - SMOOTHING) + newLimit * SMOOTHING);
+	}
+
+	private void setLimit(double newLimit) {
+		estimatedLimit = Math.min(Math.max(newLimit, minLimit), maxLimit);
+		limit = (int) estimatedLimit;
+	}
+
+	/**
+	 * @return current number of concurrent conversations allowed
+	 */
+	public int getLimit() {
+		return limit;
+	}
+
+	/**
+	 * @return number of conversations in progress
+	 */
+	public int getInFlight() {
+		return inFlight.get();
+	}
+
+	/**
+	 * @return short term average response time, in millis
+	 */
+	public synchronized double getShortRtt() {
+		return shortRtt / 1000000d;
+	}
+
+	/**
+	 * @return baseline response time, in millis
+	 */
+	public synchronized double getBaselineRtt() {
+		return baselineRtt / 1000000d;
+	}
+
+}
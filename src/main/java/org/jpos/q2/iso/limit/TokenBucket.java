@@ -0,0 +1,150 @@
+package org.jpos.q2.iso.limit;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Token bucket pacing operations (requests, connections) to a contractual
+ * rate<BR>
+ * The bucket holds up to {@code burst} tokens, refilled at {@code rate} tokens
+ * per second, an operation taking one token. An operation finding the bucket
+ * empty reserves the next token to come and waits for it, reservations being
+ * served in arrival order. At most {@code maxQueued} operations may wait at
+ * once, and none is made to wait longer than its own maximum wait : such an
+ * operation is refused at once instead.
+ *
+ * @author dgrandemange
+ *
+ */
+public class TokenBucket {
+
+	private final double tokensPerNano;
+
+	private final double burst;
+
+	private final int maxQueued;
+
+	/**
+	 * Available tokens, negative when reservations are waiting, guarded by
+	 * this
+	 */
+	private double tokens;
+
+	private long stamp = System.nanoTime();
+
+	/**
+	 * @param rate
+	 *            tokens per second
+	 * @param burst
+	 *            maximum number of tokens held, i.e. of operations let
+	 *            through at once after an idle period
+	 * @param maxQueued
+	 *            maximum number of operations waiting for a token
+	 */
+	public TokenBucket(double rate, int burst, int maxQueued) {
+		if ((rate <= 0d) || (burst < 1) || (maxQueued < 0)) {
+			throw new IllegalArgumentException(String.format(
+					"invalid token bucket (rate=%s, burst=%d, queue=%d)", rate,
+					burst, maxQueued));
+		}
+		this.tokensPerNano = rate / 1000000000d;
+		this.burst = burst;
+		this.maxQueued = maxQueued;
+		this.tokens = burst;
+	}
+
+	/**
+	 * Takes a token if one is available at once
+	 *
+	 * @return false if bucket is empty
+	 */
+	public synchronized boolean tryAcquire() {
+		refill();
+		if (tokens >= 1d) {
+			tokens -= 1d;
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reserves a token, to be used once the returned delay has elapsed<BR>
+	 * A reservation which is not used must be given back with
+	 * {@link #refund()}.
+	 *
+	 * @param maxWait
+	 *            maximum delay (in millis) acceptable to the caller
+	 * @return delay (in nanos) to wait before using the token, -1 if no token
+	 *         may be reserved within {@code maxWait} or if too many operations
+	 *         are waiting already
+	 */
+	public synchronized long reserve(long maxWait) {
+		refill();
+		if (tokens >= 1d) {
+			tokens -= 1d;
+			return 0L;
+		}
+		// Once reserved, ceil(1 - tokens) operations would be waiting
+		if (tokens < 1d - maxQueued) {
+			return -1L;
+		}
+		long delay = (long) Math.ceil((1d - tokens) / tokensPerNano);
+		if (delay > TimeUnit.MILLISECONDS.toNanos(maxWait)) {
+			return -1L;
+		}
+		tokens -= 1d;
+		return delay;
+	}
+
+	/**
+	 * Gives back a reserved token which has not been used
+	 */
+	public synchronized void refund() {
+		tokens = Math.min(tokens + 1d, burst);
+	}
+
+	/**
+	 * Takes a token, waiting for it if need be
+	 *
+	 * @param maxWait
+	 *            maximum time (in millis) to wait for a token
+	 * @return false if no token may be obtained within {@code maxWait} or if
+	 *         too many operations are waiting already
+	 */
+	public boolean acquire(long maxWait) throws InterruptedException {
+		long delay = reserve(maxWait);
+		if (delay < 0L) {
+			return false;
+		}
+		if (delay > 0L) {
+			try {
+				TimeUnit.NANOSECONDS.sleep(delay);
+			} catch (InterruptedException e) {
+				refund();
+				throw e;
+			}
+		}
+		return true;
+	}
+
+	private void refill() {
+		long now = System.nanoTime();
+		tokens = Math.min(tokens + (now - stamp) * tokensPerNano, burst);
+		stamp = now;
+	}
+
+	/**
+	 * @return number of operations waiting for a token
+	 */
+	public synchronized int getQueued() {
+		refill();
+		return (tokens < 0d) ? (int) Math.ceil(-tokens) : 0;
+	}
+
+	/**
+	 * @return tokens per second
+	 */
+	public double getRate() {
+		return tokensPerNano * 1000000000d;
+	}
+
+}
@@ -0,0 +1,175 @@
+package org.jpos.q2.iso.metrics;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * A lock free latency histogram, recording values in microseconds<BR>
+ * 
+ * Values are counted in log-linear buckets : each power of two range is split
+ * in 16 buckets, so that a percentile is read with a relative error under
+ * 1/16, whatever its magnitude. Recording a value costs a couple of atomic
+ * increments, no allocation.<br>
+ * 
+ * Histogram covers a window starting at creation or at last {@link #reset()}.
+ * A reset racing with recordings may lose a few of them, which is acceptable
+ * for monitoring purposes.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class LatencyHistogram {
+
+	private static final int SUB_BUCKET_BITS = 4;
+
+	private static final int SUB_BUCKETS = 1 << SUB_BUCKET_BITS;
+
+	/**
+	 * Values up to 2^40 micros (about 12 days), larger ones are counted in the
+	 * last bucket
+	 */
+	private static final int MAX_MAGNITUDE = 40;
+
+	private static final int BUCKETS = (MAX_MAGNITUDE - SUB_BUCKET_BITS + 1)
+			* SUB_BUCKETS;
+
+	private final AtomicLongArray counts = new AtomicLongArray(BUCKETS);
+
+	private final AtomicLong count = new AtomicLong(0L);
+
+	private final AtomicLong sum = new AtomicLong(0L);
+
+	private final AtomicLong max = new AtomicLong(0L);
+
+	private volatile long windowStart = System.currentTimeMillis();
+
+	/**
+	 * @param micros
+	 *            latency to record (in microseconds), negative values are
+	 *            recorded as zero
+	 */
+	public void record(long micros) {
+		long value = Math.max(micros, 0L);
+		counts.incrementAndGet(indexOf(value));
+		count.incrementAndGet();
+		sum.addAndGet(value);
+
+		long currentMax;
+		while (value > (currentMax = max.get())) {
+			if (max.compareAndSet(currentMax, value)) {
+				break;
+			}
+		}
+	}
+
+	/**
+	 * Records time elapsed since {@code startNanos}
+	 * 
+	 * @param startNanos
+	 *            as given by {@link System#nanoTime()}
+	 */
+	public void recordSince(long startNanos) {
+		record((System.nanoTime() - startNanos) / 1000L);
+	}
+
+	static int indexOf(long value) {
+		if (value < SUB_BUCKETS) {
+			return (int) value;
+		}
+		int magnitude = 63 - Long.numberOfLeadingZeros(value);
+		int shift = magnitude - SUB_BUCKET_BITS;
+		int index = (shift + 1) * SUB_BUCKETS
+				+ (int) ((value >>> shift) & (SUB_BUCKETS - 1));
+		return Math.min(index, BUCKETS - 1);
+	}
+
+	/**
+	 * @return highest value counted in bucket
+	 */
+	static long highestValueOf(int index) {
+		if (index < SUB_BUCKETS) {
+			return index;
+		}
+		int shift = index / SUB_BUCKETS - 1;
+		long lowest = (long) (SUB_BUCKETS + index % SUB_BUCKETS) << shift;
+		return lowest + (1L << shift) - 1L;
+	}
+
+	/**
+	 * @param percentile
+	 *            between 0 and 100
+	 * @return value (in micros) below which the given percentage of recorded
+	 *         values fall, 0 if none has been recorded
+	 */
+	public long getPercentile(double percentile) {
+		long total = count.get();
+		if (total == 0L) {
+			return 0L;
+		}
+
+		long target = (long) Math.ceil(Math.min(Math.max(percentile, 0d),
+				100d) / 100d * total);
+		target = Math.max(target, 1L);
+		long cumulated = 0L;
+		for (int i = 0; i < BUCKETS; i++) {
+			cumulated += counts.get(i);
+			if (cumulated >= target) {
+				return Math.min(highestValueOf(i), max.get());
+			}
+		}
+		return max.get();
+	}
+
+	public long getCount() {
+		return count.get();
+	}
+
+	/**
+	 * @return highest recorded value (in micros)
+	 */
+	public long getMax() {
+		return max.get();
+	}
+
+	/**
+	 * @return mean of recorded values (in micros)
+	 */
+	public double getMean() {
+		long total = count.get();
+		return (total == 0L) ? 0d : (double) sum.get() / total;
+	}
+
+	/**
+	 * @return start time of the current window, as given by
+	 *         {@link System#currentTimeMillis()}
+	 */
+	public long getWindowStart() {
+		return windowStart;
+	}
+
+	/**
+	 * Starts a new window
+	 */
+	public void reset() {
+		windowStart = System.currentTimeMillis();
+		for (int i = 0; i < BUCKETS; i++) {
+			counts.set(i, 0L);
+		}
+		count.set(0L);
+		sum.set(0L);
+		max.set(0L);
+	}
+
+	/**
+	 * @return a one line summary, in millis
+	 */
+	@Override
+	public String toString() {
+		return String.format(
+				"count=%d mean=%.3fms p50=%.3fms p90=%.3fms p99=%.3fms p999=%.3fms max=%.3fms",
+				getCount(), getMean() / 1000d, getPercentile(50d) / 1000d,
+				getPercentile(90d) / 1000d, getPercentile(99d) / 1000d,
+				getPercentile(99.9d) / 1000d, getMax() / 1000d);
+	}
+
+}
@@ -0,0 +1,259 @@
+package org.jpos.q2.iso.multiplex;
+
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+
+/**
+ * A persistent channel of a {@link Multiplexer}, with its outstanding
+ * requests and the reader thread matching responses to them<BR>
+ * Each (re)connection starts a new reader, bound to that connection
+ * generation, so that a reader left over from a previous connection never
+ * tears the current one down.
+ *
+ * @author dgrandemange
+ *
+ */
+class MultiplexedConnection {
+
+	/**
+	 * Delay (in millis) before a connection may be attempted again after a
+	 * failed attempt, doubling on each consecutive failure up to
+	 * {@link #MAX_RECONNECT_DELAY}
+	 */
+	private static final long MIN_RECONNECT_DELAY = 100L;
+
+	private static final long MAX_RECONNECT_DELAY = 5000L;
+
+	/**
+	 * A request waiting for its response
+	 */
+	private static class Outstanding {
+		final CompletableFuture<ISOMsg> future;
+
+		/**
+		 * Send completion, as given by {@link System#nanoTime()}, 0 until
+		 * then
+		 */
+		volatile long sentAt;
+
+		Outstanding(CompletableFuture<ISOMsg> future) {
+			this.future = future;
+		}
+	}
+
+	private final Multiplexer parent;
+
+	private final ISOChannel channel;
+
+	private final String readerName;
+
+	private final Map<String, Outstanding> pending = new ConcurrentHashMap<String, Outstanding>();
+
+	/**
+	 * Incremented on each connection, guarded by this
+	 */
+	private int generation;
+
+	/**
+	 * Current reconnection delay, 0 after a successful connection, guarded by
+	 * this
+	 */
+	private long reconnectDelay;
+
+	/**
+	 * No connection is attempted before, as given by
+	 * {@link System#currentTimeMillis()}
+	 */
+	private volatile long reconnectAt;
+
+	MultiplexedConnection(Multiplexer parent, ISOChannel channel,
+			String readerName) {
+		this.parent = parent;
+		this.channel = channel;
+		this.readerName = readerName;
+	}
+
+	boolean isConnected() {
+		return channel.isConnected();
+	}
+
+	int getOutstanding() {
+		return pending.size();
+	}
+
+	/**
+	 * @return true if connection is not established, and may be attempted
+	 *         now
+	 */
+	boolean mayConnect() {
+		return !channel.isConnected()
+				&& (System.currentTimeMillis() >= reconnectAt);
+	}
+
+	/**
+	 * Connects channel and starts its reader, unless connected already<BR>
+	 * A failed attempt holds further attempts off for a while.
+	 *
+	 * @throws IOException
+	 *             if connection cannot be established, or may not be
+	 *             attempted yet
+	 */
+	synchronized void connect() throws IOException {
+		if (parent.isClosed()) {
+			throw new IOException(String.format("%s : multiplexer is closed",
+					parent.getName()));
+		}
+		if (channel.isConnected()) {
+			return;
+		}
+		if (System.currentTimeMillis() < reconnectAt) {
+			throw new IOException(String.format(
+					"%s : connection attempts held off for %d ms after a failure",
+					parent.getName(), reconnectDelay));
+		}
+
+		long start = System.nanoTime();
+		try {
+			channel.connect();
+		} catch (IOException e) {
+			parent.getListener().connectFailed(channel, e);
+			reconnectDelay = (reconnectDelay == 0L) ? MIN_RECONNECT_DELAY
+					: Math.min(reconnectDelay * 2, MAX_RECONNECT_DELAY);
+			reconnectAt = System.currentTimeMillis() + reconnectDelay;
+			throw e;
+		}
+		parent.getListener().connected(channel, start);
+		reconnectDelay = 0L;
+		reconnectAt = 0L;
+
+		final int readerGeneration = ++generation;
+		Thread reader = new Thread(new Runnable() {
+			public void run() {
+				read(readerGeneration);
+			}
+		}, readerName);
+		reader.setDaemon(true);
+		reader.start();
+	}
+
+	/**
+	 * Registers a request as outstanding, then sends it
+	 */
+	void send(ISOMsg m, final String key, CompletableFuture<ISOMsg> future) {
+		final Outstanding outstanding = new Outstanding(future);
+		// Registered before sending, so that a fast response is not missed
+		if (pending.putIfAbsent(key, outstanding) != null) {
+			future.completeExceptionally(new ISOException(String.format(
+					"%s : a request with the same key is outstanding already (%s)",
+					parent.getName(), key)));
+			return;
+		}
+		// A request completed from the outside (timeout, cancellation) is
+		// forgotten, its response will be unmatched
+		future.whenComplete((response, t) -> pending.remove(key, outstanding));
+
+		int sendGeneration = currentGeneration();
+		long start = System.nanoTime();
+		try {
+			channel.send(m);
+		} catch (IOException e) {
+			future.completeExceptionally(new ConnectionFailureException(e));
+			disconnect(sendGeneration);
+			return;
+		} catch (ISOException e) {
+			// Connection may have been lost since it was selected
+			future.completeExceptionally(channel.isConnected() ? e
+					: new ConnectionFailureException(e));
+			return;
+		}
+		parent.getListener().sent(start);
+		outstanding.sentAt = System.nanoTime();
+	}
+
+	private synchronized int currentGeneration() {
+		return generation;
+	}
+
+	/**
+	 * Reads responses and hands them to their outstanding request, until
+	 * connection is lost or replaced
+	 */
+	private void read(int readerGeneration) {
+		while (channel.isConnected()
+				&& (readerGeneration == currentGeneration())) {
+			ISOMsg response;
+			try {
+				response = channel.receive();
+			} catch (IOException e) {
+				// Connection lost (jPOS also closes the socket on a receive
+				// timeout, which the multiplexer disables)
+				break;
+			} catch (ISOException e) {
+				// Unparsable message, stream may be out of sync
+				break;
+			}
+
+			String key;
+			try {
+				key = parent.keyOf(response);
+			} catch (ISOException e) {
+				parent.unmatched(response);
+				continue;
+			}
+
+			Outstanding outstanding = pending.remove(key);
+			if (outstanding == null) {
+				parent.unmatched(response);
+				continue;
+			}
+			long sentAt = outstanding.sentAt;
+			if (sentAt != 0L) {
+				parent.getListener().responseReceived(sentAt);
+			}
+			outstanding.future.complete(response);
+		}
+
+		disconnect(readerGeneration);
+	}
+
+	/**
+	 * Closes connection and fails its outstanding requests, unless it has
+	 * been replaced by a newer one in the meantime
+	 */
+	private synchronized void disconnect(int connectionGeneration) {
+		if (connectionGeneration != generation) {
+			return;
+		}
+		// Readers of this generation stop there
+		generation++;
+
+		try {
+			channel.disconnect();
+		} catch (IOException e) {
+			// Connection is dropped anyway
+		}
+
+		ConnectionFailureException failure = new ConnectionFailureException(
+				String.format("%s : multiplexed connection closed", parent
+						.getName()));
+		Iterator<Outstanding> it = pending.values().iterator();
+		while (it.hasNext()) {
+			Outstanding outstanding = it.next();
+			it.remove();
+			outstanding.future.completeExceptionally(failure);
+		}
+	}
+
+	void close() {
+		disconnect(currentGeneration());
+	}
+
+}
@@ -0,0 +1,333 @@
+package org.jpos.q2.iso.multiplex;
+
+import java.io.IOException;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.Executor;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+import org.jpos.q2.iso.pool.PoolableFactory;
+
+/**
+ * Carries many concurrent request/response conversations over a few
+ * persistent connections<BR>
+ *
+ * Each connection has a reader thread matching responses back to their
+ * pending request by a key, built from the MTI class and the configured key
+ * fields (as QMUX does with its {@code <key>} element). A request is sent on
+ * the connected channel having the fewest outstanding requests, further
+ * channels getting connected as load requires, up to the configured number of
+ * connections.<BR>
+ *
+ * A broken connection fails its outstanding requests with a
+ * {@link ConnectionFailureException}, and is reconnected by the next request
+ * sent through it. A channel failing to connect is not tried again before a
+ * delay, doubling from 100 millis up to 5 seconds on consecutive failures,
+ * requests going to the connected channels meanwhile.<BR>
+ *
+ * Connections are kept open while idle : the channel timeout is disabled,
+ * since a jPOS channel closes its socket when a receive times out. Requests
+ * are bounded by their own timers instead.
+ *
+ * @author dgrandemange
+ *
+ */
+public class Multiplexer {
+
+	/**
+	 * Notified of connection and conversation events, for monitoring purposes
+	 */
+	public interface Listener {
+
+		/**
+		 * @param startNanos
+		 *            connection attempt start, as given by
+		 *            {@link System#nanoTime()}
+		 */
+		void connected(ISOChannel channel, long startNanos);
+
+		void connectFailed(ISOChannel channel, Exception e);
+
+		/**
+		 * @param startNanos
+		 *            send start, as given by {@link System#nanoTime()}
+		 */
+		void sent(long startNanos);
+
+		/**
+		 * @param sentNanos
+		 *            request send completion, as given by
+		 *            {@link System#nanoTime()}
+		 */
+		void responseReceived(long sentNanos);
+
+		/**
+		 * A response matched no outstanding request, most likely a late
+		 * response to a request which already timed out
+		 */
+		void unmatched(ISOMsg response);
+	}
+
+	public static final String DEFAULT_KEY = "41, 11";
+
+	private final String name;
+
+	private final int[] keyFields;
+
+	private final int maxOutstanding;
+
+	private final Listener listener;
+
+	private final MultiplexedConnection[] connections;
+
+	private final AtomicInteger next = new AtomicInteger(0);
+
+	private final AtomicLong unmatchedCount = new AtomicLong(0L);
+
+	private volatile boolean closed;
+
+	/**
+	 * @param name
+	 *            name of the owner, used in logs and thread names
+	 * @param factory
+	 *            creates the channels, which are never handed back
+	 * @param connections
+	 *            maximum number of connections
+	 * @param maxOutstanding
+	 *            maximum number of outstanding requests per connection
+	 * @param keyFields
+	 *            fields correlating a response with its request
+	 */
+	public Multiplexer(String name, PoolableFactory<ISOChannel> factory,
+			int connections, int maxOutstanding, int[] keyFields,
+			Listener listener) throws Exception {
+		this.name = name;
+		this.keyFields = keyFields;
+		this.maxOutstanding = maxOutstanding;
+		this.listener = listener;
+		this.connections = new MultiplexedConnection[Math.max(connections, 1)];
+		for (int i = 0; i < this.connections.length; i++) {
+			ISOChannel channel = factory.makeObject();
+			if (channel instanceof BaseChannel) {
+				((BaseChannel) channel).setTimeout(0);
+			}
+			this.connections[i] = new MultiplexedConnection(this, channel,
+					String.format("%s-mux-reader-%d", name, i + 1));
+		}
+	}
+
+	/**
+	 * @return correlation key of a request or of its response : MTI class
+	 *         (request and response MTIs share it, e.g. 0100 and 0110) and key
+	 *         fields values
+	 * @throws ISOException
+	 *             if message holds none of the key fields
+	 */
+	public String keyOf(ISOMsg m) throws ISOException {
+		StringBuilder sb = new StringBuilder();
+		String mti = m.getMTI();
+		if ((mti != null) && (mti.length() == 4)) {
+			sb.append(mti, 0, 2);
+			sb.append((char) ('0' + ((mti.charAt(2) - '0') & ~1)));
+		}
+
+		boolean hasFields = false;
+		for (int field : keyFields) {
+			String value = m.getString(field);
+			sb.append('|');
+			if (value != null) {
+				sb.append(value.trim());
+				hasFields = true;
+			}
+		}
+		if (!hasFields) {
+			throw new ISOException(String.format(
+					"%s : key fields not found in message (key is %s)", name,
+					sb));
+		}
+		return sb.toString();
+	}
+
+	/**
+	 * Sends a request on the least loaded connection<BR>
+	 * Request is sent by the calling thread when a connected channel is
+	 * available, or else by {@code connectExecutor} once a channel is
+	 * connected.
+	 *
+	 * @return future of the response, failing with a
+	 *         {@link ConnectionFailureException} if the request cannot be
+	 *         sent or its connection breaks, with a
+	 *         {@link NoSuchElementException} if every connection has
+	 *         {@code maxOutstanding} requests already. Completing it from the
+	 *         outside (e.g. timeout) forgets the request.
+	 */
+	public CompletableFuture<ISOMsg> submit(final ISOMsg m,
+			Executor connectExecutor) {
+		final CompletableFuture<ISOMsg> future = new CompletableFuture<ISOMsg>();
+		if (closed) {
+			future.completeExceptionally(new ConnectionFailureException(
+					String.format("%s : multiplexer is closed", name)));
+			return future;
+		}
+
+		final String key;
+		try {
+			key = keyOf(m);
+		} catch (ISOException e) {
+			future.completeExceptionally(e);
+			return future;
+		}
+
+		final MultiplexedConnection connection = select();
+		if (connection == null) {
+			future.completeExceptionally(new NoSuchElementException(
+					String.format(
+							"%s : every multiplexed connection has %d outstanding requests",
+							name, maxOutstanding)));
+			return future;
+		}
+
+		if (connection.isConnected()) {
+			connection.send(m, key, future);
+		} else {
+			try {
+				connectExecutor.execute(new Runnable() {
+					public void run() {
+						connectAndSend(connection, m, key, future);
+					}
+				});
+			} catch (RejectedExecutionException e) {
+				future.completeExceptionally(new ConnectionFailureException(e));
+			}
+		}
+		return future;
+	}
+
+	/**
+	 * Connects a channel then sends the request through it. Should
+	 * connection fail, request goes to the next channel selected (another
+	 * connected one, most likely), each channel being tried once at most.
+	 */
+	private void connectAndSend(MultiplexedConnection connection, ISOMsg m,
+			String key, CompletableFuture<ISOMsg> future) {
+		IOException failure = null;
+		for (int i = 0; (i < connections.length) && (connection != null); i++) {
+			try {
+				connection.connect();
+				connection.send(m, key, future);
+				return;
+			} catch (IOException e) {
+				failure = e;
+			}
+			connection = select();
+		}
+
+		if (failure != null) {
+			future.completeExceptionally(new ConnectionFailureException(
+					failure));
+		} else {
+			future.completeExceptionally(new NoSuchElementException(
+					String.format(
+							"%s : every multiplexed connection has %d outstanding requests",
+							name, maxOutstanding)));
+		}
+	}
+
+	/**
+	 * @return connected channel with the fewest outstanding requests, unless
+	 *         it is busy and another channel may be connected (channels
+	 *         holding reconnection off are not). Null if every connection is
+	 *         saturated.
+	 */
+	private MultiplexedConnection select() {
+		MultiplexedConnection best = null;
+		MultiplexedConnection disconnected = null;
+		int start = next.getAndIncrement() & Integer.MAX_VALUE;
+		for (int i = 0; i < connections.length; i++) {
+			MultiplexedConnection c = connections[(start + i)
+					% connections.length];
+			if (c.isConnected()) {
+				int outstanding = c.getOutstanding();
+				if ((outstanding < maxOutstanding)
+						&& ((best == null) || (outstanding < best
+								.getOutstanding()))) {
+					best = c;
+				}
+			} else if ((disconnected == null) && c.mayConnect()) {
+				disconnected = c;
+			}
+		}
+
+		if ((disconnected != null)
+				&& ((best == null) || (best.getOutstanding() > 0))) {
+			return disconnected;
+		}
+		return best;
+	}
+
+	/**
+	 * Disconnects all channels, failing outstanding requests
+	 */
+	public void close() {
+		closed = true;
+		for (MultiplexedConnection connection : connections) {
+			connection.close();
+		}
+	}
+
+	public boolean isClosed() {
+		return closed;
+	}
+
+	/**
+	 * @return number of connected channels
+	 */
+	public int getNumConnected() {
+		int n = 0;
+		for (MultiplexedConnection connection : connections) {
+			if (connection.isConnected()) {
+				n++;
+			}
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of requests waiting for their response
+	 */
+	public int getNumOutstanding() {
+		int n = 0;
+		for (MultiplexedConnection connection : connections) {
+			n += connection.getOutstanding();
+		}
+		return n;
+	}
+
+	/**
+	 * @return number of responses which matched no outstanding request
+	 */
+	public long getNumUnmatched() {
+		return unmatchedCount.get();
+	}
+
+	String getName() {
+		return name;
+	}
+
+	Listener getListener() {
+		return listener;
+	}
+
+	void unmatched(ISOMsg response) {
+		unmatchedCount.incrementAndGet();
+		listener.unmatched(response);
+	}
+
+}
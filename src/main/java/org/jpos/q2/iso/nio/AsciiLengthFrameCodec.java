@@ -0,0 +1,61 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * Zero padded decimal ASCII length prefix, as used by
+ * {@link org.jpos.iso.channel.ASCIIChannel} (4 digits)
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class AsciiLengthFrameCodec extends LengthPrefixFrameCodec {
+
+	private final int maxLength;
+
+	public AsciiLengthFrameCodec(int digits) {
+		super(digits);
+		if ((digits < 1) || (digits > 9)) {
+			throw new IllegalArgumentException(String.format(
+					"unsupported ASCII length prefix size %d", digits));
+		}
+		int max = 1;
+		for (int i = 0; i < digits; i++) {
+			max *= 10;
+		}
+		this.maxLength = max - 1;
+	}
+
+	@Override
+	protected void encodeLength(int length, ByteBuffer out)
+			throws ISOException {
+		if (length > maxLength) {
+			throw new ISOException(String.format(
+					"message too long for a %d digits length prefix (%d)",
+					getPrefixLength(), length));
+		}
+		String s = Integer.toString(length);
+		for (int i = s.length(); i < getPrefixLength(); i++) {
+			out.put((byte) '0');
+		}
+		for (int i = 0; i < s.length(); i++) {
+			out.put((byte) s.charAt(i));
+		}
+	}
+
+	@Override
+	protected int decodeLength(ByteBuffer in) throws ISOException {
+		int length = 0;
+		for (int i = 0; i < getPrefixLength(); i++) {
+			int digit = in.get() - '0';
+			if ((digit < 0) || (digit > 9)) {
+				throw new ISOException("invalid ASCII message length");
+			}
+			length = length * 10 + digit;
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,52 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * Big endian binary length prefix, as used by
+ * {@link org.jpos.iso.channel.NACChannel} or
+ * {@link org.jpos.iso.channel.PostChannel} (2 bytes)
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class BinaryLengthFrameCodec extends LengthPrefixFrameCodec {
+
+	public BinaryLengthFrameCodec(int prefixLength) {
+		super(prefixLength);
+		if ((prefixLength < 1) || (prefixLength > 4)) {
+			throw new IllegalArgumentException(String.format(
+					"unsupported binary length prefix size %d", prefixLength));
+		}
+	}
+
+	@Override
+	protected void encodeLength(int length, ByteBuffer out)
+			throws ISOException {
+		int prefixLength = getPrefixLength();
+		if ((prefixLength < 4) && (length >= (1 << (8 * prefixLength)))) {
+			throw new ISOException(String.format(
+					"message too long for a %d bytes length prefix (%d)",
+					prefixLength, length));
+		}
+		for (int i = prefixLength - 1; i >= 0; i--) {
+			out.put((byte) (length >> (8 * i)));
+		}
+	}
+
+	@Override
+	protected int decodeLength(ByteBuffer in) throws ISOException {
+		int length = 0;
+		for (int i = 0; i < getPrefixLength(); i++) {
+			length = (length << 8) | (in.get() & 0xFF);
+		}
+		if (length < 0) {
+			throw new ISOException(String.format("invalid message length %d",
+					length));
+		}
+		return length;
+	}
+
+}
@@ -0,0 +1,63 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * Frames messages ending with a delimiter, e.g. {@code </isomsg>} for
+ * {@link org.jpos.iso.channel.XMLChannel}<BR>
+ * Delimiter is kept as part of the message.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class DelimitedFrameCodec implements FrameCodec {
+
+	private final byte[] delimiter;
+
+	private final byte[] trailer;
+
+	/**
+	 * @param delimiter
+	 *            bytes ending a message
+	 * @param trailer
+	 *            bytes written after each message (e.g. a new line), may be
+	 *            empty
+	 */
+	public DelimitedFrameCodec(byte[] delimiter, byte[] trailer) {
+		this.delimiter = delimiter;
+		this.trailer = trailer;
+	}
+
+	public ByteBuffer encode(byte[] frame) throws ISOException {
+		ByteBuffer out = ByteBuffer.allocate(frame.length + trailer.length);
+		out.put(frame);
+		out.put(trailer);
+		out.flip();
+		return out;
+	}
+
+	public byte[] decode(ByteBuffer in) throws ISOException {
+		int start = in.position();
+		int limit = in.limit() - delimiter.length;
+		for (int i = start; i <= limit; i++) {
+			if (matchesAt(in, i)) {
+				byte[] frame = new byte[i + delimiter.length - start];
+				in.get(frame);
+				return frame;
+			}
+		}
+		return null;
+	}
+
+	private boolean matchesAt(ByteBuffer in, int index) {
+		for (int j = 0; j < delimiter.length; j++) {
+			if (in.get(index + j) != delimiter[j]) {
+				return false;
+			}
+		}
+		return true;
+	}
+
+}
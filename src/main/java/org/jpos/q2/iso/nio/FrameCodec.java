@@ -0,0 +1,34 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * Delimits messages on a non blocking byte stream, the way a
+ * {@link org.jpos.iso.BaseChannel} implementation does on a blocking one
+ * 
+ * @author dgrandemange
+ * 
+ */
+public interface FrameCodec {
+
+	/**
+	 * @param frame
+	 *            message bytes, header included
+	 * @return bytes to write, ready to be read
+	 */
+	ByteBuffer encode(byte[] frame) throws ISOException;
+
+	/**
+	 * Extracts a message from the bytes received so far
+	 * 
+	 * @param in
+	 *            bytes received, ready to be read. Bytes of an extracted
+	 *            message are consumed.
+	 * @return message bytes, header included, or {@code null} if no complete
+	 *         message has been received yet
+	 */
+	byte[] decode(ByteBuffer in) throws ISOException;
+
+}
@@ -0,0 +1,74 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.charset.Charset;
+
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.NACChannel;
+import org.jpos.iso.channel.PostChannel;
+import org.jpos.iso.channel.XMLChannel;
+
+/**
+ * Frame codecs factory
+ * 
+ * @author dgrandemange
+ * 
+ */
+public final class FrameCodecs {
+
+	public static final String FRAMING_XML = "xml";
+	public static final String FRAMING_BINARY_PREFIX = "binary-";
+	public static final String FRAMING_ASCII_PREFIX = "ascii-";
+
+	private static final Charset CHARSET = Charset.forName("ISO-8859-1");
+
+	private FrameCodecs() {
+	}
+
+	/**
+	 * @param framing
+	 *            one of {@code xml}, {@code binary-<n>} (n bytes binary length
+	 *            prefix) or {@code ascii-<n>} (n digits ASCII length prefix)
+	 */
+	public static FrameCodec newCodec(String framing)
+			throws ConfigurationException {
+		try {
+			if (FRAMING_XML.equals(framing)) {
+				return new DelimitedFrameCodec(
+						"</isomsg>".getBytes(CHARSET), "\n".getBytes(CHARSET));
+			} else if (framing.startsWith(FRAMING_BINARY_PREFIX)) {
+				return new BinaryLengthFrameCodec(Integer.parseInt(framing
+						.substring(FRAMING_BINARY_PREFIX.length())));
+			} else if (framing.startsWith(FRAMING_ASCII_PREFIX)) {
+				return new AsciiLengthFrameCodec(Integer.parseInt(framing
+						.substring(FRAMING_ASCII_PREFIX.length())));
+			}
+		} catch (IllegalArgumentException e) {
+			throw new ConfigurationException(String.format(
+					"invalid framing '%s'. %s", framing, e.getMessage()), e);
+		}
+
+		throw new ConfigurationException(String.format(
+				"unknown framing '%s' (expecting '%s', '%s<n>' or '%s<n>')",
+				framing, FRAMING_XML, FRAMING_BINARY_PREFIX,
+				FRAMING_ASCII_PREFIX));
+	}
+
+	/**
+	 * @return framing of the given channel implementation, {@code null} if
+	 *         unknown
+	 */
+	public static String framingOf(ISOChannel channel) {
+		if (channel instanceof XMLChannel) {
+			return FRAMING_XML;
+		} else if (channel instanceof ASCIIChannel) {
+			return FRAMING_ASCII_PREFIX + "4";
+		} else if ((channel instanceof NACChannel)
+				|| (channel instanceof PostChannel)) {
+			return FRAMING_BINARY_PREFIX + "2";
+		}
+		return null;
+	}
+
+}
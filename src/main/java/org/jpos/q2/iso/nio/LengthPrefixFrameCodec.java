@@ -0,0 +1,65 @@
+package org.jpos.q2.iso.nio;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+
+/**
+ * Frames messages with a length prefix, not counting the prefix itself
+ * 
+ * @author dgrandemange
+ * 
+ */
+public abstract class LengthPrefixFrameCodec implements FrameCodec {
+
+	private final int prefixLength;
+
+	/**
+	 * @param prefixLength
+	 *            size of the length prefix (in bytes)
+	 */
+	protected LengthPrefixFrameCodec(int prefixLength) {
+		this.prefixLength = prefixLength;
+	}
+
+	public ByteBuffer encode(byte[] frame) throws ISOException {
+		ByteBuffer out = ByteBuffer.allocate(prefixLength + frame.length);
+		encodeLength(frame.length, out);
+		out.put(frame);
+		out.flip();
+		return out;
+	}
+
+	public byte[] decode(ByteBuffer in) throws ISOException {
+		if (in.remaining() < prefixLength) {
+			return null;
+		}
+
+		in.mark();
+		int length = decodeLength(in);
+		if (in.remaining() < length) {
+			in.reset();
+			return null;
+		}
+
+		byte[] frame = new byte[length];
+		in.get(frame);
+		return frame;
+	}
+
+	/**
+	 * Writes the length prefix
+	 */
+	protected abstract void encodeLength(int length, ByteBuffer out)
+			throws ISOException;
+
+	/**
+	 * Reads the length prefix, {@code in} holding at least as many bytes
+	 */
+	protected abstract int decodeLength(ByteBuffer in) throws ISOException;
+
+	public int getPrefixLength() {
+		return prefixLength;
+	}
+
+}
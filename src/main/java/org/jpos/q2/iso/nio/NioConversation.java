@@ -0,0 +1,203 @@
+package org.jpos.q2.iso.nio;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.CancelledKeyException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.nio.channels.SocketChannel;
+import java.util.concurrent.CompletableFuture;
+
+import org.jpos.iso.ISOException;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+
+/**
+ * A one shot conversation driven by a selector thread : connects, writes a
+ * request, reads a single framed response, then closes the connection<BR>
+ * All I/O happens on the selector thread owning the conversation, while
+ * {@link #abort()} and {@link #fail(Throwable)} may be called from any
+ * thread.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class NioConversation {
+
+	private static final int INITIAL_READ_BUFFER_SIZE = 1024;
+
+	private final InetSocketAddress address;
+
+	private final ByteBuffer request;
+
+	private final FrameCodec codec;
+
+	private final int maxFrameSize;
+
+	private final CompletableFuture<byte[]> future = new CompletableFuture<byte[]>();
+
+	private volatile SocketChannel channel;
+
+	private volatile boolean connected;
+
+	private ByteBuffer in;
+
+	/**
+	 * @param address
+	 *            remote host address
+	 * @param request
+	 *            framed request, ready to be written
+	 * @param codec
+	 *            codec delimiting the response
+	 * @param maxFrameSize
+	 *            maximum size (in bytes) of the response frame, length prefix
+	 *            or delimiter included, beyond which the conversation fails
+	 */
+	public NioConversation(InetSocketAddress address, ByteBuffer request,
+			FrameCodec codec, int maxFrameSize) {
+		this.address = address;
+		this.request = request;
+		this.codec = codec;
+		this.maxFrameSize = maxFrameSize;
+		this.in = ByteBuffer.allocate(Math.min(INITIAL_READ_BUFFER_SIZE,
+				maxFrameSize));
+	}
+
+	/**
+	 * @return future of the response frame. It completes exceptionally with a
+	 *         {@link ConnectionFailureException} when connection could not be
+	 *         established.
+	 */
+	public CompletableFuture<byte[]> getFuture() {
+		return future;
+	}
+
+	/**
+	 * @return true if connection has been established
+	 */
+	public boolean wasConnected() {
+		return connected;
+	}
+
+	/**
+	 * Aborts the conversation, closing its connection
+	 */
+	public void abort() {
+		future.cancel(false);
+		close();
+	}
+
+	/**
+	 * Starts connecting, to be called by the selector thread
+	 */
+	void open(Selector selector) {
+		if (future.isDone()) {
+			return;
+		}
+
+		try {
+			SocketChannel socketChannel = SocketChannel.open();
+			channel = socketChannel;
+			socketChannel.configureBlocking(false);
+			socketChannel.socket().setTcpNoDelay(true);
+			if (socketChannel.connect(address)) {
+				connected = true;
+				socketChannel.register(selector, SelectionKey.OP_WRITE, this);
+			} else {
+				socketChannel.register(selector, SelectionKey.OP_CONNECT, this);
+			}
+		} catch (IOException e) {
+			fail(new ConnectionFailureException(e));
+		}
+
+		if (future.isDone()) {
+			// Aborted while being registered
+			close();
+		}
+	}
+
+	/**
+	 * Handles a readiness event, to be called by the selector thread
+	 */
+	void handle(SelectionKey key) {
+		try {
+			if (key.isConnectable()) {
+				try {
+					((SocketChannel) key.channel()).finishConnect();
+				} catch (IOException e) {
+					fail(new ConnectionFailureException(e));
+					return;
+				}
+				connected = true;
+				key.interestOps(SelectionKey.OP_WRITE);
+			} else if (key.isWritable()) {
+				((SocketChannel) key.channel()).write(request);
+				if (!request.hasRemaining()) {
+					key.interestOps(SelectionKey.OP_READ);
+				}
+			} else if (key.isReadable()) {
+				read((SocketChannel) key.channel());
+			}
+		} catch (CancelledKeyException e) {
+			// Aborted from another thread while the event was being handled
+			close();
+		} catch (IOException e) {
+			fail(e);
+		} catch (ISOException e) {
+			fail(e);
+		}
+	}
+
+	private void read(SocketChannel socketChannel) throws IOException,
+			ISOException {
+		if (!in.hasRemaining()) {
+			if (in.capacity() >= maxFrameSize) {
+				// Garbage length prefix, or delimiter never coming
+				throw new ISOException(String.format(
+						"response from %s exceeds %d bytes", address,
+						maxFrameSize));
+			}
+			ByteBuffer larger = ByteBuffer.allocate(Math.min(
+					in.capacity() * 2, maxFrameSize));
+			in.flip();
+			larger.put(in);
+			in = larger;
+		}
+
+		if (socketChannel.read(in) < 0) {
+			throw new EOFException(String.format(
+					"connection to %s closed before a response was received",
+					address));
+		}
+
+		in.flip();
+		byte[] frame = codec.decode(in);
+		in.compact();
+		if (frame != null) {
+			future.complete(frame);
+			close();
+		}
+	}
+
+	/**
+	 * Fails the conversation, closing its connection, e.g. when its selector
+	 * thread stops or when connection is not established in time
+	 */
+	void fail(Throwable t) {
+		future.completeExceptionally(t);
+		close();
+	}
+
+	private void close() {
+		SocketChannel socketChannel = channel;
+		if (socketChannel != null) {
+			try {
+				socketChannel.close();
+			} catch (IOException e) {
+				// Safe to ignore
+			}
+		}
+	}
+
+}
@@ -0,0 +1,158 @@
+package org.jpos.q2.iso.nio;
+
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedSelectorException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Drives one shot conversations over non blocking sockets, with a small fixed
+ * number of selector threads whatever the number of conversations in flight
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class NioConversationEngine {
+
+	private final String name;
+
+	private final SelectorLoop[] loops;
+
+	private final AtomicInteger nextLoop = new AtomicInteger(0);
+
+	/**
+	 * @param name
+	 *            engine name, used to name selector threads
+	 * @param selectorThreads
+	 *            number of selector threads
+	 */
+	public NioConversationEngine(String name, int selectorThreads) {
+		this.name = name;
+		this.loops = new SelectorLoop[Math.max(selectorThreads, 1)];
+	}
+
+	public synchronized void start() throws IOException {
+		for (int i = 0; i < loops.length; i++) {
+			loops[i] = new SelectorLoop(Selector.open());
+			Thread t = new Thread(loops[i], String.format("%s-selector-%d",
+					name, i + 1));
+			t.setDaemon(true);
+			t.start();
+		}
+	}
+
+	/**
+	 * Stops selector threads, failing conversations still in flight
+	 */
+	public synchronized void stop() {
+		for (SelectorLoop loop : loops) {
+			if (loop != null) {
+				loop.stop();
+			}
+		}
+	}
+
+	/**
+	 * Starts a conversation
+	 * 
+	 * @param address
+	 *            remote host address
+	 * @param request
+	 *            framed request, ready to be written
+	 * @param codec
+	 *            codec delimiting the response
+	 * @param maxFrameSize
+	 *            maximum size (in bytes) of the response frame
+	 * @return the conversation, its future completing on the selector thread
+	 */
+	public NioConversation open(InetSocketAddress address, ByteBuffer request,
+			FrameCodec codec, int maxFrameSize) {
+		NioConversation conversation = new NioConversation(address, request,
+				codec, maxFrameSize);
+		int i = (nextLoop.getAndIncrement() & Integer.MAX_VALUE)
+				% loops.length;
+		loops[i].register(conversation);
+		return conversation;
+	}
+
+	private static class SelectorLoop implements Runnable {
+		private final Selector selector;
+		private final Queue<NioConversation> registrations = new ConcurrentLinkedQueue<NioConversation>();
+		private volatile boolean running = true;
+
+		public SelectorLoop(Selector selector) {
+			this.selector = selector;
+		}
+
+		public void register(NioConversation conversation) {
+			if (!running) {
+				conversation.fail(new IOException("engine is stopped"));
+				return;
+			}
+			registrations.add(conversation);
+			selector.wakeup();
+		}
+
+		public void stop() {
+			running = false;
+			selector.wakeup();
+		}
+
+		public void run() {
+			try {
+				while (running) {
+					selector.select();
+
+					NioConversation conversation;
+					while ((conversation = registrations.poll()) != null) {
+						conversation.open(selector);
+					}
+
+					Iterator<SelectionKey> it = selector.selectedKeys()
+							.iterator();
+					while (it.hasNext()) {
+						SelectionKey key = it.next();
+						it.remove();
+						if (key.isValid()) {
+							((NioConversation) key.attachment()).handle(key);
+						}
+					}
+				}
+			} catch (IOException e) {
+				// Selector failure, conversations get failed below
+			} catch (ClosedSelectorException e) {
+				// Idem
+			} finally {
+				shutdown();
+			}
+		}
+
+		private void shutdown() {
+			running = false;
+			IOException stopped = new IOException("engine is stopped");
+			try {
+				for (SelectionKey key : selector.keys()) {
+					((NioConversation) key.attachment()).fail(stopped);
+				}
+			} catch (ClosedSelectorException e) {
+				// No more keys
+			}
+			NioConversation conversation;
+			while ((conversation = registrations.poll()) != null) {
+				conversation.fail(stopped);
+			}
+			try {
+				selector.close();
+			} catch (IOException e) {
+				// Safe to ignore
+			}
+		}
+	}
+
+}
@@ -0,0 +1,657 @@
+package org.jpos.q2.iso.nio;
+
+import java.net.InetSocketAddress;
+import java.nio.ByteBuffer;
+import java.util.Arrays;
+import java.util.Queue;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.jdom.Element;
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.BaseChannel;
+import org.jpos.iso.ISOChannel;
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.jpos.iso.ISOPackager;
+import org.jpos.iso.ISOUtil;
+import org.jpos.iso.header.BaseHeader;
+import org.jpos.q2.QBeanSupport;
+import org.jpos.q2.QFactory;
+import org.jpos.q2.iso.AsyncChannel;
+import org.jpos.q2.iso.HealthAwareChannel;
+import org.jpos.q2.iso.exception.ConnectionFailureException;
+import org.jpos.q2.iso.health.HealthProbe;
+import org.jpos.space.Space;
+import org.jpos.space.SpaceFactory;
+import org.jpos.util.NameRegistrar;
+
+/**
+ * A one shot channel adaptor running its conversations on non blocking
+ * sockets, driven by a few selector threads (see {@link NioConversationEngine}
+ * ), instead of holding a thread blocked on socket I/O per conversation<BR>
+ * 
+ * It is configured like {@link org.jpos.q2.iso.EnhancedOneShotChannelAdaptor}
+ * : the {@code <channel>} element provides host, port, packager and header.
+ * The channel class is only used to infer how messages are framed on the wire
+ * (see {@link FrameCodecs#framingOf(ISOChannel)}), which may be set
+ * explicitly with the {@code <framing>} element (e.g. {@code binary-2},
+ * {@code ascii-4} or {@code xml}). Channel filters and socket factories are
+ * not supported.<br>
+ * 
+ * Conversations are bounded by the channel {@code timeout} property (default
+ * is 30000 millis when unset), unless given their own timeout, and
+ * connections by its {@code connect-timeout} property (defaulting to the
+ * former). A connection not established in time is closed and reported as a
+ * connection failure. A response frame larger than {@code <max-frame-size>}
+ * bytes (default is the channel {@code max-packet-length}, i.e. 100000 unless
+ * set) fails its conversation.<br>
+ * 
+ * Optional configuration elements : {@code <selector-threads>} (default is
+ * 1), {@code <max-connections>} (default is 1000) bounding the number of
+ * simultaneous connections, conversations beyond being queued, and
+ * {@code <cnx-process-handling>} (default is {@code false}) with the same
+ * meaning as for {@link org.jpos.q2.iso.EnhancedOneShotChannelAdaptor}.
+ * Requests may also be queued to the {@code <in>} space queue, responses
+ * then being put to the {@code <out>} space queue.<br>
+ * 
+ * The remote endpoint may be probed in background, as configured by the
+ * {@code <health-probe>} elements (see {@link HealthProbe}).<br>
+ * 
+ * Conversation futures complete on a selector thread : callbacks chained to
+ * them must not block.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class NioOneShotChannelAdaptor extends QBeanSupport implements
+		NioOneShotChannelAdaptorMBean, AsyncChannel, HealthAwareChannel {
+
+	Space<String, Object> sp;
+	String in, out;
+	long delay;
+	boolean cnxProcessHandling;
+	int maxConnections;
+	int selectorThreads;
+	String host;
+	int port;
+	long conversationTimeout;
+	long connectTimeout;
+	int maxFrameSize;
+	ISOPackager packager;
+	byte[] header;
+	FrameCodec codec;
+	AtomicInteger cnxSuccessCounter;
+	AtomicInteger cnxFailedCounter;
+	private InetSocketAddress address;
+	private Semaphore connections;
+	private final Queue<PendingConversation> pendingConversations = new ConcurrentLinkedQueue<PendingConversation>();
+	private final AtomicBoolean draining = new AtomicBoolean(false);
+	private volatile NioConversationEngine engine;
+	private ScheduledExecutorService timeoutScheduler;
+	private ExecutorService pollerExecutorSrv;
+	private volatile HealthProbe healthProbe;
+	private final ThreadLocal<CompletableFuture<ISOMsg>> pendingConversation = new ThreadLocal<CompletableFuture<ISOMsg>>();
+
+	public NioOneShotChannelAdaptor() {
+		super();
+	}
+
+	@SuppressWarnings("unchecked")
+	private Space<String, Object> grabSpace(Element e) {
+		return (Space<String, Object>) SpaceFactory.getSpace(e != null ? e
+				.getText() : "");
+	}
+
+	public void initAdaptor() throws ConfigurationException {
+		cnxSuccessCounter = new AtomicInteger(0);
+		cnxFailedCounter = new AtomicInteger(0);
+
+		Element persist = getPersist();
+
+		sp = grabSpace(persist.getChild("space"));
+		in = persist.getChildTextTrim("in");
+		out = persist.getChildTextTrim("out");
+		delay = 5000;
+
+		String s = persist.getChildTextTrim("cnx-process-handling");
+		cnxProcessHandling = (s != null) ? Boolean.parseBoolean(s) : false;
+		s = persist.getChildTextTrim("max-connections");
+		maxConnections = (s != null) ? Integer.parseInt(s) : 1000; // reasonable
+																	// default
+		s = persist.getChildTextTrim("selector-threads");
+		selectorThreads = (s != null) ? Integer.parseInt(s) : 1; // reasonable
+																	// default
+
+		Element e = persist.getChild("channel");
+		if (e == null) {
+			throw new ConfigurationException("channel element missing");
+		}
+		ISOChannel channel = newChannel(e, getFactory());
+		if (!(channel instanceof BaseChannel)) {
+			throw new ConfigurationException(String.format(
+					"channel '%s' does not extend BaseChannel", e
+							.getAttributeValue("class")));
+		}
+		BaseChannel baseChannel = (BaseChannel) channel;
+		host = baseChannel.getHost();
+		port = baseChannel.getPort();
+		packager = baseChannel.getPackager();
+		header = baseChannel.getHeader();
+		conversationTimeout = (baseChannel.getTimeout() > 0) ? baseChannel
+				.getTimeout() : 30000L; // reasonable default
+		connectTimeout = getFactory().getConfiguration(e).getInt(
+				"connect-timeout", (int) conversationTimeout);
+		if ((host == null) || (packager == null)) {
+			throw new ConfigurationException(
+					"channel host and packager must be configured");
+		}
+
+		s = persist.getChildTextTrim("framing");
+		if (s == null) {
+			s = FrameCodecs.framingOf(channel);
+			if (s == null) {
+				throw new ConfigurationException(String.format(
+						"cannot infer framing of channel '%s', <framing> must be set",
+						e.getAttributeValue("class")));
+			}
+		}
+		codec = FrameCodecs.newCodec(s);
+
+		s = persist.getChildTextTrim("max-frame-size");
+		maxFrameSize = (s != null) ? Integer.parseInt(s) : baseChannel
+				.getMaxPacketLength();
+	}
+
+	private ISOChannel newChannel(Element e, QFactory f)
+			throws ConfigurationException {
+		String channelName = e.getAttributeValue("class");
+		if (channelName == null)
+			throw new ConfigurationException(
+					"class attribute missing from channel element.");
+
+		String packagerName = e.getAttributeValue("packager");
+
+		ISOChannel channel = (ISOChannel) f.newInstance(channelName);
+		if (packagerName != null) {
+			ISOPackager packager = (ISOPackager) f.newInstance(packagerName);
+			channel.setPackager(packager);
+			f.setConfiguration(packager, e);
+		}
+		QFactory.invoke(channel, "setHeader", e.getAttributeValue("header"));
+		f.setLogger(channel, e);
+		f.setConfiguration(channel, e);
+
+		return channel;
+	}
+
+	public void startService() throws Exception {
+		String step = "start service";
+
+		try {
+			initAdaptor();
+
+			address = new InetSocketAddress(host, port);
+			connections = new Semaphore(maxConnections);
+
+			ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(
+					1, new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, getName() + "-timeout");
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			scheduler.setRemoveOnCancelPolicy(true);
+			timeoutScheduler = scheduler;
+
+			NioConversationEngine nioEngine = new NioConversationEngine(
+					getName(), selectorThreads);
+			nioEngine.start();
+			engine = nioEngine;
+
+			if (in != null) {
+				pollerExecutorSrv = Executors
+						.newSingleThreadExecutor(new ThreadFactory() {
+							public Thread newThread(Runnable r) {
+								return new Thread(r, getName()
+										+ "-space-poller");
+							}
+						});
+				pollerExecutorSrv.execute(new PollForRequestsInSpaceTask());
+			}
+
+			NameRegistrar.register(getName(), this);
+
+			healthProbe = HealthProbe.fromConfiguration(getName(),
+					getPersist(), this, host, port, getLog());
+			if (healthProbe != null) {
+				healthProbe.start(HealthProbe.intervalOf(getPersist()));
+			}
+		} catch (Exception e) {
+			getLog().error(
+					String.format("%s : [%s] an error ocurred. %s",
+							this.getName(), step, e.getMessage()));
+			shutdown();
+			throw e;
+		}
+	}
+
+	public void stopService() throws Exception {
+		try {
+			shutdown();
+		} finally {
+			NameRegistrar.unregister(getName());
+		}
+	}
+
+	private void shutdown() {
+		HealthProbe probe = healthProbe;
+		healthProbe = null;
+		if (probe != null) {
+			probe.stop();
+		}
+
+		if (pollerExecutorSrv != null) {
+			pollerExecutorSrv.shutdownNow();
+			pollerExecutorSrv = null;
+		}
+
+		NioConversationEngine nioEngine = engine;
+		engine = null;
+		if (nioEngine != null) {
+			nioEngine.stop();
+		}
+
+		PendingConversation pending;
+		while ((pending = pendingConversations.poll()) != null) {
+			pending.completion.completeExceptionally(new ConnectionFailureException(
+					String.format("%s : adaptor is not running", getName())));
+		}
+
+		if (timeoutScheduler != null) {
+			timeoutScheduler.shutdownNow();
+			timeoutScheduler = null;
+		}
+	}
+
+	/**
+	 * Submit a request to be sent, its response to be received in a dedicated
+	 * conversation
+	 * 
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time (in millis) given to the whole conversation, a negative
+	 *            or zero value meaning the channel timeout
+	 * @return future of the response
+	 */
+	public CompletableFuture<ISOMsg> submit(final ISOMsg m, long timeout) {
+		final CompletableFuture<ISOMsg> completion = new CompletableFuture<ISOMsg>();
+		if (engine == null) {
+			completion.completeExceptionally(new ConnectionFailureException(
+					String.format("%s : adaptor is not running", getName())));
+			return completion;
+		}
+
+		final ByteBuffer request;
+		try {
+			request = codec.encode(pack(m));
+		} catch (ISOException e) {
+			completion.completeExceptionally(e);
+			return completion;
+		}
+
+		final long deadline = (timeout > 0) ? timeout : conversationTimeout;
+		final ScheduledFuture<?> timer = timeoutScheduler.schedule(
+				() -> completion.completeExceptionally(new TimeoutException(
+						String.format("%s : no response received within %d ms",
+								this.getName(), deadline))), deadline,
+				TimeUnit.MILLISECONDS);
+		completion.whenComplete((response, t) -> timer.cancel(false));
+
+		pendingConversations.add(new PendingConversation(request, completion));
+		startPendingConversations();
+		return completion;
+	}
+
+	/**
+	 * A conversation waiting for a connection permit
+	 */
+	private static class PendingConversation {
+		private final ByteBuffer request;
+		private final CompletableFuture<ISOMsg> completion;
+
+		public PendingConversation(ByteBuffer request,
+				CompletableFuture<ISOMsg> completion) {
+			this.request = request;
+			this.completion = completion;
+		}
+	}
+
+	/**
+	 * Starts a conversation, holding a connection permit<BR>
+	 * A conversation already completed (e.g. timed out while queued) only
+	 * releases its permit, without draining the queue itself.
+	 */
+	private void startConversation(ByteBuffer request,
+			final CompletableFuture<ISOMsg> completion) {
+		NioConversationEngine nioEngine = engine;
+		if (completion.isDone() || (nioEngine == null)) {
+			if (!completion.isDone()) {
+				completion.completeExceptionally(new ConnectionFailureException(
+						String.format("%s : adaptor is not running", getName())));
+			}
+			connections.release();
+			return;
+		}
+
+		final NioConversation conversation = nioEngine.open(address, request,
+				codec, maxFrameSize);
+		// Conversation is aborted as soon as its future is completed from the
+		// outside (timeout, cancellation)
+		completion.whenComplete((response, t) -> conversation.abort());
+		final ScheduledFuture<?> connectTimer = timeoutScheduler.schedule(
+				() -> {
+					if (!conversation.wasConnected()) {
+						conversation.fail(new ConnectionFailureException(
+								String.format(
+										"%s : connection not established within %d ms",
+										this.getName(), connectTimeout)));
+					}
+				}, connectTimeout, TimeUnit.MILLISECONDS);
+		conversation.getFuture().whenComplete((frame, t) -> {
+			connectTimer.cancel(false);
+			if (conversation.wasConnected()) {
+				cnxSuccessCounter.incrementAndGet();
+			} else if (!(t instanceof CancellationException)) {
+				cnxFailedCounter.incrementAndGet();
+			}
+			conversationEnded();
+
+			if (t == null) {
+				try {
+					completion.complete(unpack(frame));
+				} catch (ISOException e) {
+					completion.completeExceptionally(e);
+				}
+			} else if (t instanceof ConnectionFailureException) {
+				if (cnxProcessHandling) {
+					completion.completeExceptionally(t);
+				} else {
+					completion.complete(null);
+				}
+			} else if (!(t instanceof CancellationException)) {
+				getLog().warn(
+						String.format("%s : %s", this.getName(), t.getMessage()));
+				completion.complete(null);
+			}
+		});
+	}
+
+	private void conversationEnded() {
+		connections.release();
+		startPendingConversations();
+	}
+
+	/**
+	 * Starts queued conversations, as long as connection permits are
+	 * available<BR>
+	 * A single thread drains the queue at once : a conversation ending while
+	 * the queue is being drained (possibly inline, on the draining thread)
+	 * only releases its permit, which the draining loop then picks up.
+	 */
+	private void startPendingConversations() {
+		do {
+			if (!draining.compareAndSet(false, true)) {
+				return;
+			}
+			try {
+				while (!pendingConversations.isEmpty()
+						&& connections.tryAcquire()) {
+					PendingConversation pending = pendingConversations.poll();
+					if (pending == null) {
+						connections.release();
+					} else {
+						startConversation(pending.request, pending.completion);
+					}
+				}
+			} finally {
+				draining.set(false);
+			}
+			// Permits released or conversations queued after the last check
+			// would otherwise be missed
+		} while (!pendingConversations.isEmpty()
+				&& (connections.availablePermits() > 0));
+	}
+
+	private byte[] pack(ISOMsg m) throws ISOException {
+		m.setPackager(packager);
+		m.setDirection(ISOMsg.OUTGOING);
+		byte[] b = m.pack();
+
+		byte[] h = (m.getHeader() != null) ? m.getHeader() : header;
+		if ((h == null) || (h.length == 0)) {
+			return b;
+		}
+		byte[] frame = new byte[h.length + b.length];
+		System.arraycopy(h, 0, frame, 0, h.length);
+		System.arraycopy(b, 0, frame, h.length, b.length);
+		return frame;
+	}
+
+	private ISOMsg unpack(byte[] frame) throws ISOException {
+		int headerLength = (header != null) ? header.length : 0;
+		if (frame.length < headerLength) {
+			throw new ISOException(String.format(
+					"%s : response shorter than header (%d bytes)", getName(),
+					frame.length));
+		}
+
+		ISOMsg m = new ISOMsg();
+		m.setPackager(packager);
+		m.setDirection(ISOMsg.INCOMING);
+		if (headerLength > 0) {
+			m.setHeader(new BaseHeader(Arrays.copyOfRange(frame, 0,
+					headerLength)));
+			m.unpack(Arrays.copyOfRange(frame, headerLength, frame.length));
+		} else {
+			m.unpack(frame);
+		}
+		return m;
+	}
+
+	/**
+	 * Queue a message to be transmitted by this adaptor
+	 * 
+	 * @param m
+	 *            message to send
+	 */
+	public void send(ISOMsg m) {
+		send(m, -1);
+	}
+
+	/**
+	 * Queue a message to be transmitted by this adaptor<BR>
+	 * Response is to be collected by the next {@code receive(...)} call
+	 * performed by the same thread.
+	 * 
+	 * @param m
+	 *            message to send
+	 * @param timeout
+	 *            time (in millis) given to the whole conversation, a negative
+	 *            or zero value meaning the channel timeout
+	 */
+	public void send(ISOMsg m, long timeout) {
+		pendingConversation.set(submit(m, timeout));
+	}
+
+	/**
+	 * Receive message
+	 */
+	public ISOMsg receive() {
+		return receive(-1);
+	}
+
+	/**
+	 * Receive the response to the message previously sent by the current
+	 * thread
+	 * 
+	 * @param timeout
+	 *            time to wait for an incoming message
+	 */
+	public ISOMsg receive(long timeout) {
+		CompletableFuture<ISOMsg> future = pendingConversation.get();
+		pendingConversation.remove();
+
+		if (future == null) {
+			getLog().error(
+					String.format(
+							"%s : cannot retrieve conversation future for thread '%s'",
+							this.getName(), Thread.currentThread()));
+			return null;
+		}
+
+		try {
+			if (timeout >= 0L) {
+				return future.get(timeout, TimeUnit.MILLISECONDS);
+			} else {
+				return future.get();
+			}
+		} catch (TimeoutException e) {
+			future.cancel(true);
+			getLog().warn(
+					String.format(
+							"%s : timeout while waiting for conversation result",
+							this.getName()));
+			return null;
+		} catch (CancellationException e) {
+			getLog().warn(
+					String.format("%s : conversation has been cancelled",
+							this.getName()));
+			return null;
+		} catch (InterruptedException e) {
+			future.cancel(true);
+			getLog().error(
+					String.format(
+							"%s : exception occurred while waiting for conversation result. %s",
+							this.getName(), e.getMessage()));
+			return null;
+		} catch (ExecutionException e) {
+			Throwable exception = e.getCause();
+			if (exception instanceof ConnectionFailureException) {
+				throw (ConnectionFailureException) exception;
+			} else if (exception instanceof TimeoutException) {
+				getLog().warn(
+						String.format(
+								"%s : timeout while waiting for conversation result",
+								this.getName()));
+				return null;
+			} else {
+				getLog().error(
+						String.format(
+								"%s : exception occurred in conversation. %s",
+								this.getName(), exception.getMessage()));
+				return null;
+			}
+		}
+	}
+
+	/**
+	 * Takes requests from the {@code <in>} space queue, at most
+	 * {@code <max-connections>} of them being in progress at once, and puts
+	 * responses to the {@code <out>} space queue
+	 */
+	private class PollForRequestsInSpaceTask implements Runnable {
+		private final Semaphore admission = new Semaphore(maxConnections);
+
+		public void run() {
+			while (running()) {
+				try {
+					if (!admission.tryAcquire(delay, TimeUnit.MILLISECONDS)) {
+						continue;
+					}
+					Object o = sp.in(in, delay);
+					if (!(o instanceof ISOMsg)) {
+						admission.release();
+						continue;
+					}
+					submit((ISOMsg) o, conversationTimeout).whenComplete((response, t) -> {
+						admission.release();
+						if (response != null) {
+							sp.out(out, response);
+						} else if (t != null) {
+							getLog().warn(
+									String.format("%s : %s", getName(),
+											t.getMessage()));
+						}
+					});
+				} catch (InterruptedException e) {
+					break;
+				} catch (Exception e) {
+					getLog().warn(
+							String.format("%s : %s", getName(), e.getMessage()));
+					ISOUtil.sleep(1000);
+				}
+			}
+		}
+	}
+
+	public String getHost() {
+		return host;
+	}
+
+	public int getPort() {
+		return port;
+	}
+
+	public int getCnxSuccessCounter() {
+		return cnxSuccessCounter.get();
+	}
+
+	public int getCnxFailedCounter() {
+		return cnxFailedCounter.get();
+	}
+
+	public void resetCounters() {
+		cnxSuccessCounter.set(0);
+		cnxFailedCounter.set(0);
+	}
+
+	public int getMaxConnections() {
+		return maxConnections;
+	}
+
+	public int getInFlightConversations() {
+		return (connections != null) ? maxConnections
+				- connections.availablePermits() : 0;
+	}
+
+	public int getPendingConversations() {
+		return pendingConversations.size();
+	}
+
+	public boolean isHealthy() {
+		HealthProbe probe = healthProbe;
+		return (probe == null) || probe.isHealthy();
+	}
+
+	public String getHealthState() {
+		HealthProbe probe = healthProbe;
+		return (probe != null) ? probe.getState() : HealthProbe.PROBE_NONE;
+	}
+
+}
@@ -0,0 +1,25 @@
+package org.jpos.q2.iso.nio;
+
+public interface NioOneShotChannelAdaptorMBean extends
+		org.jpos.q2.QBeanSupportMBean {
+
+	java.lang.String getHost();
+
+	int getPort();
+
+	int getCnxSuccessCounter();
+
+	int getCnxFailedCounter();
+
+	void resetCounters();
+
+	int getMaxConnections();
+
+	int getInFlightConversations();
+
+	int getPendingConversations();
+
+	boolean isHealthy();
+
+	java.lang.String getHealthState();
+}
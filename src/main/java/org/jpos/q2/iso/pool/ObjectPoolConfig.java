@@ -0,0 +1,52 @@
+package org.jpos.q2.iso.pool;
+
+/**
+ * {@link StripedObjectPool} configuration
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class ObjectPoolConfig {
+
+	/**
+	 * Maximum number of objects borrowed at once
+	 */
+	public int maxActive = 8;
+
+	/**
+	 * Maximum number of idle objects, objects returned beyond are destroyed
+	 */
+	public int maxIdle = 8;
+
+	/**
+	 * Number of idle objects the evictor tries to keep in pool
+	 */
+	public int minIdle = 0;
+
+	/**
+	 * Time (in millis) after which an idle object is evicted, a negative or
+	 * zero value disables eviction
+	 */
+	public long minEvictableIdleTimeMillis = 30L * 60L * 1000L;
+
+	/**
+	 * Time (in millis) between two evictor runs, a negative or zero value
+	 * disables the evictor
+	 */
+	public long timeBetweenEvictionRunsMillis = -1L;
+
+	/**
+	 * Behaviour of borrow when {@link #maxActive} objects are borrowed, one of
+	 * {@link StripedObjectPool#WHEN_EXHAUSTED_FAIL},
+	 * {@link StripedObjectPool#WHEN_EXHAUSTED_WAIT} or
+	 * {@link StripedObjectPool#WHEN_EXHAUSTED_FIFO}
+	 */
+	public String whenExhaustedAction = StripedObjectPool.WHEN_EXHAUSTED_FAIL;
+
+	/**
+	 * Maximum time (in millis) a borrow waits for an object when pool is
+	 * exhausted, unless given a shorter one
+	 */
+	public long maxWait = 1000L;
+
+}
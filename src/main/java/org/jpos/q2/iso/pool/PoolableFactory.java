@@ -0,0 +1,33 @@
+package org.jpos.q2.iso.pool;
+
+/**
+ * Manages the life cycle of objects held by a {@link StripedObjectPool}
+ * 
+ * @author dgrandemange
+ * 
+ */
+public interface PoolableFactory<T> {
+
+	/**
+	 * Creates an object, about to be borrowed or put in pool
+	 */
+	T makeObject() throws Exception;
+
+	/**
+	 * Destroys an object no longer held by the pool
+	 */
+	void destroyObject(T obj) throws Exception;
+
+	/**
+	 * Prepares an idle object for being borrowed. An exception has the object
+	 * destroyed.
+	 */
+	void activateObject(T obj) throws Exception;
+
+	/**
+	 * Prepares an object for being kept idle in pool. An exception has the
+	 * object destroyed.
+	 */
+	void passivateObject(T obj) throws Exception;
+
+}
@@ -0,0 +1,377 @@
+package org.jpos.q2.iso.pool;
+
+import java.util.Iterator;
+import java.util.NoSuchElementException;
+import java.util.concurrent.ConcurrentLinkedDeque;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * An object pool without a global lock<BR>
+ * 
+ * Idle objects are spread over per-core stripes : a thread borrows from and
+ * returns to its own stripe, and steals from the other stripes only when its
+ * own is empty. The number of borrowed objects is bounded by a
+ * {@link Semaphore}, whose acquisition policy is set by
+ * {@link ObjectPoolConfig#whenExhaustedAction} : {@code fail} fails at once
+ * when pool is exhausted, {@code wait} waits for an object to be returned, up
+ * to a deadline, and {@code fifo} does the same but serves waiting borrowers
+ * in arrival order.<br>
+ * 
+ * An optional evictor destroys objects idle for too long and tops the pool up
+ * to {@link ObjectPoolConfig#minIdle} idle objects.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class StripedObjectPool<T> {
+
+	public static final String WHEN_EXHAUSTED_FAIL = "fail";
+	public static final String WHEN_EXHAUSTED_WAIT = "wait";
+	public static final String WHEN_EXHAUSTED_FIFO = "fifo";
+
+	private final PoolableFactory<T> factory;
+
+	private final int maxActive;
+
+	private final int maxIdle;
+
+	private final int minIdle;
+
+	private final long minEvictableIdleTimeMillis;
+
+	private final long maxWait;
+
+	private final boolean waitWhenExhausted;
+
+	private final Semaphore permits;
+
+	private final ConcurrentLinkedDeque<IdleObject<T>>[] stripes;
+
+	private final AtomicInteger numActive = new AtomicInteger(0);
+
+	private final AtomicInteger numIdle = new AtomicInteger(0);
+
+	private final ScheduledExecutorService evictor;
+
+	private volatile boolean closed;
+
+	private static class IdleObject<T> {
+		private final T obj;
+		private final long since = System.currentTimeMillis();
+
+		public IdleObject(T obj) {
+			this.obj = obj;
+		}
+	}
+
+	/**
+	 * @param name
+	 *            pool name, used to name the evictor thread
+	 * @param factory
+	 *            pooled objects factory
+	 * @param config
+	 *            pool configuration
+	 */
+	@SuppressWarnings("unchecked")
+	public StripedObjectPool(String name, PoolableFactory<T> factory,
+			ObjectPoolConfig config) {
+		this.factory = factory;
+		this.maxActive = config.maxActive;
+		this.maxIdle = config.maxIdle;
+		this.minIdle = config.minIdle;
+		this.minEvictableIdleTimeMillis = config.minEvictableIdleTimeMillis;
+		this.maxWait = config.maxWait;
+
+		if (WHEN_EXHAUSTED_FAIL.equals(config.whenExhaustedAction)) {
+			waitWhenExhausted = false;
+			permits = new Semaphore(maxActive);
+		} else if (WHEN_EXHAUSTED_WAIT.equals(config.whenExhaustedAction)) {
+			waitWhenExhausted = true;
+			permits = new Semaphore(maxActive);
+		} else if (WHEN_EXHAUSTED_FIFO.equals(config.whenExhaustedAction)) {
+			waitWhenExhausted = true;
+			permits = new Semaphore(maxActive, true);
+		} else {
+			throw new IllegalArgumentException(String.format(
+					"unknown exhausted action '%s' (expecting '%s', '%s' or '%s')",
+					config.whenExhaustedAction, WHEN_EXHAUSTED_FAIL,
+					WHEN_EXHAUSTED_WAIT, WHEN_EXHAUSTED_FIFO));
+		}
+
+		int stripeCount = Integer.highestOneBit(Math.max(Runtime.getRuntime()
+				.availableProcessors() - 1, 1) << 1);
+		stripes = (ConcurrentLinkedDeque<IdleObject<T>>[]) new ConcurrentLinkedDeque<?>[stripeCount];
+		for (int i = 0; i < stripeCount; i++) {
+			stripes[i] = new ConcurrentLinkedDeque<IdleObject<T>>();
+		}
+
+		if (config.timeBetweenEvictionRunsMillis > 0) {
+			final String threadName = name + "-pool-evictor";
+			evictor = Executors
+					.newSingleThreadScheduledExecutor(new ThreadFactory() {
+						public Thread newThread(Runnable r) {
+							Thread t = new Thread(r, threadName);
+							t.setDaemon(true);
+							return t;
+						}
+					});
+			evictor.scheduleWithFixedDelay(new Runnable() {
+				public void run() {
+					evict();
+				}
+			}, config.timeBetweenEvictionRunsMillis,
+					config.timeBetweenEvictionRunsMillis, TimeUnit.MILLISECONDS);
+		} else {
+			evictor = null;
+		}
+	}
+
+	private int stripeIndex() {
+		long id = Thread.currentThread().getId();
+		return (int) (id ^ (id >>> 16)) & (stripes.length - 1);
+	}
+
+	/**
+	 * Borrows an object, waiting for one no longer than configured
+	 * {@link ObjectPoolConfig#maxWait} when pool is exhausted and policy is not
+	 * {@code fail}
+	 * 
+	 * @throws NoSuchElementException
+	 *             when pool is exhausted
+	 */
+	public T borrowObject() throws Exception {
+		return borrowObject(maxWait);
+	}
+
+	/**
+	 * Borrows an object
+	 * 
+	 * @param timeout
+	 *            maximum time (in millis) to wait for an object when pool is
+	 *            exhausted and policy is not {@code fail}, bounded by
+	 *            configured {@link ObjectPoolConfig#maxWait}
+	 * @throws NoSuchElementException
+	 *             when pool is exhausted
+	 */
+	public T borrowObject(long timeout) throws Exception {
+		assertOpen();
+
+		boolean acquired;
+		if (waitWhenExhausted && (timeout > 0L)) {
+			acquired = permits.tryAcquire(Math.min(timeout, maxWait),
+					TimeUnit.MILLISECONDS);
+		} else {
+			acquired = permits.tryAcquire();
+		}
+		if (!acquired) {
+			throw new NoSuchElementException("pool exhausted");
+		}
+
+		try {
+			// Pool may have been closed while waiting
+			assertOpen();
+
+			T obj = pollIdle();
+			while (obj != null) {
+				try {
+					factory.activateObject(obj);
+					numActive.incrementAndGet();
+					return obj;
+				} catch (Exception e) {
+					destroy(obj);
+				}
+				obj = pollIdle();
+			}
+
+			obj = factory.makeObject();
+			try {
+				factory.activateObject(obj);
+			} catch (Exception e) {
+				destroy(obj);
+				throw e;
+			}
+			numActive.incrementAndGet();
+			return obj;
+		} catch (Exception e) {
+			permits.release();
+			throw e;
+		}
+	}
+
+	/**
+	 * Takes an idle object from the current thread stripe, or else steals one
+	 * from another stripe
+	 */
+	private T pollIdle() {
+		int home = stripeIndex();
+		IdleObject<T> idle = stripes[home].pollFirst();
+		for (int i = 1; (idle == null) && (i < stripes.length); i++) {
+			idle = stripes[(home + i) & (stripes.length - 1)].pollLast();
+		}
+		if (idle == null) {
+			return null;
+		}
+		numIdle.decrementAndGet();
+		return idle.obj;
+	}
+
+	/**
+	 * Returns a borrowed object to the pool
+	 */
+	public void returnObject(T obj) {
+		try {
+			keepIdle(obj);
+		} finally {
+			numActive.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	/**
+	 * Destroys a borrowed object, instead of returning it
+	 */
+	public void invalidateObject(T obj) {
+		try {
+			destroy(obj);
+		} finally {
+			numActive.decrementAndGet();
+			permits.release();
+		}
+	}
+
+	/**
+	 * Creates an object and puts it in pool as idle
+	 */
+	public void addObject() throws Exception {
+		assertOpen();
+		keepIdle(factory.makeObject());
+	}
+
+	private void keepIdle(T obj) {
+		if (closed) {
+			destroy(obj);
+			return;
+		}
+		if (numIdle.incrementAndGet() > maxIdle) {
+			numIdle.decrementAndGet();
+			destroy(obj);
+			return;
+		}
+
+		try {
+			factory.passivateObject(obj);
+		} catch (Exception e) {
+			numIdle.decrementAndGet();
+			destroy(obj);
+			return;
+		}
+		IdleObject<T> idle = new IdleObject<T>(obj);
+		ConcurrentLinkedDeque<IdleObject<T>> stripe = stripes[stripeIndex()];
+		stripe.offerFirst(idle);
+
+		// Pool may have been closed meanwhile, idle objects drained already
+		if (closed && stripe.remove(idle)) {
+			numIdle.decrementAndGet();
+			destroy(obj);
+		}
+	}
+
+	private void destroy(T obj) {
+		try {
+			factory.destroyObject(obj);
+		} catch (Exception e) {
+			// Object is dropped anyway
+		}
+	}
+
+	/**
+	 * Destroys objects idle for too long, then tops pool up to
+	 * {@link ObjectPoolConfig#minIdle} idle objects
+	 */
+	public void evict() {
+		if (closed) {
+			return;
+		}
+
+		if (minEvictableIdleTimeMillis > 0) {
+			long oldest = System.currentTimeMillis()
+					- minEvictableIdleTimeMillis;
+			for (ConcurrentLinkedDeque<IdleObject<T>> stripe : stripes) {
+				Iterator<IdleObject<T>> it = stripe.iterator();
+				while (it.hasNext()) {
+					IdleObject<T> idle = it.next();
+					if ((idle.since < oldest) && stripe.remove(idle)) {
+						numIdle.decrementAndGet();
+						destroy(idle.obj);
+					}
+				}
+			}
+		}
+
+		try {
+			while (!closed && (numIdle.get() < minIdle)
+					&& (numIdle.get() + numActive.get() < maxActive)) {
+				addObject();
+			}
+		} catch (Exception e) {
+			// Next attempt on next run
+		}
+	}
+
+	/**
+	 * Closes the pool, destroying idle objects. Borrowed objects are destroyed
+	 * once returned.
+	 */
+	public void close() {
+		closed = true;
+		if (evictor != null) {
+			evictor.shutdownNow();
+		}
+		for (ConcurrentLinkedDeque<IdleObject<T>> stripe : stripes) {
+			IdleObject<T> idle;
+			while ((idle = stripe.pollFirst()) != null) {
+				numIdle.decrementAndGet();
+				destroy(idle.obj);
+			}
+		}
+	}
+
+	private void assertOpen() {
+		if (closed) {
+			throw new IllegalStateException("pool is closed");
+		}
+	}
+
+	public int getNumActive() {
+		return numActive.get();
+	}
+
+	public int getNumIdle() {
+		return numIdle.get();
+	}
+
+	/**
+	 * @return number of borrowers waiting for an object
+	 */
+	public int getNumWaiters() {
+		return permits.getQueueLength();
+	}
+
+	public int getMaxActive() {
+		return maxActive;
+	}
+
+	public int getMaxIdle() {
+		return maxIdle;
+	}
+
+	public int getMinIdle() {
+		return minIdle;
+	}
+
+}
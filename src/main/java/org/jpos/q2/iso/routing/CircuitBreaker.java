@@ -0,0 +1,144 @@
+package org.jpos.q2.iso.routing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A channel circuit breaker<BR>
+ * <UL>
+ * <LI>{@code CLOSED} : requests flow through the channel. After
+ * {@code failureThreshold} consecutive failures, breaker opens.</LI>
+ * <LI>{@code OPEN} : requests skip the channel. Once {@code openDuration} has
+ * elapsed, a single probe request is let through and breaker goes half-open.</LI>
+ * <LI>{@code HALF_OPEN} : the probe is in flight, other requests still skip the
+ * channel. Breaker closes if probe succeeds, opens again otherwise.</LI>
+ * </UL>
+ * Every request let through by {@link #tryAcquire()} must be reported with
+ * either {@link #onSuccess()}, {@link #onFailure()} or {@link #onAbandoned()}.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class CircuitBreaker {
+
+	public static final int CLOSED = 0;
+	public static final int OPEN = 1;
+	public static final int HALF_OPEN = 2;
+
+	private final int failureThreshold;
+
+	private final long openDuration;
+
+	private final AtomicInteger state = new AtomicInteger(CLOSED);
+
+	private final AtomicInteger failures = new AtomicInteger(0);
+
+	private volatile long stateChangedAt = System.currentTimeMillis();
+
+	/**
+	 * @param failureThreshold
+	 *            number of consecutive failures opening the breaker
+	 * @param openDuration
+	 *            time (in millis) during which an opened breaker lets no
+	 *            request through
+	 */
+	public CircuitBreaker(int failureThreshold, long openDuration) {
+		this.failureThreshold = failureThreshold;
+		this.openDuration = openDuration;
+	}
+
+	/**
+	 * @return true if a request may be sent through the channel
+	 */
+	public boolean tryAcquire() {
+		int current = state.get();
+		if (CLOSED == current) {
+			return true;
+		}
+
+		if (System.currentTimeMillis() - stateChangedAt < openDuration) {
+			return false;
+		}
+
+		// Probe is granted under lock, so that a concurrent caller sees both
+		// the half-open state and its timestamp
+		synchronized (this) {
+			current = state.get();
+			if (CLOSED == current) {
+				return true;
+			}
+
+			// In half-open state, a new probe is allowed should the previous
+			// one never have been reported
+			if (System.currentTimeMillis() - stateChangedAt < openDuration) {
+				return false;
+			}
+
+			if (state.compareAndSet(current, HALF_OPEN)) {
+				stateChangedAt = System.currentTimeMillis();
+				return true;
+			}
+			return false;
+		}
+	}
+
+	/**
+	 * Reports a request that got a response
+	 * 
+	 * @return true if this success closed the breaker
+	 */
+	public boolean onSuccess() {
+		failures.set(0);
+		int current = state.get();
+		if ((HALF_OPEN == current) && state.compareAndSet(HALF_OPEN, CLOSED)) {
+			stateChangedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * Reports a request that failed (connection failure, timeout)
+	 * 
+	 * @return true if this failure opened the breaker
+	 */
+	public boolean onFailure() {
+		int current = state.get();
+		if (HALF_OPEN == current) {
+			return trip(HALF_OPEN);
+		}
+		if ((CLOSED == current)
+				&& (failures.incrementAndGet() >= failureThreshold)) {
+			return trip(CLOSED);
+		}
+		return false;
+	}
+
+	/**
+	 * Reports a request abandoned before its outcome was known (e.g. the
+	 * losing side of a hedged request). It neither counts as a success nor as
+	 * a failure : should it be a probe, another probe is allowed at once.
+	 */
+	public void onAbandoned() {
+		if (state.compareAndSet(HALF_OPEN, OPEN)) {
+			stateChangedAt = System.currentTimeMillis() - openDuration;
+		}
+	}
+
+	private boolean trip(int from) {
+		if (state.compareAndSet(from, OPEN)) {
+			failures.set(0);
+			stateChangedAt = System.currentTimeMillis();
+			return true;
+		}
+		return false;
+	}
+
+	/**
+	 * @return current state, one of {@link #CLOSED}, {@link #OPEN},
+	 *         {@link #HALF_OPEN}
+	 */
+	public int getState() {
+		return state.get();
+	}
+
+}
@@ -0,0 +1,218 @@
+package org.jpos.q2.iso.routing;
+
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+
+/**
+ * Recognizes retransmissions of a request, so that they are not sent again
+ * to a host already dealing with the original one<BR>
+ * Requests are identified by their MTI and a set of key fields (e.g. PAN,
+ * transmission date and time, STAN and terminal id). The repeat flag of the
+ * MTI is ignored, so that a repeat (e.g. 0101, 0201 or 0401) matches its
+ * original request (0100, 0200 or 0400). A duplicate of a request
+ * still in flight is given the future of the original conversation ; a
+ * duplicate of a request answered less than {@code ttl} millis ago is given a
+ * copy of its response.<BR>
+ * Memory is bounded : at most {@code maxSize} requests are tracked in flight
+ * (further ones are simply not deduplicated) and at most {@code maxSize}
+ * responses are kept, oldest being evicted first.
+ *
+ * @author dgrandemange
+ *
+ */
+public class DuplicateCache {
+
+	public static final String DEFAULT_KEY = "2 7 11 41";
+
+	/**
+	 * A response kept for duplicates to come
+	 */
+	private static class Recent {
+		final ISOMsg response;
+
+		final long expiresAt;
+
+		Recent(ISOMsg response, long expiresAt) {
+			this.response = response;
+			this.expiresAt = expiresAt;
+		}
+	}
+
+	private final int[] keyFields;
+
+	private final long ttl;
+
+	private final int maxSize;
+
+	private final Map<String, CompletableFuture<ISOMsg>> inFlight = new ConcurrentHashMap<String, CompletableFuture<ISOMsg>>();
+
+	/**
+	 * In insertion order, oldest first, guarded by itself
+	 */
+	private final LinkedHashMap<String, Recent> recent = new LinkedHashMap<String, Recent>();
+
+	private final AtomicLong joinedCount = new AtomicLong(0L);
+
+	private final AtomicLong hitCount = new AtomicLong(0L);
+
+	/**
+	 * @param keyFields
+	 *            fields identifying a request, along with its MTI
+	 * @param ttl
+	 *            time (in millis) a response is kept for duplicates, 0 to
+	 *            only deduplicate requests in flight
+	 * @param maxSize
+	 *            maximum number of requests tracked in flight, and of
+	 *            responses kept
+	 */
+	public DuplicateCache(int[] keyFields, long ttl, int maxSize) {
+		this.keyFields = keyFields;
+		this.ttl = ttl;
+		this.maxSize = maxSize;
+	}
+
+	/**
+	 * @return key identifying the request, null if it holds none of the key
+	 *         fields (such a request is never deduplicated)
+	 */
+	public String keyOf(ISOMsg m) {
+		StringBuilder sb = new StringBuilder();
+		String mti;
+		try {
+			mti = m.getMTI();
+		} catch (ISOException e) {
+			return null;
+		}
+		if ((mti != null) && (mti.length() == 4)) {
+			// Repeat (odd last digit) shares the key of its original request
+			sb.append(mti, 0, 3);
+			sb.append((char) ('0' + ((mti.charAt(3) - '0') & ~1)));
+		} else {
+			sb.append(mti);
+		}
+
+		boolean hasFields = false;
+		for (int field : keyFields) {
+			String value = m.getString(field);
+			sb.append('|');
+			if (value != null) {
+				sb.append(value.trim());
+				hasFields = true;
+			}
+		}
+		return hasFields ? sb.toString() : null;
+	}
+
+	/**
+	 * @return copy of the response recently given to the same request, null
+	 *         if none
+	 */
+	public ISOMsg getRecent(String key) {
+		if (ttl <= 0L) {
+			return null;
+		}
+
+		synchronized (recent) {
+			Recent r = recent.get(key);
+			if (r == null) {
+				return null;
+			}
+			if (r.expiresAt <= System.currentTimeMillis()) {
+				recent.remove(key);
+				return null;
+			}
+			hitCount.incrementAndGet();
+			return (ISOMsg) r.response.clone();
+		}
+	}
+
+	/**
+	 * Registers a request about to be sent, unless the same request is in
+	 * flight already
+	 *
+	 * @param leader
+	 *            future to be completed with the response of the request
+	 *            about to be sent (or with null if it gets none)
+	 * @return future of the same request already in flight, null if there is
+	 *         none and request is to be sent
+	 */
+	public CompletableFuture<ISOMsg> join(final String key,
+			final CompletableFuture<ISOMsg> leader) {
+		if (inFlight.size() >= maxSize) {
+			return null;
+		}
+
+		CompletableFuture<ISOMsg> running = inFlight.putIfAbsent(key, leader);
+		if (running != null) {
+			joinedCount.incrementAndGet();
+			return running;
+		}
+
+		leader.whenComplete((response, t) -> {
+			if (response != null) {
+				putRecent(key, response);
+			}
+			inFlight.remove(key, leader);
+		});
+		return null;
+	}
+
+	private void putRecent(String key, ISOMsg response) {
+		if (ttl <= 0L) {
+			return;
+		}
+
+		long now = System.currentTimeMillis();
+		synchronized (recent) {
+			recent.remove(key);
+			recent.put(key, new Recent((ISOMsg) response.clone(), now + ttl));
+
+			Iterator<Recent> it = recent.values().iterator();
+			while (it.hasNext()) {
+				Recent oldest = it.next();
+				if ((recent.size() <= maxSize) && (oldest.expiresAt > now)) {
+					break;
+				}
+				it.remove();
+			}
+		}
+	}
+
+	/**
+	 * @return number of requests in flight
+	 */
+	public int getInFlightCount() {
+		return inFlight.size();
+	}
+
+	/**
+	 * @return number of responses kept
+	 */
+	public int getRecentCount() {
+		synchronized (recent) {
+			return recent.size();
+		}
+	}
+
+	/**
+	 * @return number of duplicates given the future of a request in flight
+	 */
+	public long getJoinedCount() {
+		return joinedCount.get();
+	}
+
+	/**
+	 * @return number of duplicates given a recent response
+	 */
+	public long getHitCount() {
+		return hitCount.get();
+	}
+
+}
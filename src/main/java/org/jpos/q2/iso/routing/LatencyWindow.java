@@ -0,0 +1,65 @@
+package org.jpos.q2.iso.routing;
+
+import java.util.Arrays;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * Sliding window of the most recent response times of a channel, from which
+ * percentiles may be read<BR>
+ * Recording is lock-free, reading a percentile sorts a copy of the window : it
+ * is meant to be read far less often than written.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class LatencyWindow {
+
+	private final AtomicLongArray samples;
+
+	private final AtomicLong count = new AtomicLong(0);
+
+	/**
+	 * @param size
+	 *            number of most recent samples kept
+	 */
+	public LatencyWindow(int size) {
+		this.samples = new AtomicLongArray(size);
+	}
+
+	/**
+	 * @param latency
+	 *            response time, in millis
+	 */
+	public void record(long latency) {
+		long i = count.getAndIncrement();
+		samples.set((int) (i % samples.length()), latency);
+	}
+
+	/**
+	 * @param percentile
+	 *            percentile to read, between 0 (excluded) and 100
+	 * @param minSamples
+	 *            minimum number of samples required for the result to be
+	 *            meaningful
+	 * @return response time (in millis) under which the given percentage of
+	 *         recent responses were received, or -1 when not enough samples
+	 *         have been recorded yet
+	 */
+	public long percentile(double percentile, int minSamples) {
+		int n = (int) Math.min(count.get(), samples.length());
+		if ((n == 0) || (n < minSamples)) {
+			return -1L;
+		}
+
+		long[] sorted = new long[n];
+		for (int i = 0; i < n; i++) {
+			sorted[i] = samples.get(i);
+		}
+		Arrays.sort(sorted);
+
+		int rank = (int) Math.ceil(percentile / 100d * n) - 1;
+		return sorted[Math.min(Math.max(rank, 0), n - 1)];
+	}
+
+}
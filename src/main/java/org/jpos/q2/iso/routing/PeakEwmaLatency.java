@@ -0,0 +1,142 @@
+package org.jpos.q2.iso.routing;
+
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Peak exponentially weighted moving average of a channel response time,
+ * combined with its count of in-flight requests<BR>
+ * A sample above the current average is taken as is (peak sensitivity) while
+ * lower samples are blended in with a weight depending on the time elapsed
+ * since the previous sample : the average thus jumps up as soon as a channel
+ * slows down, and decays within a few {@code decayTime} once it recovers.<BR>
+ * The {@link #getCost() cost} of a channel is its decayed average multiplied
+ * by its number of in-flight requests (plus one).<BR>
+ * Only answered requests are sampled as is : a failed request is sampled as
+ * the time it was given, or as {@link #FAILURE_FACTOR} times the current
+ * average if greater, so that a channel failing fast does not look like the
+ * fastest one.
+ * 
+ * @author dgrandemange
+ * 
+ */
+public class PeakEwmaLatency {
+
+	/**
+	 * Cost given to a channel with requests in flight but no sample yet, so
+	 * that it is not flooded before its first response
+	 */
+	private static final double PENALTY = (double) (Long.MAX_VALUE >> 16);
+
+	/**
+	 * Factor applied to the current average to sample a failed request
+	 */
+	public static final double FAILURE_FACTOR = 4.0;
+
+	private final double decayTimeNanos;
+
+	private final AtomicInteger pending = new AtomicInteger(0);
+
+	private double ewma = 0.0;
+
+	private long stamp = System.nanoTime();
+
+	/**
+	 * @param decayTime
+	 *            decay time constant, in millis
+	 */
+	public PeakEwmaLatency(long decayTime) {
+		this.decayTimeNanos = decayTime * 1000000d;
+	}
+
+	/**
+	 * To be called when a request is sent through the channel
+	 * 
+	 * @return start timestamp, to be given back to {@link #end(long)}
+	 */
+	public long start() {
+		pending.incrementAndGet();
+		return System.nanoTime();
+	}
+
+	/**
+	 * To be called when a request sent through the channel has been answered
+	 * 
+	 * @param start
+	 *            timestamp returned by {@link #start()}
+	 * @return elapsed time since start, in millis
+	 */
+	public long end(long start) {
+		long now = System.nanoTime();
+		pending.decrementAndGet();
+		observe(now, now - start);
+		return (now - start) / 1000000L;
+	}
+
+	/**
+	 * To be called when a request sent through the channel got no response
+	 * (connection failure, error or timeout)
+	 * 
+	 * @param start
+	 *            timestamp returned by {@link #start()}
+	 * @param timeout
+	 *            time the request was given, in millis
+	 */
+	public void fail(long start, long timeout) {
+		long now = System.nanoTime();
+		pending.decrementAndGet();
+		synchronized (this) {
+			double penalty = Math.max(Math.max(now - start,
+					timeout * 1000000d), ewma * FAILURE_FACTOR);
+			observe(now, (long) penalty);
+		}
+	}
+
+	/**
+	 * To be called when a request was not sent through the channel after all
+	 * (e.g. refused by a rate limit) : no sample is taken
+	 */
+	public void abandon() {
+		pending.decrementAndGet();
+	}
+
+	/**
+	 * @return expected cost of sending a request through the channel, the
+	 *         lower the better
+	 */
+	public double getCost() {
+		int inFlight = pending.get();
+		double latency = observe(System.nanoTime(), 0);
+		if ((latency == 0.0) && (inFlight != 0)) {
+			return PENALTY + inFlight;
+		}
+		return latency * (inFlight + 1);
+	}
+
+	/**
+	 * @return current (decayed) average response time, in millis
+	 */
+	public double getAverage() {
+		return observe(System.nanoTime(), 0) / 1000000d;
+	}
+
+	/**
+	 * @return number of requests currently in flight
+	 */
+	public int getPending() {
+		return pending.get();
+	}
+
+	private synchronized double observe(long now, long rtt) {
+		long elapsed = Math.max(now - stamp, 0L);
+		stamp = now;
+
+		if (rtt > ewma) {
+			ewma = rtt;
+		} else {
+			double w = Math.exp(-elapsed / decayTimeNanos);
+			ewma = ewma * w + rtt * (1.0 - w);
+		}
+		return ewma;
+	}
+
+}
@@ -0,0 +1,136 @@
+package org.jpos.q2.iso.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class GradientLimiterTest {
+
+	private static final long ONE_MS = TimeUnit.MILLISECONDS.toNanos(1L);
+
+	/**
+	 * Starts as many conversations as allowed, then reports them all
+	 * successful
+	 */
+	private void fullRound(GradientLimiter limiter, long rttNanos) {
+		int started = 0;
+		while (limiter.tryAcquire()) {
+			started++;
+		}
+		for (int i = 0; i < started; i++) {
+			limiter.onSuccess(rttNanos);
+		}
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBounds() {
+		new GradientLimiter(10, 20, 10, 1.5d);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidTolerance() {
+		new GradientLimiter(10, 1, 100, 0.9d);
+	}
+
+	@Test
+	public void testInitialLimitClamped() {
+		assertEquals(50, new GradientLimiter(100, 1, 50, 1.5d).getLimit());
+		assertEquals(5, new GradientLimiter(0, 5, 50, 1.5d).getLimit());
+	}
+
+	@Test
+	public void testTryAcquireUpToLimit() {
+		GradientLimiter limiter = new GradientLimiter(3, 1, 10, 1.5d);
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertTrue(limiter.tryAcquire());
+		assertFalse(limiter.tryAcquire());
+		assertEquals(3, limiter.getInFlight());
+
+		limiter.onIgnored();
+		assertEquals(2, limiter.getInFlight());
+		assertEquals(3, limiter.getLimit());
+		assertTrue(limiter.tryAcquire());
+	}
+
+	@Test
+	public void testDropCutsLimit() {
+		GradientLimiter limiter = new GradientLimiter(20, 5, 100, 1.5d);
+		assertTrue(limiter.tryAcquire());
+		limiter.onDropped();
+		assertEquals(18, limiter.getLimit());
+		assertEquals(0, limiter.getInFlight());
+
+		for (int i = 0; i < 50; i++) {
+			assertTrue(limiter.tryAcquire());
+			limiter.onDropped();
+		}
+		assertEquals(5, limiter.getLimit());
+	}
+
+	@Test
+	public void testGrowsWhileUsedAndSteady() {
+		GradientLimiter limiter = new GradientLimiter(10, 1, 40, 1.5d);
+		for (int i = 0; i < 5; i++) {
+			fullRound(limiter, ONE_MS);
+		}
+		assertTrue(limiter.getLimit() > 10);
+
+		for (int i = 0; i < 100; i++) {
+			fullRound(limiter, ONE_MS);
+		}
+		assertEquals(40, limiter.getLimit());
+		assertEquals(1d, limiter.getShortRtt(), 0.01d);
+		assertEquals(1d, limiter.getBaselineRtt(), 0.01d);
+	}
+
+	@Test
+	public void testNoGrowthWhileUnderused() {
+		GradientLimiter limiter = new GradientLimiter(10, 1, 40, 1.5d);
+		for (int i = 0; i < 100; i++) {
+			assertTrue(limiter.tryAcquire());
+			limiter.onSuccess(ONE_MS);
+		}
+		assertEquals(10, limiter.getLimit());
+	}
+
+	@Test
+	public void testShrinksWhenHostSlowsDown() {
+		GradientLimiter limiter = new GradientLimiter(20, 1, 20, 1.5d);
+		for (int i = 0; i < 10; i++) {
+			fullRound(limiter, ONE_MS);
+		}
+		assertEquals(20, limiter.getLimit());
+
+		for (int i = 0; i < 50; i++) {
+			fullRound(limiter, 10L * ONE_MS);
+		}
+		assertTrue(limiter.getLimit() < 10);
+		assertTrue(limiter.getShortRtt() > 9d);
+		// Baseline only drifts up within minutes
+		assertTrue(limiter.getBaselineRtt() < 2d);
+	}
+
+	@Test
+	public void testToleratedSlowdown() {
+		GradientLimiter limiter = new GradientLimiter(20, 1, 20, 1.5d);
+		for (int i = 0; i < 10; i++) {
+			fullRound(limiter, ONE_MS);
+		}
+
+		// Within tolerance, limit is kept
+		for (int i = 0; i < 50; i++) {
+			fullRound(limiter, ONE_MS + ONE_MS / 4L);
+		}
+		assertEquals(20, limiter.getLimit());
+	}
+
+}
@@ -0,0 +1,128 @@
+package org.jpos.q2.iso.limit;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.concurrent.TimeUnit;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class TokenBucketTest {
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidRate() {
+		new TokenBucket(0d, 1, 0);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidBurst() {
+		new TokenBucket(10d, 0, 0);
+	}
+
+	@Test
+	public void testBurstThenEmpty() {
+		TokenBucket bucket = new TokenBucket(1d, 3, 0);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testRefillCappedAtBurst() throws Exception {
+		TokenBucket bucket = new TokenBucket(1000d, 2, 0);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+
+		Thread.sleep(50L);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.tryAcquire());
+		assertFalse(bucket.tryAcquire());
+	}
+
+	@Test
+	public void testReserveDelay() {
+		TokenBucket bucket = new TokenBucket(10d, 1, 5);
+		assertEquals(0L, bucket.reserve(0L));
+
+		long delay = bucket.reserve(1000L);
+		assertTrue(delay > TimeUnit.MILLISECONDS.toNanos(50L));
+		assertTrue(delay <= TimeUnit.MILLISECONDS.toNanos(100L));
+
+		// Reservations are served in order, next one a period later
+		long next = bucket.reserve(1000L);
+		assertTrue(next > delay + TimeUnit.MILLISECONDS.toNanos(50L));
+		assertEquals(2, bucket.getQueued());
+	}
+
+	@Test
+	public void testReserveBeyondMaxWait() {
+		TokenBucket bucket = new TokenBucket(1d, 1, 5);
+		assertTrue(bucket.tryAcquire());
+		assertEquals(-1L, bucket.reserve(100L));
+		assertEquals(0, bucket.getQueued());
+	}
+
+	@Test
+	public void testMaxQueued() {
+		TokenBucket bucket = new TokenBucket(1d, 1, 2);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.reserve(10000L) > 0L);
+		assertTrue(bucket.reserve(10000L) > 0L);
+		assertEquals(-1L, bucket.reserve(10000L));
+		assertEquals(2, bucket.getQueued());
+	}
+
+	@Test
+	public void testNoQueue() {
+		TokenBucket bucket = new TokenBucket(1d, 1, 0);
+		assertTrue(bucket.tryAcquire());
+		assertEquals(-1L, bucket.reserve(10000L));
+		assertEquals(0, bucket.getQueued());
+	}
+
+	@Test
+	public void testRefund() {
+		TokenBucket bucket = new TokenBucket(1d, 1, 1);
+		assertTrue(bucket.tryAcquire());
+		assertTrue(bucket.reserve(10000L) > 0L);
+		assertEquals(1, bucket.getQueued());
+
+		bucket.refund();
+		assertEquals(0, bucket.getQueued());
+		assertTrue(bucket.reserve(10000L) > 0L);
+	}
+
+	@Test
+	public void testAcquireWaits() throws Exception {
+		TokenBucket bucket = new TokenBucket(20d, 1, 1);
+		assertTrue(bucket.acquire(0L));
+
+		long start = System.nanoTime();
+		assertTrue(bucket.acquire(1000L));
+		assertTrue(System.nanoTime() - start >= TimeUnit.MILLISECONDS
+				.toNanos(40L));
+	}
+
+	@Test
+	public void testInterruptedAcquireRefunds() throws Exception {
+		TokenBucket bucket = new TokenBucket(1d, 1, 1);
+		assertTrue(bucket.tryAcquire());
+
+		Thread.currentThread().interrupt();
+		try {
+			bucket.acquire(10000L);
+			fail("interruption expected");
+		} catch (InterruptedException e) {
+			// expected
+		}
+		assertEquals(0, bucket.getQueued());
+	}
+
+}
@@ -0,0 +1,88 @@
+package org.jpos.q2.iso.metrics;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertTrue;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class LatencyHistogramTest {
+
+	@Test
+	public void testSmallValuesExact() {
+		for (int v = 0; v < 16; v++) {
+			assertEquals(v, LatencyHistogram.indexOf(v));
+			assertEquals(v, LatencyHistogram.highestValueOf(v));
+		}
+	}
+
+	@Test
+	public void testBucketsContiguous() {
+		int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+		for (int i = 0; i < last; i++) {
+			long highest = LatencyHistogram.highestValueOf(i);
+			assertEquals(i, LatencyHistogram.indexOf(highest));
+			assertEquals(i + 1, LatencyHistogram.indexOf(highest + 1L));
+		}
+	}
+
+	@Test
+	public void testRelativeError() {
+		for (long v = 16L; v < (1L << 40); v = v * 3L / 2L + 1L) {
+			long highest = LatencyHistogram.highestValueOf(LatencyHistogram
+					.indexOf(v));
+			assertTrue(highest >= v);
+			assertTrue((double) (highest - v) / v < 1d / 16d);
+		}
+	}
+
+	@Test
+	public void testLargeValuesInLastBucket() {
+		int last = LatencyHistogram.indexOf(Long.MAX_VALUE);
+		assertEquals(last, LatencyHistogram.indexOf(1L << 40));
+		assertEquals(last, LatencyHistogram.indexOf((1L << 40) - 1L));
+		assertEquals((1L << 40) - 1L, LatencyHistogram.highestValueOf(last));
+	}
+
+	@Test
+	public void testPercentiles() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		assertEquals(0L, histogram.getPercentile(50d));
+
+		for (long v = 1L; v <= 1000L; v++) {
+			histogram.record(v);
+		}
+		assertEquals(1000L, histogram.getCount());
+		assertEquals(1000L, histogram.getMax());
+		assertEquals(500.5d, histogram.getMean(), 0.001d);
+
+		long p50 = histogram.getPercentile(50d);
+		assertTrue(p50 >= 500L);
+		assertTrue(p50 < 500L + 500L / 16L);
+		assertEquals(1000L, histogram.getPercentile(100d));
+		assertEquals(1L, histogram.getPercentile(0d));
+	}
+
+	@Test
+	public void testNegativeRecordedAsZero() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(-5L);
+		assertEquals(1L, histogram.getCount());
+		assertEquals(0L, histogram.getPercentile(100d));
+	}
+
+	@Test
+	public void testReset() {
+		LatencyHistogram histogram = new LatencyHistogram();
+		histogram.record(100L);
+		histogram.reset();
+		assertEquals(0L, histogram.getCount());
+		assertEquals(0L, histogram.getMax());
+		assertEquals(0d, histogram.getMean(), 0d);
+		assertEquals(0L, histogram.getPercentile(99d));
+	}
+
+}
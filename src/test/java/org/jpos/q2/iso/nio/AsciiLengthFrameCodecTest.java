@@ -0,0 +1,64 @@
+package org.jpos.q2.iso.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class AsciiLengthFrameCodecTest {
+
+	private static byte[] ascii(String s) throws Exception {
+		return s.getBytes("ISO-8859-1");
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidDigits() {
+		new AsciiLengthFrameCodec(10);
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		ByteBuffer out = new AsciiLengthFrameCodec(4).encode(ascii("abc"));
+		byte[] b = new byte[out.remaining()];
+		out.get(b);
+		assertArrayEquals(ascii("0003abc"), b);
+	}
+
+	@Test(expected = ISOException.class)
+	public void testEncodeTooLong() throws Exception {
+		new AsciiLengthFrameCodec(2).encode(new byte[100]);
+	}
+
+	@Test
+	public void testDecode() throws Exception {
+		AsciiLengthFrameCodec codec = new AsciiLengthFrameCodec(4);
+		ByteBuffer in = ByteBuffer.wrap(ascii("0002ab0012abcdefghijkl0003a"));
+		assertArrayEquals(ascii("ab"), codec.decode(in));
+		assertArrayEquals(ascii("abcdefghijkl"), codec.decode(in));
+		assertNull(codec.decode(in));
+		// Incomplete message left in buffer, prefix included
+		assertEquals(5, in.remaining());
+	}
+
+	@Test(expected = ISOException.class)
+	public void testDecodeInvalidLength() throws Exception {
+		new AsciiLengthFrameCodec(4).decode(ByteBuffer.wrap(ascii("00x2ab")));
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		AsciiLengthFrameCodec codec = new AsciiLengthFrameCodec(4);
+		byte[] frame = new byte[9999];
+		frame[0] = 7;
+		assertArrayEquals(frame, codec.decode(codec.encode(frame)));
+	}
+
+}
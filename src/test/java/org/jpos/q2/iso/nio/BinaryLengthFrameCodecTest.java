@@ -0,0 +1,81 @@
+package org.jpos.q2.iso.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.jpos.iso.ISOException;
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class BinaryLengthFrameCodecTest {
+
+	private static byte[] bytes(ByteBuffer buffer) {
+		byte[] b = new byte[buffer.remaining()];
+		buffer.get(b);
+		return b;
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testInvalidPrefixLength() {
+		new BinaryLengthFrameCodec(5);
+	}
+
+	@Test
+	public void testEncode() throws Exception {
+		BinaryLengthFrameCodec codec = new BinaryLengthFrameCodec(2);
+		assertArrayEquals(new byte[] { 0, 3, 'a', 'b', 'c' },
+				bytes(codec.encode("abc".getBytes("ISO-8859-1"))));
+		assertEquals(0x01, codec.encode(new byte[256]).get(0));
+		assertEquals(0x00, codec.encode(new byte[256]).get(1));
+	}
+
+	@Test(expected = ISOException.class)
+	public void testEncodeTooLong() throws Exception {
+		new BinaryLengthFrameCodec(2).encode(new byte[1 << 16]);
+	}
+
+	@Test
+	public void testDecode() throws Exception {
+		BinaryLengthFrameCodec codec = new BinaryLengthFrameCodec(2);
+		ByteBuffer in = ByteBuffer.wrap(new byte[] { 0, 2, 'a', 'b', 0, 1,
+				'c' });
+		assertArrayEquals(new byte[] { 'a', 'b' }, codec.decode(in));
+		assertArrayEquals(new byte[] { 'c' }, codec.decode(in));
+		assertNull(codec.decode(in));
+		assertEquals(0, in.remaining());
+	}
+
+	@Test
+	public void testDecodeIncomplete() throws Exception {
+		BinaryLengthFrameCodec codec = new BinaryLengthFrameCodec(2);
+		ByteBuffer in = ByteBuffer.wrap(new byte[] { 0 });
+		assertNull(codec.decode(in));
+		assertEquals(0, in.position());
+
+		in = ByteBuffer.wrap(new byte[] { 0, 3, 'a', 'b' });
+		assertNull(codec.decode(in));
+		// Prefix is read again once more bytes are received
+		assertEquals(0, in.position());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		BinaryLengthFrameCodec codec = new BinaryLengthFrameCodec(4);
+		byte[] frame = new byte[70000];
+		frame[69999] = 42;
+		assertArrayEquals(frame, codec.decode(codec.encode(frame)));
+	}
+
+	@Test(expected = ISOException.class)
+	public void testDecodeNegativeLength() throws Exception {
+		new BinaryLengthFrameCodec(4).decode(ByteBuffer.wrap(new byte[] {
+				(byte) 0xFF, 0, 0, 0 }));
+	}
+
+}
@@ -0,0 +1,67 @@
+package org.jpos.q2.iso.nio;
+
+import static org.junit.Assert.assertArrayEquals;
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+
+import java.nio.ByteBuffer;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class DelimitedFrameCodecTest {
+
+	private static byte[] ascii(String s) throws Exception {
+		return s.getBytes("ISO-8859-1");
+	}
+
+	private DelimitedFrameCodec newCodec() throws Exception {
+		return new DelimitedFrameCodec(ascii("</isomsg>"), ascii("\n"));
+	}
+
+	@Test
+	public void testEncodeAppendsTrailer() throws Exception {
+		ByteBuffer out = newCodec().encode(ascii("<isomsg></isomsg>"));
+		byte[] b = new byte[out.remaining()];
+		out.get(b);
+		assertArrayEquals(ascii("<isomsg></isomsg>\n"), b);
+	}
+
+	@Test
+	public void testDecodeKeepsDelimiter() throws Exception {
+		DelimitedFrameCodec codec = newCodec();
+		ByteBuffer in = ByteBuffer
+				.wrap(ascii("<isomsg><a/></isomsg><isomsg><b/></isomsg><isomsg>"));
+		assertArrayEquals(ascii("<isomsg><a/></isomsg>"), codec.decode(in));
+		assertArrayEquals(ascii("<isomsg><b/></isomsg>"), codec.decode(in));
+		assertNull(codec.decode(in));
+		assertEquals(8, in.remaining());
+	}
+
+	@Test
+	public void testDelimiterSplitAcrossReads() throws Exception {
+		DelimitedFrameCodec codec = newCodec();
+		ByteBuffer in = ByteBuffer.allocate(64);
+		in.put(ascii("<isomsg><a/></iso"));
+		in.flip();
+		assertNull(codec.decode(in));
+		assertEquals(0, in.position());
+
+		in.compact();
+		in.put(ascii("msg>"));
+		in.flip();
+		assertArrayEquals(ascii("<isomsg><a/></isomsg>"), codec.decode(in));
+		assertEquals(0, in.remaining());
+	}
+
+	@Test
+	public void testRoundTrip() throws Exception {
+		DelimitedFrameCodec codec = newCodec();
+		byte[] frame = ascii("<isomsg><field id=\"0\" value=\"0800\"/></isomsg>");
+		assertArrayEquals(frame, codec.decode(codec.encode(frame)));
+	}
+
+}
@@ -0,0 +1,58 @@
+package org.jpos.q2.iso.nio;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertTrue;
+
+import org.jpos.core.ConfigurationException;
+import org.jpos.iso.channel.ASCIIChannel;
+import org.jpos.iso.channel.NACChannel;
+import org.jpos.iso.channel.PostChannel;
+import org.jpos.iso.channel.RawChannel;
+import org.jpos.iso.channel.XMLChannel;
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class FrameCodecsTest {
+
+	@Test
+	public void testNewCodec() throws Exception {
+		assertTrue(FrameCodecs.newCodec("xml") instanceof DelimitedFrameCodec);
+
+		FrameCodec binary = FrameCodecs.newCodec("binary-2");
+		assertTrue(binary instanceof BinaryLengthFrameCodec);
+		assertEquals(2, ((LengthPrefixFrameCodec) binary).getPrefixLength());
+
+		FrameCodec ascii = FrameCodecs.newCodec("ascii-4");
+		assertTrue(ascii instanceof AsciiLengthFrameCodec);
+		assertEquals(4, ((LengthPrefixFrameCodec) ascii).getPrefixLength());
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testUnknownFraming() throws Exception {
+		FrameCodecs.newCodec("http");
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testInvalidPrefixSize() throws Exception {
+		FrameCodecs.newCodec("binary-8");
+	}
+
+	@Test(expected = ConfigurationException.class)
+	public void testNonNumericPrefixSize() throws Exception {
+		FrameCodecs.newCodec("ascii-four");
+	}
+
+	@Test
+	public void testFramingOf() {
+		assertEquals("xml", FrameCodecs.framingOf(new XMLChannel()));
+		assertEquals("ascii-4", FrameCodecs.framingOf(new ASCIIChannel()));
+		assertEquals("binary-2", FrameCodecs.framingOf(new NACChannel()));
+		assertEquals("binary-2", FrameCodecs.framingOf(new PostChannel()));
+		assertNull(FrameCodecs.framingOf(new RawChannel()));
+	}
+
+}
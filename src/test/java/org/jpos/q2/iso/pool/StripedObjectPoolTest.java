@@ -0,0 +1,370 @@
+package org.jpos.q2.iso.pool;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertSame;
+import static org.junit.Assert.assertTrue;
+import static org.junit.Assert.fail;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+import java.util.NoSuchElementException;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class StripedObjectPoolTest {
+
+	/**
+	 * Counts objects made and destroyed, failing on demand
+	 */
+	static class CountingFactory implements PoolableFactory<Object> {
+		final AtomicInteger made = new AtomicInteger(0);
+		final AtomicInteger destroyed = new AtomicInteger(0);
+		final AtomicInteger activationFailures = new AtomicInteger(0);
+		volatile boolean failMake;
+		volatile long passivationDelay;
+
+		public Object makeObject() throws Exception {
+			if (failMake) {
+				throw new Exception("make failure");
+			}
+			return Integer.valueOf(made.incrementAndGet());
+		}
+
+		public void destroyObject(Object obj) throws Exception {
+			destroyed.incrementAndGet();
+		}
+
+		public void activateObject(Object obj) throws Exception {
+			if (activationFailures.getAndDecrement() > 0) {
+				throw new Exception("activation failure");
+			}
+		}
+
+		public void passivateObject(Object obj) throws Exception {
+			if (passivationDelay > 0L) {
+				Thread.sleep(passivationDelay);
+			}
+		}
+	}
+
+	private final CountingFactory factory = new CountingFactory();
+
+	private StripedObjectPool<Object> newPool(String action, int maxActive,
+			int maxIdle) {
+		ObjectPoolConfig config = new ObjectPoolConfig();
+		config.whenExhaustedAction = action;
+		config.maxActive = maxActive;
+		config.maxIdle = maxIdle;
+		config.maxWait = 2000L;
+		return new StripedObjectPool<Object>("test", factory, config);
+	}
+
+	@Test(expected = IllegalArgumentException.class)
+	public void testUnknownExhaustedAction() {
+		newPool("grow", 1, 1);
+	}
+
+	@Test
+	public void testFailPolicy() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 2, 2);
+		pool.borrowObject();
+		pool.borrowObject();
+
+		long start = System.currentTimeMillis();
+		try {
+			pool.borrowObject();
+			fail("pool should be exhausted");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start < 1000L);
+		assertEquals(2, pool.getNumActive());
+	}
+
+	@Test
+	public void testWaitPolicyGetsReturnedObject() throws Exception {
+		final StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_WAIT, 1, 1);
+		final Object borrowed = pool.borrowObject();
+
+		new Thread() {
+			public void run() {
+				try {
+					Thread.sleep(100L);
+				} catch (InterruptedException e) {
+					return;
+				}
+				pool.returnObject(borrowed);
+			}
+		}.start();
+
+		assertSame(borrowed, pool.borrowObject(1000L));
+		assertEquals(1, pool.getNumActive());
+		assertEquals(0, pool.getNumIdle());
+		assertEquals(1, factory.made.get());
+	}
+
+	@Test
+	public void testWaitPolicyTimesOut() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_WAIT, 1, 1);
+		pool.borrowObject();
+
+		long start = System.currentTimeMillis();
+		try {
+			pool.borrowObject(200L);
+			fail("pool should be exhausted");
+		} catch (NoSuchElementException e) {
+			// expected
+		}
+		assertTrue(System.currentTimeMillis() - start >= 150L);
+		assertEquals(0, pool.getNumWaiters());
+	}
+
+	@Test
+	public void testFifoPolicyServesWaitersInArrivalOrder() throws Exception {
+		final StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FIFO, 1, 1);
+		Object borrowed = pool.borrowObject();
+
+		int waiters = 5;
+		final List<Integer> served = Collections
+				.synchronizedList(new ArrayList<Integer>());
+		final CountDownLatch done = new CountDownLatch(waiters);
+		for (int i = 0; i < waiters; i++) {
+			final int rank = i;
+			new Thread() {
+				public void run() {
+					try {
+						Object obj = pool.borrowObject(2000L);
+						served.add(rank);
+						pool.returnObject(obj);
+					} catch (Exception e) {
+						// Missing rank makes test fail
+					} finally {
+						done.countDown();
+					}
+				}
+			}.start();
+
+			// Next waiter queues only once this one is waiting
+			long deadline = System.currentTimeMillis() + 1000L;
+			while ((pool.getNumWaiters() <= i)
+					&& (System.currentTimeMillis() < deadline)) {
+				Thread.sleep(1L);
+			}
+		}
+
+		pool.returnObject(borrowed);
+		assertTrue(done.await(5, TimeUnit.SECONDS));
+		assertEquals(Arrays.asList(0, 1, 2, 3, 4), served);
+	}
+
+	@Test
+	public void testPermitReleasedWhenMakeObjectFails() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 1, 1);
+		factory.failMake = true;
+		try {
+			pool.borrowObject();
+			fail("make failure expected");
+		} catch (Exception e) {
+			assertEquals("make failure", e.getMessage());
+		}
+		assertEquals(0, pool.getNumActive());
+
+		factory.failMake = false;
+		pool.borrowObject();
+		assertEquals(1, pool.getNumActive());
+	}
+
+	@Test
+	public void testPermitReleasedWhenActivateObjectFails() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 1, 1);
+		factory.activationFailures.set(1);
+		try {
+			pool.borrowObject();
+			fail("activation failure expected");
+		} catch (Exception e) {
+			assertEquals("activation failure", e.getMessage());
+		}
+		assertEquals(0, pool.getNumActive());
+		assertEquals(1, factory.destroyed.get());
+
+		pool.borrowObject();
+		assertEquals(1, pool.getNumActive());
+	}
+
+	@Test
+	public void testIdleObjectFailingActivationIsReplaced() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 1, 1);
+		pool.addObject();
+		assertEquals(1, pool.getNumIdle());
+
+		factory.activationFailures.set(1);
+		Object obj = pool.borrowObject();
+		assertEquals(Integer.valueOf(2), obj);
+		assertEquals(1, factory.destroyed.get());
+		assertEquals(0, pool.getNumIdle());
+		assertEquals(1, pool.getNumActive());
+	}
+
+	@Test
+	public void testMaxIdleOverflow() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 3, 1);
+		Object o1 = pool.borrowObject();
+		Object o2 = pool.borrowObject();
+		Object o3 = pool.borrowObject();
+		pool.returnObject(o1);
+		pool.returnObject(o2);
+		pool.returnObject(o3);
+
+		assertEquals(1, pool.getNumIdle());
+		assertEquals(0, pool.getNumActive());
+		assertEquals(2, factory.destroyed.get());
+	}
+
+	@Test
+	public void testEvictionDestroysObjectsIdleTooLong() throws Exception {
+		ObjectPoolConfig config = new ObjectPoolConfig();
+		config.minEvictableIdleTimeMillis = 50L;
+		StripedObjectPool<Object> pool = new StripedObjectPool<Object>("test",
+				factory, config);
+		pool.addObject();
+		pool.addObject();
+
+		pool.evict();
+		assertEquals(2, pool.getNumIdle());
+
+		Thread.sleep(100L);
+		pool.evict();
+		assertEquals(0, pool.getNumIdle());
+		assertEquals(2, factory.destroyed.get());
+	}
+
+	@Test
+	public void testEvictionTopsUpToMinIdle() throws Exception {
+		ObjectPoolConfig config = new ObjectPoolConfig();
+		config.maxActive = 3;
+		config.minIdle = 3;
+		StripedObjectPool<Object> pool = new StripedObjectPool<Object>("test",
+				factory, config);
+		pool.borrowObject();
+
+		pool.evict();
+		// Bounded by maxActive, one object being borrowed
+		assertEquals(2, pool.getNumIdle());
+		assertEquals(3, factory.made.get());
+	}
+
+	@Test
+	public void testCloseWhileObjectsBorrowed() throws Exception {
+		StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_FAIL, 2, 2);
+		Object o1 = pool.borrowObject();
+		Object o2 = pool.borrowObject();
+		pool.returnObject(o1);
+
+		pool.close();
+		assertEquals(0, pool.getNumIdle());
+		assertEquals(1, factory.destroyed.get());
+
+		try {
+			pool.borrowObject();
+			fail("pool should be closed");
+		} catch (IllegalStateException e) {
+			// expected
+		}
+
+		pool.returnObject(o2);
+		assertEquals(0, pool.getNumIdle());
+		assertEquals(0, pool.getNumActive());
+		assertEquals(2, factory.destroyed.get());
+	}
+
+	@Test
+	public void testCloseWhileBorrowerWaiting() throws Exception {
+		final StripedObjectPool<Object> pool = newPool(
+				StripedObjectPool.WHEN_EXHAUSTED_WAIT, 1, 1);
+		Object borrowed = pool.borrowObject();
+
+		final List<Exception> errors = Collections
+				.synchronizedList(new ArrayList<Exception>());
+		Thread waiter = new Thread() {
+			public void run() {
+				try {
+					pool.borrowObject(2000L);
+				} catch (Exception e) {
+					errors.add(e);
+				}
+			}
+		};
+		waiter.start();
+		while (pool.getNumWaiters() == 0) {
+			Thread.sleep(1L);
+		}
+
+		pool.close();
+		pool.returnObject(borrowed);
+		waiter.join(2000L);
+
+		assertEquals(1, errors.size());
+		assertTrue(errors.get(0) instanceof IllegalStateException);
+		assertEquals(1, factory.made.get());
+		assertEquals(0, pool.getNumActive());
+	}
+
+	@Test
+	public void testCloseRacingWithReturns() throws Exception {
+		for (int round = 0; round < 50; round++) {
+			final CountingFactory roundFactory = new CountingFactory();
+			// Widens the window between the closed check and the idle offer
+			roundFactory.passivationDelay = 2L;
+			ObjectPoolConfig config = new ObjectPoolConfig();
+			final StripedObjectPool<Object> pool = new StripedObjectPool<Object>(
+					"test", roundFactory, config);
+
+			int threads = 4;
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			for (int i = 0; i < threads; i++) {
+				final Object borrowed = pool.borrowObject();
+				new Thread() {
+					public void run() {
+						try {
+							start.await();
+							pool.returnObject(borrowed);
+						} catch (InterruptedException e) {
+							// Returned below anyway
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+
+			start.countDown();
+			Thread.sleep(1L);
+			pool.close();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+
+			assertEquals(0, pool.getNumIdle());
+			assertEquals(0, pool.getNumActive());
+			assertEquals(roundFactory.made.get(), roundFactory.destroyed.get());
+		}
+	}
+
+}
@@ -0,0 +1,146 @@
+package org.jpos.q2.iso.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertFalse;
+import static org.junit.Assert.assertTrue;
+
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class CircuitBreakerTest {
+
+	private static final long OPEN_DURATION = 100L;
+
+	private CircuitBreaker openedBreaker() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN_DURATION);
+		breaker.onFailure();
+		breaker.onFailure();
+		assertTrue(breaker.onFailure());
+		return breaker;
+	}
+
+	@Test
+	public void testOpensAfterConsecutiveFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN_DURATION);
+		assertTrue(breaker.tryAcquire());
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onFailure());
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+
+		assertTrue(breaker.onFailure());
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+
+		// Late reports of requests sent before opening change nothing
+		assertFalse(breaker.onFailure());
+		assertFalse(breaker.onSuccess());
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testSuccessResetsFailures() {
+		CircuitBreaker breaker = new CircuitBreaker(3, OPEN_DURATION);
+		breaker.onFailure();
+		breaker.onFailure();
+		assertFalse(breaker.onSuccess());
+		breaker.onFailure();
+		breaker.onFailure();
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+	}
+
+	@Test
+	public void testSingleProbeOnceOpenDurationElapsed() throws Exception {
+		CircuitBreaker breaker = openedBreaker();
+		assertFalse(breaker.tryAcquire());
+
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testProbeSuccessCloses() throws Exception {
+		CircuitBreaker breaker = openedBreaker();
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+
+		assertTrue(breaker.onSuccess());
+		assertEquals(CircuitBreaker.CLOSED, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testProbeFailureReopens() throws Exception {
+		CircuitBreaker breaker = openedBreaker();
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+
+		assertTrue(breaker.onFailure());
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertFalse(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testAbandonedProbeAllowsAnotherOne() throws Exception {
+		CircuitBreaker breaker = openedBreaker();
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+
+		breaker.onAbandoned();
+		assertEquals(CircuitBreaker.OPEN, breaker.getState());
+		assertTrue(breaker.tryAcquire());
+	}
+
+	@Test
+	public void testUnreportedProbeReplaced() throws Exception {
+		CircuitBreaker breaker = openedBreaker();
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+
+		Thread.sleep(OPEN_DURATION + 20L);
+		assertTrue(breaker.tryAcquire());
+		assertEquals(CircuitBreaker.HALF_OPEN, breaker.getState());
+	}
+
+	@Test
+	public void testConcurrentProbes() throws Exception {
+		for (int round = 0; round < 20; round++) {
+			final CircuitBreaker breaker = new CircuitBreaker(1, 50L);
+			assertTrue(breaker.onFailure());
+			Thread.sleep(60L);
+
+			int threads = 8;
+			final AtomicInteger probes = new AtomicInteger(0);
+			final CountDownLatch start = new CountDownLatch(1);
+			final CountDownLatch done = new CountDownLatch(threads);
+			for (int i = 0; i < threads; i++) {
+				new Thread() {
+					public void run() {
+						try {
+							start.await();
+							if (breaker.tryAcquire()) {
+								probes.incrementAndGet();
+							}
+						} catch (InterruptedException e) {
+							// Not counted
+						} finally {
+							done.countDown();
+						}
+					}
+				}.start();
+			}
+			start.countDown();
+			assertTrue(done.await(5, TimeUnit.SECONDS));
+			assertEquals(1, probes.get());
+		}
+	}
+
+}
@@ -0,0 +1,145 @@
+package org.jpos.q2.iso.routing;
+
+import static org.junit.Assert.assertEquals;
+import static org.junit.Assert.assertNotNull;
+import static org.junit.Assert.assertNotSame;
+import static org.junit.Assert.assertNull;
+import static org.junit.Assert.assertSame;
+
+import java.util.concurrent.CompletableFuture;
+
+import org.jpos.iso.ISOException;
+import org.jpos.iso.ISOMsg;
+import org.junit.Test;
+
+/**
+ * @author dgrandemange
+ *
+ */
+public class DuplicateCacheTest {
+
+	private static final int[] KEY_FIELDS = { 11, 41 };
+
+	private ISOMsg msg(String mti, String stan, String terminal)
+			throws ISOException {
+		ISOMsg m = new ISOMsg(mti);
+		if (stan != null) {
+			m.set(11, stan);
+		}
+		if (terminal != null) {
+			m.set(41, terminal);
+		}
+		return m;
+	}
+
+	@Test
+	public void testKeyOf() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 0L, 10);
+		assertEquals("0200|000001|TERM0001",
+				cache.keyOf(msg("0200", "000001", "TERM0001")));
+		assertEquals("0200|000001|TERM0001",
+				cache.keyOf(msg("0200", "000001", "TERM0001  ")));
+		assertEquals("0200|000001|", cache.keyOf(msg("0200", "000001", null)));
+		assertNull(cache.keyOf(msg("0200", null, null)));
+	}
+
+	@Test
+	public void testRepeatSharesKeyOfOriginal() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 0L, 10);
+		assertEquals(cache.keyOf(msg("0100", "000001", "T1")),
+				cache.keyOf(msg("0101", "000001", "T1")));
+		assertEquals(cache.keyOf(msg("0200", "000001", "T1")),
+				cache.keyOf(msg("0201", "000001", "T1")));
+		assertEquals(cache.keyOf(msg("0400", "000001", "T1")),
+				cache.keyOf(msg("0401", "000001", "T1")));
+		assertEquals("0420|000001|T1", cache.keyOf(msg("0421", "000001", "T1")));
+	}
+
+	@Test
+	public void testDuplicateJoinsRequestInFlight() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 0L, 10);
+		CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		assertNull(cache.join("k", leader));
+		assertSame(leader, cache.join("k", new CompletableFuture<ISOMsg>()));
+		assertEquals(1L, cache.getJoinedCount());
+		assertEquals(1, cache.getInFlightCount());
+
+		leader.complete(msg("0210", "000001", "T1"));
+		assertEquals(0, cache.getInFlightCount());
+		// No response kept when ttl is 0
+		assertEquals(0, cache.getRecentCount());
+		assertNull(cache.getRecent("k"));
+	}
+
+	@Test
+	public void testDuplicateGetsRecentResponseCopy() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 1000L, 10);
+		CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		assertNull(cache.join("k", leader));
+		ISOMsg response = msg("0210", "000001", "T1");
+		leader.complete(response);
+
+		ISOMsg recent = cache.getRecent("k");
+		assertNotNull(recent);
+		assertNotSame(response, recent);
+		assertEquals("0210", recent.getMTI());
+		assertEquals(1L, cache.getHitCount());
+		assertNotSame(recent, cache.getRecent("k"));
+	}
+
+	@Test
+	public void testNoResponseKeptWithoutResponse() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 1000L, 10);
+		CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		assertNull(cache.join("k", leader));
+		leader.complete(null);
+
+		assertEquals(0, cache.getInFlightCount());
+		assertNull(cache.getRecent("k"));
+
+		// Request may be sent again
+		assertNull(cache.join("k", new CompletableFuture<ISOMsg>()));
+	}
+
+	@Test
+	public void testRecentResponseExpires() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 50L, 10);
+		CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+		cache.join("k", leader);
+		leader.complete(msg("0210", "000001", "T1"));
+		assertNotNull(cache.getRecent("k"));
+
+		Thread.sleep(80L);
+		assertNull(cache.getRecent("k"));
+		assertEquals(0, cache.getRecentCount());
+	}
+
+	@Test
+	public void testInFlightBounded() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 0L, 2);
+		assertNull(cache.join("k1", new CompletableFuture<ISOMsg>()));
+		assertNull(cache.join("k2", new CompletableFuture<ISOMsg>()));
+		assertNull(cache.join("k3", new CompletableFuture<ISOMsg>()));
+		assertEquals(2, cache.getInFlightCount());
+
+		// Not tracked, so not deduplicated either
+		assertNull(cache.join("k3", new CompletableFuture<ISOMsg>()));
+		assertEquals(0L, cache.getJoinedCount());
+	}
+
+	@Test
+	public void testRecentBoundedOldestEvicted() throws Exception {
+		DuplicateCache cache = new DuplicateCache(KEY_FIELDS, 1000L, 2);
+		for (String key : new String[] { "k1", "k2", "k3" }) {
+			CompletableFuture<ISOMsg> leader = new CompletableFuture<ISOMsg>();
+			cache.join(key, leader);
+			leader.complete(msg("0210", "000001", "T1"));
+		}
+
+		assertEquals(2, cache.getRecentCount());
+		assertNull(cache.getRecent("k1"));
+		assertNotNull(cache.getRecent("k2"));
+		assertNotNull(cache.getRecent("k3"));
+	}
+
+}